@@ -0,0 +1,107 @@
+package cz.cuni.mff.d3s.been.util.storage.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaConfiguration;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+/** Time to copy a generated tree to and from a workspace.
+ * <p>
+ * Every copy starts with an empty destination. Each copy takes long enough
+ * to be measured on its own, page cache effects are left to the warmup.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CopyBenchmark {
+
+	public enum Tree {
+		/** Many small files, dominated by per file overhead. */
+		SMALL_FILES(10000, 4 << 10, 100),
+		/** Few huge files, dominated by transfer speed. */
+		HUGE_FILES(4, 256 << 20, 4);
+
+		final int files;
+		final long fileSize;
+		final int filesPerDirectory;
+
+		Tree(int argFiles, long argFileSize, int argFilesPerDirectory) {
+			files = argFiles;
+			fileSize = argFileSize;
+			filesPerDirectory = argFilesPerDirectory;
+		}
+	}
+
+	private static final List<String> TO_ADDRESS = Arrays.asList("copy", "to");
+	private static final List<String> FROM_ADDRESS = Arrays.asList("copy", "from");
+
+	@Param({ "SMALL_FILES", "HUGE_FILES" })
+	public Tree tree;
+
+	@Param({ "1", "4" })
+	public int copyParallelism;
+
+	private Path sourcePath;
+	private Path targetPath;
+	private Path storagePath;
+	private Storage storage;
+
+	@Setup(Level.Trial)
+	public void createStorage() throws IOException, StorageException {
+		sourcePath = Files.createTempDirectory("storage-benchmark-source");
+		Trees.generate(sourcePath, tree.files, tree.fileSize, tree.filesPerDirectory);
+		targetPath = Files.createTempDirectory("storage-benchmark-target");
+
+		storagePath = Files.createTempDirectory("storage-benchmark");
+		storage = new VanillaStorage(storagePath, new VanillaConfiguration().setCopyParallelism(copyParallelism));
+		storage.copyToWorkspace(FROM_ADDRESS, Storage.Workspace.KEEP, sourcePath, null);
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteStorage() throws IOException {
+		Trees.delete(storagePath);
+		Trees.delete(targetPath);
+		Trees.delete(sourcePath);
+	}
+
+	@Setup(Level.Invocation)
+	public void clearDestinations() throws IOException, StorageException {
+		Trees.delete(storage.getWorkspacePath(TO_ADDRESS, Storage.Workspace.KEEP));
+		Trees.delete(targetPath);
+		Files.createDirectories(targetPath);
+	}
+
+	@Benchmark
+	public void copyToWorkspace() throws StorageException {
+		storage.copyToWorkspace(TO_ADDRESS, Storage.Workspace.KEEP, sourcePath, null);
+	}
+
+	@Benchmark
+	public void copyFromWorkspace() throws StorageException {
+		storage.copyFromWorkspace(FROM_ADDRESS, Storage.Workspace.KEEP, null, targetPath);
+	}
+}
@@ -0,0 +1,89 @@
+package cz.cuni.mff.d3s.been.util.storage.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+/** Time to list all children of a wide address. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListBenchmark {
+
+	private static final List<String> ADDRESS = Arrays.asList("wide");
+	private static final int PAGE_SIZE = 1000;
+
+	/** Number of children of the listed address. */
+	@Param({ "1000", "100000" })
+	public int width;
+
+	private Path storagePath;
+	private Storage storage;
+
+	@Setup(Level.Trial)
+	public void createStorage() throws IOException, StorageException {
+		storagePath = Files.createTempDirectory("storage-benchmark");
+		storage = new VanillaStorage(storagePath);
+
+		// Children are created directly, going through the storage adds nothing to what is measured.
+		Path basePath = storagePath.resolve(ADDRESS.get(0));
+		for (int index = 0; index < width; index ++) Files.createDirectories(basePath.resolve("child" + index));
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteStorage() throws IOException {
+		Trees.delete(storagePath);
+	}
+
+	@Benchmark
+	public int list() throws StorageException {
+		int count = 0;
+		for (String item : storage.list(ADDRESS)) count += item.length();
+		return count;
+	}
+
+	@Benchmark
+	public long listStream() throws StorageException {
+		try (Stream<String> items = storage.listStream(ADDRESS)) {
+			return items.count();
+		}
+	}
+
+	@Benchmark
+	public int listPages() throws StorageException {
+		int count = 0;
+		String continuation = null;
+		do {
+			ListPage page = storage.listPage(ADDRESS, continuation, PAGE_SIZE);
+			count += page.getItems().size();
+			continuation = page.getContinuation();
+		} while (continuation != null);
+		return count;
+	}
+}
@@ -0,0 +1,115 @@
+package cz.cuni.mff.d3s.been.util.storage.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaConfiguration;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+/** Throughput of reading and changing address status.
+ * <p>
+ * Each thread works with its own address, so the multi threaded variants
+ * measure contention on shared structures rather than on one status.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatusBenchmark {
+
+	private static final int THREADS = 8;
+
+	/** Number of address elements. */
+	@Param({ "1", "8" })
+	public int depth;
+
+	@Param({ "FILES", "TABLE" })
+	public VanillaConfiguration.StatusMode statusMode;
+
+	private Path storagePath;
+	private Storage storage;
+	private final AtomicInteger threads = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void createStorage() throws IOException, StorageException {
+		storagePath = Files.createTempDirectory("storage-benchmark");
+		storage = new VanillaStorage(storagePath, new VanillaConfiguration().setStatusMode(statusMode));
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteStorage() throws IOException {
+		Trees.delete(storagePath);
+	}
+
+	/** Address of one benchmark thread. */
+	@State(Scope.Thread)
+	public static class Address {
+
+		List<String> address;
+		Status status;
+
+		@Setup(Level.Trial)
+		public void createAddress(StatusBenchmark benchmark) throws StorageException {
+			address = new ArrayList<String>();
+			for (int level = 1; level < benchmark.depth; level ++) address.add("level" + level);
+			address.add("thread" + benchmark.threads.getAndIncrement());
+
+			status = Status.DONE;
+			benchmark.storage.compareAndSetStatus(address, Status.NONE, status);
+		}
+	}
+
+	private boolean toggleStatus(Address address) throws StorageException {
+		Status next = (address.status == Status.DONE) ? Status.BUSY : Status.DONE;
+		boolean changed = storage.compareAndSetStatus(address.address, address.status, next);
+		address.status = next;
+		return changed;
+	}
+
+	@Benchmark
+	public Status getStatus(Address address) throws StorageException {
+		return storage.getStatus(address.address);
+	}
+
+	@Benchmark
+	@Threads(THREADS)
+	public Status getStatusThreads(Address address) throws StorageException {
+		return storage.getStatus(address.address);
+	}
+
+	@Benchmark
+	public boolean compareAndSetStatus(Address address) throws StorageException {
+		return toggleStatus(address);
+	}
+
+	@Benchmark
+	@Threads(THREADS)
+	public boolean compareAndSetStatusThreads(Address address) throws StorageException {
+		return toggleStatus(address);
+	}
+}
@@ -0,0 +1,38 @@
+package cz.cuni.mff.d3s.been.util.storage.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Runs the storage benchmarks.
+ * <p>
+ * Accepts the usual JMH command line options. Unless told otherwise, results are
+ * written as JSON to {@value #DEFAULT_RESULT}, so that runs on different commits
+ * can be compared, for example {@code java -jar benchmarks.jar -rff result-<commit>.json}.
+ */
+public final class StorageBenchmarkRunner {
+
+	private static final String DEFAULT_RESULT = "storage-benchmark.json";
+
+	private StorageBenchmarkRunner() {
+	}
+
+	public static void main(String [] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+		if (commandLine.shouldList()) {
+			new Runner(commandLine).list();
+			return;
+		}
+
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+		if (!commandLine.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+		if (!commandLine.getResult().hasValue()) options.result(DEFAULT_RESULT);
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,68 @@
+package cz.cuni.mff.d3s.been.util.storage.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/** Creates and deletes directory trees used by the benchmarks. */
+final class Trees {
+
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private Trees() {
+	}
+
+	/** Generates a tree of files with random content.
+	 *
+	 * @param root directory to generate into
+	 * @param files number of files
+	 * @param fileSize size of each file in bytes
+	 * @param filesPerDirectory number of files in each subdirectory
+	 * @throws IOException
+	 */
+	static void generate(Path root, int files, long fileSize, int filesPerDirectory) throws IOException {
+		// Random content so that file systems cannot compress or deduplicate it.
+		byte [] buffer = new byte [(int) Math.min(fileSize, WRITE_BUFFER_SIZE)];
+		Random random = new Random(files);
+		random.nextBytes(buffer);
+
+		for (int index = 0; index < files; index ++) {
+			Path directory = root.resolve("directory" + (index / filesPerDirectory));
+			Files.createDirectories(directory);
+			try (OutputStream stream = Files.newOutputStream(directory.resolve("file" + index))) {
+				for (long written = 0; written < fileSize; written += buffer.length) {
+					stream.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+				}
+			}
+		}
+	}
+
+	/** Deletes a directory tree if it exists.
+	 *
+	 * @param path directory to delete
+	 * @throws IOException
+	 */
+	static void delete(Path path) throws IOException {
+		if (!Files.exists(path)) return;
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				if (e != null) throw e;
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,398 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.CopyMode;
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+import cz.cuni.mff.d3s.been.util.storage.Storage.SyncOption;
+import cz.cuni.mff.d3s.been.util.storage.Storage.Workspace;
+
+/** Asynchronous access to a storage.
+ * <p>
+ * Operations run on a bounded I/O executor and return futures, which complete
+ * exceptionally with {@link StorageException} when the operation fails.
+ * When the executor is saturated, submitting blocks the caller until
+ * an operation finishes, which keeps the number of queued operations bounded.
+ * Callers that must not block, such as event loop threads, should therefore
+ * limit their own outstanding operations below the concurrency. An operation
+ * gives up its place before its future completes, so callbacks of the future
+ * can submit further operations without waiting for themselves.
+ * <p>
+ * Addresses and paths passed in must not be modified until the operation completes.
+ */
+public class AsyncStorage implements Closeable {
+
+	private Storage storage;
+	private ExecutorService executor;
+	private Semaphore permits;
+
+	/** Creates asynchronous access with a fixed number of platform threads.
+	 *
+	 * @param argStorage storage to access
+	 * @param argThreads number of I/O threads
+	 * @param argQueueLength number of operations that can wait for a thread
+	 */
+	public AsyncStorage(Storage argStorage, int argThreads, int argQueueLength) {
+		this(argStorage, newPlatformExecutor(argThreads), argThreads + argQueueLength);
+	}
+
+	/** Creates asynchronous access with a given executor.
+	 *
+	 * @param argStorage storage to access
+	 * @param argExecutor executor to run operations on, shut down on close
+	 * @param argConcurrency maximum number of operations submitted and not yet finished
+	 */
+	public AsyncStorage(Storage argStorage, ExecutorService argExecutor, int argConcurrency) {
+		storage = argStorage;
+		executor = argExecutor;
+		permits = new Semaphore(argConcurrency, true);
+	}
+
+	/** Creates asynchronous access that runs each operation in a virtual thread.
+	 * <p>
+	 * Virtual threads are used when the runtime provides them, platform threads otherwise.
+	 *
+	 * @param storage storage to access
+	 * @param concurrency maximum number of operations running at once
+	 * @return asynchronous storage access
+	 */
+	public static AsyncStorage withVirtualThreads(Storage storage, int concurrency) {
+		ExecutorService executor;
+		try {
+			// Looked up reflectively because the code is compiled for runtimes without virtual threads.
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			executor = (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			executor = newPlatformExecutor(concurrency);
+		}
+		return new AsyncStorage(storage, executor, concurrency);
+	}
+
+	private static ExecutorService newPlatformExecutor(int threads) {
+		final AtomicInteger counter = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "storage-io-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		return executor;
+	}
+
+	/*****************************************************************************/
+
+	private interface StorageCall<T> {
+		T call() throws StorageException;
+	}
+
+	private <T> CompletableFuture<T> submit(final StorageCall<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(new StorageException("Interrupted while submitting storage operation.", e));
+			return future;
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					T result;
+					try {
+						result = call.call();
+					} catch (StorageException | RuntimeException e) {
+						permits.release();
+						future.completeExceptionally(e);
+						return;
+					}
+					// Released before completing, callbacks run here and might submit and block.
+					permits.release();
+					future.complete(result);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			future.completeExceptionally(new StorageException("Storage operation rejected.", e));
+		}
+
+		return future;
+	}
+
+	/*****************************************************************************/
+
+	public CompletableFuture<Status> getStatus(final Iterable<String> address) {
+		return submit(new StorageCall<Status>() {
+			@Override
+			public Status call() throws StorageException {
+				return storage.getStatus(address);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> compareAndSetStatus(final Iterable<String> address, final Status oldStatus, final Status newStatus) {
+		return submit(new StorageCall<Boolean>() {
+			@Override
+			public Boolean call() throws StorageException {
+				return storage.compareAndSetStatus(address, oldStatus, newStatus);
+			}
+		});
+	}
+
+	public CompletableFuture<Boolean> compareAndSetStatuses(final List<StatusTransition> transitions) {
+		return submit(new StorageCall<Boolean>() {
+			@Override
+			public Boolean call() throws StorageException {
+				return storage.compareAndSetStatuses(transitions);
+			}
+		});
+	}
+
+	/** Waits until the status of an address satisfies a predicate.
+	 * <p>
+	 * The wait occupies an I/O thread, the timeout should therefore be short
+	 * unless the executor runs virtual threads.
+	 *
+	 * @see Storage#waitForStatus(Iterable, Predicate, long)
+	 */
+	public CompletableFuture<Status> waitForStatus(final Iterable<String> address, final Predicate<Status> predicate, final long timeoutMillis) {
+		return submit(new StorageCall<Status>() {
+			@Override
+			public Status call() throws StorageException {
+				return storage.waitForStatus(address, predicate, timeoutMillis);
+			}
+		});
+	}
+
+	public CompletableFuture<List<Status>> getStatuses(final Iterable<? extends Iterable<String>> addresses) {
+		return submit(new StorageCall<List<Status>>() {
+			@Override
+			public List<Status> call() throws StorageException {
+				return storage.getStatuses(addresses);
+			}
+		});
+	}
+
+	public CompletableFuture<Iterable<List<String>>> findByStatus(final Iterable<String> address, final Set<Status> statuses) {
+		return submit(new StorageCall<Iterable<List<String>>>() {
+			@Override
+			public Iterable<List<String>> call() throws StorageException {
+				return storage.findByStatus(address, statuses);
+			}
+		});
+	}
+
+	public CompletableFuture<List<WorkspaceUsage>> getUsage(final Iterable<String> address) {
+		return submit(new StorageCall<List<WorkspaceUsage>>() {
+			@Override
+			public List<WorkspaceUsage> call() throws StorageException {
+				return storage.getUsage(address);
+			}
+		});
+	}
+
+	public CompletableFuture<Path> getWorkspacePath(final Iterable<String> address, final Workspace workspace) {
+		return submit(new StorageCall<Path>() {
+			@Override
+			public Path call() throws StorageException {
+				return storage.getWorkspacePath(address, workspace);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) {
+		return copyToWorkspace(address, workspace, source, destination, null);
+	}
+
+	/** Copies files from elsewhere to storage workspace.
+	 *
+	 * @param mode copy mode, null for the storage default
+	 * @see Storage#copyToWorkspace(Iterable, Workspace, Path, Path, CopyMode)
+	 */
+	public CompletableFuture<Void> copyToWorkspace(final Iterable<String> address, final Workspace workspace, final Path source, final Path destination, final CopyMode mode) {
+		return submit(new StorageCall<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				if (mode == null) storage.copyToWorkspace(address, workspace, source, destination);
+				else storage.copyToWorkspace(address, workspace, source, destination, mode);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) {
+		return copyFromWorkspace(address, workspace, source, destination, null);
+	}
+
+	/** Copies files from storage workspace to elsewhere.
+	 *
+	 * @param mode copy mode, null for the storage default
+	 * @see Storage#copyFromWorkspace(Iterable, Workspace, Path, Path, CopyMode)
+	 */
+	public CompletableFuture<Void> copyFromWorkspace(final Iterable<String> address, final Workspace workspace, final Path source, final Path destination, final CopyMode mode) {
+		return submit(new StorageCall<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				if (mode == null) storage.copyFromWorkspace(address, workspace, source, destination);
+				else storage.copyFromWorkspace(address, workspace, source, destination, mode);
+				return null;
+			}
+		});
+	}
+
+	/** Synchronizes files from elsewhere to storage workspace.
+	 *
+	 * @see Storage#syncToWorkspace(Iterable, Workspace, Path, Path, Set)
+	 */
+	public CompletableFuture<CopyStatistics> syncToWorkspace(final Iterable<String> address, final Workspace workspace, final Path source, final Path destination, final Set<SyncOption> options) {
+		return submit(new StorageCall<CopyStatistics>() {
+			@Override
+			public CopyStatistics call() throws StorageException {
+				return storage.syncToWorkspace(address, workspace, source, destination, options);
+			}
+		});
+	}
+
+	/** Synchronizes files from storage workspace to elsewhere.
+	 *
+	 * @see Storage#syncFromWorkspace(Iterable, Workspace, Path, Path, Set)
+	 */
+	public CompletableFuture<CopyStatistics> syncFromWorkspace(final Iterable<String> address, final Workspace workspace, final Path source, final Path destination, final Set<SyncOption> options) {
+		return submit(new StorageCall<CopyStatistics>() {
+			@Override
+			public CopyStatistics call() throws StorageException {
+				return storage.syncFromWorkspace(address, workspace, source, destination, options);
+			}
+		});
+	}
+
+	/** Streams storage workspace to a stream as a tar archive.
+	 * <p>
+	 * The stream is written on an I/O thread and must not be used until the operation completes.
+	 *
+	 * @see Storage#exportWorkspace(Iterable, Workspace, Path, OutputStream)
+	 */
+	public CompletableFuture<Void> exportWorkspace(final Iterable<String> address, final Workspace workspace, final Path source, final OutputStream stream) {
+		return submit(new StorageCall<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				storage.exportWorkspace(address, workspace, source, stream);
+				return null;
+			}
+		});
+	}
+
+	/** Unpacks a tar archive from a stream to storage workspace.
+	 * <p>
+	 * The stream is read on an I/O thread and must not be used until the operation completes.
+	 *
+	 * @see Storage#importWorkspace(Iterable, Workspace, InputStream, Path)
+	 */
+	public CompletableFuture<Void> importWorkspace(final Iterable<String> address, final Workspace workspace, final InputStream stream, final Path destination) {
+		return submit(new StorageCall<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				storage.importWorkspace(address, workspace, stream, destination);
+				return null;
+			}
+		});
+	}
+
+	/** Copies the content of one workspace to another, possibly of another address.
+	 *
+	 * @see Storage#cloneWorkspace(Iterable, Workspace, Iterable, Workspace)
+	 */
+	public CompletableFuture<Void> cloneWorkspace(final Iterable<String> sourceAddress, final Workspace sourceWorkspace, final Iterable<String> destinationAddress, final Workspace destinationWorkspace) {
+		return submit(new StorageCall<Void>() {
+			@Override
+			public Void call() throws StorageException {
+				storage.cloneWorkspace(sourceAddress, sourceWorkspace, destinationAddress, destinationWorkspace);
+				return null;
+			}
+		});
+	}
+
+	/** Checks the files of a workspace against its manifest.
+	 *
+	 * @see Storage#verifyWorkspace(Iterable, Workspace)
+	 */
+	public CompletableFuture<WorkspaceVerification> verifyWorkspace(final Iterable<String> address, final Workspace workspace) {
+		return submit(new StorageCall<WorkspaceVerification>() {
+			@Override
+			public WorkspaceVerification call() throws StorageException {
+				return storage.verifyWorkspace(address, workspace);
+			}
+		});
+	}
+
+	public CompletableFuture<Iterable<String>> list(final Iterable<String> address) {
+		return submit(new StorageCall<Iterable<String>>() {
+			@Override
+			public Iterable<String> call() throws StorageException {
+				return storage.list(address);
+			}
+		});
+	}
+
+	/** Lists addresses below an address as a stream.
+	 * <p>
+	 * Only opening the listing runs on an I/O thread, the stream is consumed
+	 * by the caller and must be closed.
+	 *
+	 * @see Storage#listStream(Iterable)
+	 */
+	public CompletableFuture<Stream<String>> listStream(final Iterable<String> address) {
+		return submit(new StorageCall<Stream<String>>() {
+			@Override
+			public Stream<String> call() throws StorageException {
+				return storage.listStream(address);
+			}
+		});
+	}
+
+	public CompletableFuture<ListPage> listPage(final Iterable<String> address, final String continuation, final int limit) {
+		return submit(new StorageCall<ListPage>() {
+			@Override
+			public ListPage call() throws StorageException {
+				return storage.listPage(address, continuation, limit);
+			}
+		});
+	}
+
+	/*****************************************************************************/
+
+	/** Stops accepting operations and waits for submitted ones to finish. */
+	@Override
+	public void close() {
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+				// Keep waiting, copies of large workspaces take a while.
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
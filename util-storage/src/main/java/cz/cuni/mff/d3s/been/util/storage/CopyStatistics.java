@@ -0,0 +1,42 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+/** Summary of a copy or synchronization operation. */
+public class CopyStatistics {
+
+	private long filesTransferred;
+	private long bytesTransferred;
+	private long filesSkipped;
+	private long filesDeleted;
+
+	public CopyStatistics(long argFilesTransferred, long argBytesTransferred, long argFilesSkipped, long argFilesDeleted) {
+		filesTransferred = argFilesTransferred;
+		bytesTransferred = argBytesTransferred;
+		filesSkipped = argFilesSkipped;
+		filesDeleted = argFilesDeleted;
+	}
+
+	/** Returns the number of files copied or linked. */
+	public long getFilesTransferred() {
+		return filesTransferred;
+	}
+
+	/** Returns the size of files copied or linked. */
+	public long getBytesTransferred() {
+		return bytesTransferred;
+	}
+
+	/** Returns the number of files skipped because the destination was up to date. */
+	public long getFilesSkipped() {
+		return filesSkipped;
+	}
+
+	/** Returns the number of destination files and directories deleted because the source did not have them. */
+	public long getFilesDeleted() {
+		return filesDeleted;
+	}
+
+	@Override
+	public String toString() {
+		return filesTransferred + " files (" + bytesTransferred + " bytes) transferred, " + filesSkipped + " skipped, " + filesDeleted + " deleted";
+	}
+}
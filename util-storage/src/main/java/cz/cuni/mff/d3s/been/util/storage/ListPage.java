@@ -0,0 +1,30 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+import java.util.List;
+
+/** One page of a storage listing.
+ *
+ * @see Storage#listPage(Iterable, String, int)
+ */
+public class ListPage {
+
+	private List<String> items;
+	private String continuation;
+
+	public ListPage(List<String> argItems, String argContinuation) {
+		items = argItems;
+		continuation = argContinuation;
+	}
+
+	public List<String> getItems() {
+		return items;
+	}
+
+	/** Returns the token for listing the next page.
+	 *
+	 * @return continuation token, null when this is the last page
+	 */
+	public String getContinuation() {
+		return continuation;
+	}
+}
@@ -0,0 +1,32 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+
+/** Expected and new status of one address in a batch status change.
+ *
+ * @see Storage#compareAndSetStatuses(java.util.List)
+ */
+public class StatusTransition {
+
+	private Iterable<String> address;
+	private Status oldStatus;
+	private Status newStatus;
+
+	public StatusTransition(Iterable<String> argAddress, Status argOldStatus, Status argNewStatus) {
+		address = argAddress;
+		oldStatus = argOldStatus;
+		newStatus = argNewStatus;
+	}
+
+	public Iterable<String> getAddress() {
+		return address;
+	}
+
+	public Status getOldStatus() {
+		return oldStatus;
+	}
+
+	public Status getNewStatus() {
+		return newStatus;
+	}
+}
@@ -1,6 +1,12 @@
 package cz.cuni.mff.d3s.been.util.storage;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public interface Storage {
 
@@ -26,9 +32,78 @@ public interface Storage {
 		PACK 
 	};
 
+	enum CopyMode {
+		/** Copies file content. */
+		COPY,
+		/** Hard links files where possible and copies file content otherwise.
+		 * Linked files share content with their source, which therefore must not be modified in place afterwards. */
+		LINK
+	};
+
+	enum SyncOption {
+		/** Compares file content instead of trusting matching size and modification time. */
+		CONTENT,
+		/** Deletes destination files that the source does not have. */
+		DELETE
+	};
+
 	Status getStatus(Iterable<String> address) throws StorageException;
 	boolean compareAndSetStatus(Iterable<String> address, Status oldStatus, Status newStatus) throws StorageException;
 
+	/** Changes statuses of many addresses atomically.
+	 * <p>
+	 * Either all addresses have their expected statuses and all change, or none changes.
+	 * A batch interrupted by a crash is completed when the storage is next used.
+	 *
+	 * @param transitions status transitions, at most one for each address
+	 * @return true when the statuses were changed
+	 * @throws StorageException
+	 */
+	boolean compareAndSetStatuses(List<StatusTransition> transitions) throws StorageException;
+
+	/** Waits until the status of an address satisfies a predicate.
+	 * <p>
+	 * Returns immediately when the current status satisfies the predicate.
+	 *
+	 * @param address storage address
+	 * @param predicate condition on the status
+	 * @param timeoutMillis maximum time to wait
+	 * @return status satisfying the predicate, null when the wait timed out
+	 * @throws StorageException
+	 */
+	Status waitForStatus(Iterable<String> address, Predicate<Status> predicate, long timeoutMillis) throws StorageException;
+
+	/** Reads statuses of many addresses at once.
+	 * <p>
+	 * Unlike {@link #getStatus(Iterable)}, this does not create the addresses.
+	 *
+	 * @param addresses storage addresses
+	 * @return statuses in the order of the addresses
+	 * @throws StorageException
+	 */
+	List<Status> getStatuses(Iterable<? extends Iterable<String>> addresses) throws StorageException;
+
+	/** Finds addresses with given statuses.
+	 * <p>
+	 * Searches the address and all addresses below it.
+	 *
+	 * @param address storage address to search from
+	 * @param statuses statuses to look for
+	 * @return matching addresses
+	 * @throws StorageException
+	 */
+	Iterable<List<String>> findByStatus(Iterable<String> address, Set<Status> statuses) throws StorageException;
+
+	/** Returns disk usage of workspaces.
+	 * <p>
+	 * Covers existing workspaces of the address and all addresses below it.
+	 *
+	 * @param address storage address to start from
+	 * @return usage of each workspace
+	 * @throws StorageException
+	 */
+	List<WorkspaceUsage> getUsage(Iterable<String> address) throws StorageException;
+
 	Path getWorkspacePath(Iterable<String> address, Workspace workspace) throws StorageException;
 	
 	/** Copies files from elsewhere to storage workspace.
@@ -44,6 +119,18 @@ public interface Storage {
 	 */
 	void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException;
 
+	/** Copies files from elsewhere to storage workspace using given copy mode.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param source source path, null for current directory
+	 * @param destination workspace relative destination path, null for workspace directory
+	 * @param mode copy mode
+	 * @throws StorageException
+	 * @see #copyToWorkspace(Iterable, Workspace, Path, Path)
+	 */
+	void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException;
+
 	/** Copies files from storage workspace to elsewhere.
 	 * <p>
 	 * Source can be either a file or a directory.
@@ -57,5 +144,127 @@ public interface Storage {
 	 */
 	void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException;
 
+	/** Copies files from storage workspace to elsewhere using given copy mode.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param source workspace relative source path, null for workspace directory
+	 * @param destination destination path, null for current directory
+	 * @param mode copy mode
+	 * @throws StorageException
+	 * @see #copyFromWorkspace(Iterable, Workspace, Path, Path)
+	 */
+	void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException;
+
+	/** Synchronizes files from elsewhere to storage workspace.
+	 * <p>
+	 * Works like {@link #copyToWorkspace(Iterable, Workspace, Path, Path)} but skips files
+	 * whose destination has the same size and modification time, or content when requested.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param source source path, null for current directory
+	 * @param destination workspace relative destination path, null for workspace directory
+	 * @param options synchronization options
+	 * @return statistics of the synchronization
+	 * @throws StorageException
+	 */
+	CopyStatistics syncToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException;
+
+	/** Synchronizes files from storage workspace to elsewhere.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param source workspace relative source path, null for workspace directory
+	 * @param destination destination path, null for current directory
+	 * @param options synchronization options
+	 * @return statistics of the synchronization
+	 * @throws StorageException
+	 * @see #syncToWorkspace(Iterable, Workspace, Path, Path, Set)
+	 */
+	CopyStatistics syncFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException;
+
+	/** Writes files from storage workspace to a stream as a tar archive.
+	 * <p>
+	 * Source can be either a file or a directory, a directory is archived by its content.
+	 * The archive is streamed without intermediate files and the stream is not closed.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param source workspace relative source path, null for workspace directory
+	 * @param stream stream to write the archive to
+	 * @throws StorageException
+	 */
+	void exportWorkspace(Iterable<String> address, Workspace workspace, Path source, OutputStream stream) throws StorageException;
+
+	/** Unpacks a tar archive from a stream to storage workspace.
+	 * <p>
+	 * The stream is read to the end of the archive but not closed.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param stream stream to read the archive from
+	 * @param destination workspace relative destination path, null for workspace directory
+	 * @throws StorageException
+	 * @see #exportWorkspace(Iterable, Workspace, Path, OutputStream)
+	 */
+	void importWorkspace(Iterable<String> address, Workspace workspace, InputStream stream, Path destination) throws StorageException;
+
+	/** Copies the content of one workspace to another, possibly of another address.
+	 * <p>
+	 * Files are hard linked where possible, as with {@link CopyMode#LINK}, so the clone
+	 * takes little time and space but its files must not be modified in place.
+	 * A workspace cannot be cloned onto itself.
+	 *
+	 * @param sourceAddress storage address to clone from
+	 * @param sourceWorkspace storage workspace to clone from
+	 * @param destinationAddress storage address to clone to
+	 * @param destinationWorkspace storage workspace to clone to
+	 * @throws StorageException
+	 */
+	void cloneWorkspace(Iterable<String> sourceAddress, Workspace sourceWorkspace, Iterable<String> destinationAddress, Workspace destinationWorkspace) throws StorageException;
+
+	/** Checks the files of a workspace against the manifest kept when files were copied into it.
+	 * <p>
+	 * File content is checked in parallel. Only storages configured to keep manifests
+	 * have them, verifying a workspace without a manifest fails.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @return differences between the workspace and its manifest
+	 * @throws StorageException
+	 */
+	WorkspaceVerification verifyWorkspace(Iterable<String> address, Workspace workspace) throws StorageException;
+
 	Iterable<String> list(Iterable<String> address) throws StorageException;
+
+	/** Lists addresses below an address lazily.
+	 * <p>
+	 * The stream holds the directory open and must be closed.
+	 * I/O errors during iteration are thrown as {@link java.io.UncheckedIOException}.
+	 *
+	 * @param address storage address
+	 * @return stream of address elements
+	 * @throws StorageException
+	 */
+	Stream<String> listStream(Iterable<String> address) throws StorageException;
+
+	/** Lists one page of addresses below an address.
+	 * <p>
+	 * Pages follow the directory order, which only stays stable while the directory
+	 * is not modified. A continuation that no longer matches the directory fails.
+	 * <p>
+	 * Directories cannot be read from a position, so each page reads the entries of
+	 * all previous pages again. Listing a directory of n entries page by page
+	 * therefore costs time quadratic in n divided by the page size, large
+	 * directories are better listed by {@link #listStream(Iterable)}.
+	 *
+	 * @param address storage address
+	 * @param continuation token from the previous page, null for the first page
+	 * @param limit maximum number of items in the page, positive
+	 * @return page of address elements
+	 * @throws StorageException
+	 * @throws IllegalArgumentException when the limit is not positive
+	 */
+	ListPage listPage(Iterable<String> address, String continuation, int limit) throws StorageException;
 }
@@ -0,0 +1,21 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+/** Receives internal events of a storage, for example to record metrics.
+ * <p>
+ * Called on the threads doing the storage operations, so implementations must be thread safe and fast.
+ */
+public interface StorageObserver {
+
+	/** Reports that a status lock was acquired.
+	 *
+	 * @param waitNanos time taken to acquire the lock
+	 */
+	void statusLocked(long waitNanos);
+
+	/** Reports that a copy or synchronization completed.
+	 *
+	 * @param files number of files copied or linked
+	 * @param bytes size of files copied or linked
+	 */
+	void copied(long files, long bytes);
+}
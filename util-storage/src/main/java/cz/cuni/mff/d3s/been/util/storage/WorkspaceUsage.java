@@ -0,0 +1,49 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+import java.util.List;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Workspace;
+
+/** Disk usage of one workspace of one address.
+ *
+ * @see Storage#getUsage(Iterable)
+ */
+public class WorkspaceUsage {
+
+	private List<String> address;
+	private Workspace workspace;
+	private long bytes;
+	private long files;
+	private long lastAccess;
+
+	public WorkspaceUsage(List<String> argAddress, Workspace argWorkspace, long argBytes, long argFiles, long argLastAccess) {
+		address = argAddress;
+		workspace = argWorkspace;
+		bytes = argBytes;
+		files = argFiles;
+		lastAccess = argLastAccess;
+	}
+
+	public List<String> getAddress() {
+		return address;
+	}
+
+	public Workspace getWorkspace() {
+		return workspace;
+	}
+
+	/** Returns the total size of files in the workspace, of the archive when the workspace is packed. */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/** Returns the number of files in the workspace, directories are not counted. */
+	public long getFiles() {
+		return files;
+	}
+
+	/** Returns the time the workspace was last used, in milliseconds since the epoch. */
+	public long getLastAccess() {
+		return lastAccess;
+	}
+}
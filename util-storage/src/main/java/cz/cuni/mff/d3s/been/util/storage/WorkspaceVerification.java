@@ -0,0 +1,71 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+import java.util.List;
+
+/** Outcome of checking a workspace against its manifest.
+ * <p>
+ * Files are named by their workspace relative path with slash separators.
+ * A file whose content differs from the manifest is modified when its
+ * modification time differs too, which means it was written after the
+ * manifest, and corrupted otherwise.
+ *
+ * @see Storage#verifyWorkspace(Iterable, Storage.Workspace)
+ */
+public class WorkspaceVerification {
+
+	private List<String> missing;
+	private List<String> unexpected;
+	private List<String> modified;
+	private List<String> corrupted;
+	private long filesVerified;
+	private long bytesVerified;
+
+	public WorkspaceVerification(List<String> argMissing, List<String> argUnexpected, List<String> argModified, List<String> argCorrupted, long argFilesVerified, long argBytesVerified) {
+		missing = argMissing;
+		unexpected = argUnexpected;
+		modified = argModified;
+		corrupted = argCorrupted;
+		filesVerified = argFilesVerified;
+		bytesVerified = argBytesVerified;
+	}
+
+	/** Returns files in the manifest that are not in the workspace. */
+	public List<String> getMissing() {
+		return missing;
+	}
+
+	/** Returns files in the workspace that are not in the manifest. */
+	public List<String> getUnexpected() {
+		return unexpected;
+	}
+
+	/** Returns files whose content and modification time differ from the manifest. */
+	public List<String> getModified() {
+		return modified;
+	}
+
+	/** Returns files whose content differs from the manifest although their modification time does not. */
+	public List<String> getCorrupted() {
+		return corrupted;
+	}
+
+	/** Returns the number of files whose content was checked. */
+	public long getFilesVerified() {
+		return filesVerified;
+	}
+
+	/** Returns the size of files whose content was checked. */
+	public long getBytesVerified() {
+		return bytesVerified;
+	}
+
+	/** Tells whether the workspace matches its manifest exactly. */
+	public boolean isIntact() {
+		return missing.isEmpty() && unexpected.isEmpty() && modified.isEmpty() && corrupted.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return filesVerified + " files (" + bytesVerified + " bytes) verified, " + missing.size() + " missing, " + unexpected.size() + " unexpected, " + modified.size() + " modified, " + corrupted.size() + " corrupted";
+	}
+}
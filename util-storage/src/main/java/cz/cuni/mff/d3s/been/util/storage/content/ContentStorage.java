@@ -0,0 +1,212 @@
+package cz.cuni.mff.d3s.been.util.storage.content;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.Set;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.FileCopier;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+/** Vanilla storage that keeps workspace file content in a shared object directory.
+ * <p>
+ * Files copied into a workspace are hashed and stored once under the objects
+ * directory, the workspace only holds hard links to the objects. The link count
+ * of an object therefore serves as its reference count, an object with no links
+ * from workspaces can be reclaimed by {@link #pruneObjects()}.
+ * <p>
+ * Objects are shared, including their attributes, and are made read only.
+ * Tasks must not modify files copied into workspaces in place. A file whose
+ * modification time or permissions differ from those of the object with the
+ * same content is copied rather than linked, so that workspaces keep the
+ * attributes synchronization compares, the same holds when an object has
+ * as many links as the file system allows.
+ */
+public class ContentStorage extends VanillaStorage {
+
+	private static final String PATH_OBJECTS = ".objects";
+	private static final String PATH_INCOMING = ".incoming";
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int HASH_BUFFER_SIZE = 65536;
+
+	private static final Set<PosixFilePermission> WRITE_PERMISSIONS = EnumSet.of(PosixFilePermission.OWNER_WRITE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE);
+
+	private Path objectsPath;
+	private Path incomingPath;
+
+	public ContentStorage(Path argStoragePath) throws StorageException {
+		this(argStoragePath, 1);
+	}
+
+	public ContentStorage(Path argStoragePath, int argCopyParallelism) throws StorageException {
+		super(argStoragePath, argCopyParallelism, CopyMode.COPY);
+
+		objectsPath = argStoragePath.resolve(PATH_OBJECTS);
+		incomingPath = objectsPath.resolve(PATH_INCOMING);
+
+		try {
+			Files.createDirectories(incomingPath);
+		} catch (IOException e) {
+			throw new StorageException("Failed to create object directory.", e);
+		}
+	}
+
+	/*****************************************************************************/
+
+	private static String hashFile(Path file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Hash algorithm not available.", e);
+		}
+
+		byte [] buffer = new byte [HASH_BUFFER_SIZE];
+		try (InputStream stream = Files.newInputStream(file)) {
+			int length;
+			while ((length = stream.read(buffer)) > 0) {
+				digest.update(buffer, 0, length);
+			}
+		}
+
+		StringBuilder hash = new StringBuilder();
+		for (byte value : digest.digest()) {
+			hash.append(String.format("%02x", value));
+		}
+		return hash.toString();
+	}
+
+	private Path getObjectPath(String hash) {
+		// Two character fan out keeps the object directories reasonably small.
+		return objectsPath.resolve(hash.substring(0, 2)).resolve(hash.substring(2));
+	}
+
+	/** Stores file content as an object unless an identical object exists.
+	 *
+	 * @param source file to store
+	 * @param objectPath object path derived from the file hash
+	 * @throws IOException
+	 */
+	private void storeObject(Path source, Path objectPath) throws IOException {
+		if (Files.exists(objectPath)) return;
+
+		// The object is assembled aside and renamed into place so that it never appears partially written.
+		Files.createDirectories(objectPath.getParent());
+		Path incomingFile = Files.createTempFile(incomingPath, null, null);
+		try {
+			Files.copy(source, incomingFile, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+			incomingFile.toFile().setWritable(false, false);
+			Files.move(incomingFile, objectPath, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(incomingFile);
+		}
+	}
+
+	/** Checks whether a file can be linked to an object without changing its attributes.
+	 * <p>
+	 * The object keeps the attributes of the file it was first stored from, a link
+	 * to it must present the same modification time for synchronization to skip the
+	 * file later, and the same permissions apart from writing, which objects never allow.
+	 *
+	 * @param source file to store
+	 * @param sourceAttributes attributes of the file to store
+	 * @param objectPath object with the same content
+	 * @return true when the file can be linked, false when it must be copied
+	 * @throws IOException
+	 */
+	private static boolean isShareable(Path source, BasicFileAttributes sourceAttributes, Path objectPath) throws IOException {
+		BasicFileAttributes objectAttributes = Files.readAttributes(objectPath, BasicFileAttributes.class);
+		if (objectAttributes.lastModifiedTime().toMillis() != sourceAttributes.lastModifiedTime().toMillis()) return false;
+
+		if (Files.getFileAttributeView(objectPath, PosixFileAttributeView.class) == null) return true;
+		Set<PosixFilePermission> sourcePermissions = EnumSet.noneOf(PosixFilePermission.class);
+		sourcePermissions.addAll(Files.getPosixFilePermissions(source));
+		sourcePermissions.removeAll(WRITE_PERMISSIONS);
+		return sourcePermissions.equals(Files.getPosixFilePermissions(objectPath));
+	}
+
+	private class ContentCopier extends FileCopier {
+
+		ContentCopier(Set<SyncOption> argSyncOptions) {
+			super(CopyMode.COPY, argSyncOptions);
+		}
+
+		@Override
+		protected void transferFile(Path source, BasicFileAttributes sourceAttributes, Path destination) throws IOException {
+			if (!sourceAttributes.isRegularFile()) {
+				super.transferFile(source, sourceAttributes, destination);
+				return;
+			}
+
+			Path objectPath = getObjectPath(hashFile(source));
+			Files.deleteIfExists(destination);
+
+			// Pruning can remove an unreferenced object between storing and linking, one retry is enough.
+			for (int attempt = 0 ; ; attempt ++) {
+				storeObject(source, objectPath);
+				try {
+					if (!isShareable(source, sourceAttributes, objectPath)) break;
+					Files.createLink(destination, objectPath);
+					return;
+				} catch (NoSuchFileException e) {
+					if (attempt > 0) throw e;
+				} catch (FileSystemException e) {
+					// Typically an object with too many links, the file gets its own copy.
+					break;
+				}
+			}
+			super.transferFile(source, sourceAttributes, destination);
+		}
+	}
+
+	@Override
+	protected FileCopier createWorkspaceCopier(CopyMode mode, Set<SyncOption> syncOptions) {
+		// Workspace content is always linked to objects, the copy mode does not matter.
+		return new ContentCopier(syncOptions);
+	}
+
+	/*****************************************************************************/
+
+	/** Removes objects that are not referenced from any workspace.
+	 *
+	 * @return number of objects removed
+	 * @throws StorageException
+	 */
+	public long pruneObjects() throws StorageException {
+		long count = 0;
+
+		try (DirectoryStream<Path> directories = Files.newDirectoryStream(objectsPath)) {
+			for (Path directory : directories) {
+				if (directory.equals(incomingPath)) continue;
+
+				try (DirectoryStream<Path> objects = Files.newDirectoryStream(directory)) {
+					for (Path object : objects) {
+						// The only remaining link is the object itself.
+						Integer links = (Integer) Files.getAttribute(object, "unix:nlink");
+						if (links == 1) {
+							Files.deleteIfExists(object);
+							count ++;
+						}
+					}
+				}
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			throw new StorageException("Failed to prune objects.", e);
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,107 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Publishes storage metrics as MXBeans.
+ * <p>
+ * Each storage is published under {@value #DOMAIN} with type {@code Storage}
+ * and the registered name. Attributes are read from a fresh snapshot each time.
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+
+	private static final String DOMAIN = "cz.cuni.mff.d3s.been.util.storage";
+
+	private final MBeanServer server;
+
+	public JmxMetricsRegistry() {
+		this(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/** Creates a registry publishing to a server.
+	 *
+	 * @param argServer MBean server to publish to
+	 */
+	public JmxMetricsRegistry(MBeanServer argServer) {
+		server = argServer;
+	}
+
+	/*****************************************************************************/
+
+	private static class StorageMetrics implements StorageMetricsMXBean {
+
+		private final MeteredStorage storage;
+
+		StorageMetrics(MeteredStorage argStorage) {
+			storage = argStorage;
+		}
+
+		@Override
+		public Map<String, OperationStatistics> getOperations() {
+			Map<String, OperationStatistics> operations = new LinkedHashMap<String, OperationStatistics>();
+			for (Map.Entry<StorageOperation, OperationStatistics> entry : storage.getSnapshot(false).getOperations().entrySet()) {
+				operations.put(entry.getKey().name(), entry.getValue());
+			}
+			return operations;
+		}
+
+		@Override
+		public OperationStatistics getStatusLockWait() {
+			return storage.getSnapshot(false).getStatusLockWait();
+		}
+
+		@Override
+		public long getFilesCopied() {
+			return storage.getSnapshot(false).getFilesCopied();
+		}
+
+		@Override
+		public long getBytesCopied() {
+			return storage.getSnapshot(false).getBytesCopied();
+		}
+
+		@Override
+		public void reset() {
+			storage.getSnapshot(true);
+		}
+	}
+
+	/** Returns the object name of a registered storage.
+	 *
+	 * @param name name used when registering
+	 * @return object name
+	 * @throws StorageException
+	 */
+	public static ObjectName getObjectName(String name) throws StorageException {
+		try {
+			return new ObjectName(DOMAIN + ":type=Storage,name=" + ObjectName.quote(name));
+		} catch (JMException e) {
+			throw new StorageException("Invalid metrics name.", e);
+		}
+	}
+
+	@Override
+	public void register(String name, MeteredStorage storage) throws StorageException {
+		try {
+			server.registerMBean(new StorageMetrics(storage), getObjectName(name));
+		} catch (JMException e) {
+			throw new StorageException("Failed to register storage metrics.", e);
+		}
+	}
+
+	@Override
+	public void unregister(String name) throws StorageException {
+		try {
+			server.unregisterMBean(getObjectName(name));
+		} catch (JMException e) {
+			throw new StorageException("Failed to unregister storage metrics.", e);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Histogram of latencies with buckets of bounded relative width.
+ * <p>
+ * Values below {@link #SUB_BUCKETS} have a bucket each, larger values share a bucket
+ * with values of the same magnitude and the same leading bits, so a bucket spans at
+ * most one sixteenth of its values. Recording is a few atomic additions without
+ * allocation or locking, suitable for every storage operation.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** Enough buckets for any non negative long. */
+	private static final int BUCKETS = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	/*****************************************************************************/
+
+	static int getBucket(long value) {
+		if (value < SUB_BUCKETS) return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/** Returns the lowest value of a bucket. */
+	static long getBucketStart(int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + subBucket) << (magnitude - SUB_BUCKET_BITS);
+	}
+
+	/** Records one value.
+	 *
+	 * @param value latency in nanoseconds
+	 * @param failed true when the operation failed
+	 */
+	void record(long value, boolean failed) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(getBucket(value));
+		sum.addAndGet(value);
+		if (failed) errors.incrementAndGet();
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) current = max.get();
+	}
+
+	/*****************************************************************************/
+
+	/** Returns statistics of the recorded values, optionally starting over.
+	 * <p>
+	 * Values recorded concurrently with a reset are counted either
+	 * before or after it, the statistics need not match exactly.
+	 *
+	 * @param reset true to clear the histogram
+	 * @return statistics of the values recorded since the last reset
+	 */
+	OperationStatistics getStatistics(boolean reset) {
+		long [] snapshot = new long [BUCKETS];
+		long count = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket ++) {
+			snapshot [bucket] = reset ? counts.getAndSet(bucket, 0) : counts.get(bucket);
+			count += snapshot [bucket];
+		}
+		long total = reset ? sum.getAndSet(0) : sum.get();
+		long highest = reset ? max.getAndSet(0) : max.get();
+		long failures = reset ? errors.getAndSet(0) : errors.get();
+
+		return new OperationStatistics(count, failures, (count > 0) ? total / count : 0, highest,
+				getPercentile(snapshot, count, highest, 0.5),
+				getPercentile(snapshot, count, highest, 0.9),
+				getPercentile(snapshot, count, highest, 0.99),
+				getPercentile(snapshot, count, highest, 0.999));
+	}
+
+	/** Returns the highest value of the bucket holding a percentile, which is never below the true value. */
+	private static long getPercentile(long [] snapshot, long count, long highest, double fraction) {
+		if (count == 0) return 0;
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket ++) {
+			seen += snapshot [bucket];
+			if (seen >= rank) {
+				long end = (bucket + 1 < BUCKETS) ? getBucketStart(bucket + 1) - 1 : Long.MAX_VALUE;
+				return Math.min(end, highest);
+			}
+		}
+		return highest;
+	}
+}
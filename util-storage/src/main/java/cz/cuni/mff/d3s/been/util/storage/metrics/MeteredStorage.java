@@ -0,0 +1,360 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.StatusTransition;
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.StorageObserver;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceUsage;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceVerification;
+
+/** Storage that records metrics of the operations of another storage.
+ * <p>
+ * Latency and failures of every operation are recorded for any storage. Time spent
+ * acquiring status locks and files and bytes copied are known only to the storage
+ * itself, they are recorded when the storage reports them to {@link #getObserver()},
+ * for example {@code vanillaStorage.setObserver(meteredStorage.getObserver())}.
+ * <p>
+ * Metrics are read as snapshots, optionally resetting them, and can be
+ * published through a {@link MetricsRegistry} such as {@link JmxMetricsRegistry}.
+ */
+public class MeteredStorage implements Storage {
+
+	private final Storage storage;
+
+	private final LatencyHistogram [] operations = new LatencyHistogram [StorageOperation.values().length];
+	private final LatencyHistogram statusLockWait = new LatencyHistogram();
+	private final AtomicLong filesCopied = new AtomicLong();
+	private final AtomicLong bytesCopied = new AtomicLong();
+
+	private final StorageObserver observer = new StorageObserver() {
+		@Override
+		public void statusLocked(long waitNanos) {
+			statusLockWait.record(waitNanos, false);
+		}
+
+		@Override
+		public void copied(long files, long bytes) {
+			filesCopied.addAndGet(files);
+			bytesCopied.addAndGet(bytes);
+		}
+	};
+
+	/** Creates storage recording metrics of another storage.
+	 *
+	 * @param argStorage storage to record metrics of
+	 */
+	public MeteredStorage(Storage argStorage) {
+		storage = argStorage;
+		for (int index = 0; index < operations.length; index ++) operations [index] = new LatencyHistogram();
+	}
+
+	/*****************************************************************************/
+
+	/** Returns the observer that records what the storage reports about itself.
+	 *
+	 * @return observer to register with the metered storage
+	 */
+	public StorageObserver getObserver() {
+		return observer;
+	}
+
+	/** Returns the metrics recorded since the last reset.
+	 *
+	 * @param reset true to start recording anew
+	 * @return metrics snapshot
+	 */
+	public MetricsSnapshot getSnapshot(boolean reset) {
+		Map<StorageOperation, OperationStatistics> statistics = new EnumMap<StorageOperation, OperationStatistics>(StorageOperation.class);
+		for (StorageOperation operation : StorageOperation.values()) {
+			statistics.put(operation, operations [operation.ordinal()].getStatistics(reset));
+		}
+		return new MetricsSnapshot(statistics, statusLockWait.getStatistics(reset),
+				reset ? filesCopied.getAndSet(0) : filesCopied.get(),
+				reset ? bytesCopied.getAndSet(0) : bytesCopied.get());
+	}
+
+	private void record(StorageOperation operation, long start, boolean failed) {
+		operations [operation.ordinal()].record(System.nanoTime() - start, failed);
+	}
+
+	/*****************************************************************************/
+
+	@Override
+	public Status getStatus(Iterable<String> address) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Status result = storage.getStatus(address);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.GET_STATUS, start, failed);
+		}
+	}
+
+	@Override
+	public boolean compareAndSetStatus(Iterable<String> address, Status oldStatus, Status newStatus) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			boolean result = storage.compareAndSetStatus(address, oldStatus, newStatus);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.COMPARE_AND_SET_STATUS, start, failed);
+		}
+	}
+
+	@Override
+	public boolean compareAndSetStatuses(List<StatusTransition> transitions) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			boolean result = storage.compareAndSetStatuses(transitions);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.COMPARE_AND_SET_STATUSES, start, failed);
+		}
+	}
+
+	@Override
+	public Status waitForStatus(Iterable<String> address, Predicate<Status> predicate, long timeoutMillis) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Status result = storage.waitForStatus(address, predicate, timeoutMillis);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.WAIT_FOR_STATUS, start, failed);
+		}
+	}
+
+	@Override
+	public List<Status> getStatuses(Iterable<? extends Iterable<String>> addresses) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<Status> result = storage.getStatuses(addresses);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.GET_STATUSES, start, failed);
+		}
+	}
+
+	@Override
+	public Iterable<List<String>> findByStatus(Iterable<String> address, Set<Status> statuses) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Iterable<List<String>> result = storage.findByStatus(address, statuses);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.FIND_BY_STATUS, start, failed);
+		}
+	}
+
+	@Override
+	public List<WorkspaceUsage> getUsage(Iterable<String> address) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<WorkspaceUsage> result = storage.getUsage(address);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.GET_USAGE, start, failed);
+		}
+	}
+
+	@Override
+	public Path getWorkspacePath(Iterable<String> address, Workspace workspace) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Path result = storage.getWorkspacePath(address, workspace);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.GET_WORKSPACE_PATH, start, failed);
+		}
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.copyToWorkspace(address, workspace, source, destination);
+			failed = false;
+		} finally {
+			record(StorageOperation.COPY_TO_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.copyToWorkspace(address, workspace, source, destination, mode);
+			failed = false;
+		} finally {
+			record(StorageOperation.COPY_TO_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.copyFromWorkspace(address, workspace, source, destination);
+			failed = false;
+		} finally {
+			record(StorageOperation.COPY_FROM_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.copyFromWorkspace(address, workspace, source, destination, mode);
+			failed = false;
+		} finally {
+			record(StorageOperation.COPY_FROM_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public CopyStatistics syncToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			CopyStatistics result = storage.syncToWorkspace(address, workspace, source, destination, options);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.SYNC_TO_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public CopyStatistics syncFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			CopyStatistics result = storage.syncFromWorkspace(address, workspace, source, destination, options);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.SYNC_FROM_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public void exportWorkspace(Iterable<String> address, Workspace workspace, Path source, OutputStream stream) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.exportWorkspace(address, workspace, source, stream);
+			failed = false;
+		} finally {
+			record(StorageOperation.EXPORT_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public void importWorkspace(Iterable<String> address, Workspace workspace, InputStream stream, Path destination) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.importWorkspace(address, workspace, stream, destination);
+			failed = false;
+		} finally {
+			record(StorageOperation.IMPORT_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public void cloneWorkspace(Iterable<String> sourceAddress, Workspace sourceWorkspace, Iterable<String> destinationAddress, Workspace destinationWorkspace) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			storage.cloneWorkspace(sourceAddress, sourceWorkspace, destinationAddress, destinationWorkspace);
+			failed = false;
+		} finally {
+			record(StorageOperation.CLONE_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public WorkspaceVerification verifyWorkspace(Iterable<String> address, Workspace workspace) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			WorkspaceVerification result = storage.verifyWorkspace(address, workspace);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.VERIFY_WORKSPACE, start, failed);
+		}
+	}
+
+	@Override
+	public Iterable<String> list(Iterable<String> address) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Iterable<String> result = storage.list(address);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.LIST, start, failed);
+		}
+	}
+
+	@Override
+	public Stream<String> listStream(Iterable<String> address) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Stream<String> result = storage.listStream(address);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.LIST_STREAM, start, failed);
+		}
+	}
+
+	@Override
+	public ListPage listPage(Iterable<String> address, String continuation, int limit) throws StorageException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			ListPage result = storage.listPage(address, continuation, limit);
+			failed = false;
+			return result;
+		} finally {
+			record(StorageOperation.LIST_PAGE, start, failed);
+		}
+	}
+}
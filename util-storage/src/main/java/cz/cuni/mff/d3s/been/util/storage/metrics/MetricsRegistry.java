@@ -0,0 +1,22 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Publishes storage metrics to a monitoring system. */
+public interface MetricsRegistry {
+
+	/** Publishes metrics of a storage under a name.
+	 *
+	 * @param name name unique within the registry
+	 * @param storage storage whose metrics to publish
+	 * @throws StorageException
+	 */
+	void register(String name, MeteredStorage storage) throws StorageException;
+
+	/** Stops publishing metrics registered under a name.
+	 *
+	 * @param name name used when registering
+	 * @throws StorageException
+	 */
+	void unregister(String name) throws StorageException;
+}
@@ -0,0 +1,42 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import java.util.Map;
+
+/** Metrics of a storage recorded since the last reset.
+ *
+ * @see MeteredStorage#getSnapshot(boolean)
+ */
+public class MetricsSnapshot {
+
+	private Map<StorageOperation, OperationStatistics> operations;
+	private OperationStatistics statusLockWait;
+	private long filesCopied;
+	private long bytesCopied;
+
+	public MetricsSnapshot(Map<StorageOperation, OperationStatistics> argOperations, OperationStatistics argStatusLockWait, long argFilesCopied, long argBytesCopied) {
+		operations = argOperations;
+		statusLockWait = argStatusLockWait;
+		filesCopied = argFilesCopied;
+		bytesCopied = argBytesCopied;
+	}
+
+	/** Returns latency and error statistics of each operation. */
+	public Map<StorageOperation, OperationStatistics> getOperations() {
+		return operations;
+	}
+
+	/** Returns statistics of the time spent acquiring status locks, reported by the storage. */
+	public OperationStatistics getStatusLockWait() {
+		return statusLockWait;
+	}
+
+	/** Returns the number of files copied or linked, reported by the storage. */
+	public long getFilesCopied() {
+		return filesCopied;
+	}
+
+	/** Returns the size of files copied or linked, reported by the storage. */
+	public long getBytesCopied() {
+		return bytesCopied;
+	}
+}
@@ -0,0 +1,67 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+/** Latency statistics of one storage operation, in nanoseconds.
+ * <p>
+ * Percentiles are rounded up to the histogram precision, about six percent.
+ */
+public class OperationStatistics {
+
+	private long count;
+	private long errors;
+	private long mean;
+	private long max;
+	private long p50;
+	private long p90;
+	private long p99;
+	private long p999;
+
+	public OperationStatistics(long argCount, long argErrors, long argMean, long argMax, long argP50, long argP90, long argP99, long argP999) {
+		count = argCount;
+		errors = argErrors;
+		mean = argMean;
+		max = argMax;
+		p50 = argP50;
+		p90 = argP90;
+		p99 = argP99;
+		p999 = argP999;
+	}
+
+	/** Returns the number of operations, failed ones included. */
+	public long getCount() {
+		return count;
+	}
+
+	/** Returns the number of operations that failed. */
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getMean() {
+		return mean;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public long getP50() {
+		return p50;
+	}
+
+	public long getP90() {
+		return p90;
+	}
+
+	public long getP99() {
+		return p99;
+	}
+
+	public long getP999() {
+		return p999;
+	}
+
+	@Override
+	public String toString() {
+		return count + " operations, " + errors + " failed, mean " + mean + " ns, p50 " + p50 + " ns, p99 " + p99 + " ns, max " + max + " ns";
+	}
+}
@@ -0,0 +1,22 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import java.util.Map;
+
+/** Management interface of storage metrics, latencies are in nanoseconds.
+ *
+ * @see JmxMetricsRegistry
+ */
+public interface StorageMetricsMXBean {
+
+	/** Returns statistics of each operation by operation name. */
+	Map<String, OperationStatistics> getOperations();
+
+	OperationStatistics getStatusLockWait();
+
+	long getFilesCopied();
+
+	long getBytesCopied();
+
+	/** Starts recording anew. */
+	void reset();
+}
@@ -0,0 +1,24 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+/** Storage operations whose latency is recorded, overloads of one method share an operation. */
+public enum StorageOperation {
+	GET_STATUS,
+	COMPARE_AND_SET_STATUS,
+	COMPARE_AND_SET_STATUSES,
+	WAIT_FOR_STATUS,
+	GET_STATUSES,
+	FIND_BY_STATUS,
+	GET_USAGE,
+	GET_WORKSPACE_PATH,
+	COPY_TO_WORKSPACE,
+	COPY_FROM_WORKSPACE,
+	SYNC_TO_WORKSPACE,
+	SYNC_FROM_WORKSPACE,
+	EXPORT_WORKSPACE,
+	IMPORT_WORKSPACE,
+	CLONE_WORKSPACE,
+	VERIFY_WORKSPACE,
+	LIST,
+	LIST_STREAM,
+	LIST_PAGE
+}
@@ -0,0 +1,572 @@
+package cz.cuni.mff.d3s.been.util.storage.sharded;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.StatusTransition;
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.StorageObserver;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceUsage;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceVerification;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaConfiguration;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+/** Storage that spreads addresses across several root directories.
+ * <p>
+ * Each root, typically on its own disk, holds a vanilla storage. An address,
+ * its status and all its workspaces live in the root chosen by consistent hashing
+ * of the address, so copies to different addresses use different disks.
+ * Parent addresses exist in every root that holds some of their children,
+ * listing therefore merges the roots.
+ * <p>
+ * Each root keeps a shard identifier, which places it on the hash ring
+ * independently of its path and of the order of the roots. Adding a root
+ * moves only the addresses that the new root takes over.
+ */
+public class ShardedStorage implements Storage, Closeable {
+
+	private static final String PATH_SHARD = ".shard";
+
+	/** Positions of each root on the hash ring, more positions spread addresses more evenly. */
+	private static final int RING_POSITIONS = 128;
+
+	/** Names of the workspace entries in an address directory of a vanilla storage, moved with the address. */
+	private static final String PATH_TEMPSPACE = ".temp";
+	private static final String PATH_KEEPSPACE = ".keep";
+	private static final String PATH_PACKPREFIX = ".pack";
+	private static final String PATH_PACKLOCK = ".pack.lock";
+	private static final String PATH_MANIFESTSUFFIX = ".manifest";
+
+	private static class Shard {
+		Path root;
+		String identifier;
+		VanillaStorage storage;
+	}
+
+	private VanillaConfiguration configuration;
+	private volatile StorageObserver observer;
+	private volatile List<Shard> shards = new ArrayList<Shard>();
+	private volatile TreeMap<Long, Shard> ring;
+
+	public ShardedStorage(List<Path> argRoots) throws StorageException {
+		this(argRoots, new VanillaConfiguration());
+	}
+
+	/** Creates storage over given roots.
+	 *
+	 * @param argRoots root directories, in any order
+	 * @param argConfiguration settings of the storage in each root
+	 * @throws StorageException
+	 */
+	public ShardedStorage(List<Path> argRoots, VanillaConfiguration argConfiguration) throws StorageException {
+		if (argRoots.isEmpty()) throw new StorageException("Sharded storage needs at least one root.");
+		// Addresses are moved between roots as nested directories.
+		if (argConfiguration.getLayout() != VanillaConfiguration.Layout.NESTED) throw new StorageException("Sharded storage needs the nested layout.");
+
+		configuration = argConfiguration;
+		for (Path root : argRoots) shards.add(openShard(root));
+		ring = buildRing(shards);
+	}
+
+	/** Sets the receiver of internal events of all roots.
+	 *
+	 * @param argObserver observer, null to stop observing
+	 * @see VanillaStorage#setObserver(StorageObserver)
+	 */
+	public synchronized void setObserver(StorageObserver argObserver) {
+		observer = argObserver;
+		for (Shard shard : shards) shard.storage.setObserver(argObserver);
+	}
+
+	/*****************************************************************************/
+
+	private Shard openShard(Path root) throws StorageException {
+		Shard shard = new Shard();
+		shard.root = root;
+		shard.storage = new VanillaStorage(root, configuration);
+		shard.storage.setObserver(observer);
+
+		Path identifierPath = root.resolve(PATH_SHARD);
+		try {
+			if (!Files.exists(identifierPath)) {
+				// Written aside and moved so that a concurrent opener never reads a partial identifier.
+				Path partialPath = Files.createTempFile(root, PATH_SHARD, ".part");
+				Files.write(partialPath, UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+				try {
+					Files.move(partialPath, identifierPath);
+				} catch (IOException e) {
+					Files.deleteIfExists(partialPath);
+					if (!Files.exists(identifierPath)) throw e;
+				}
+			}
+			shard.identifier = new String(Files.readAllBytes(identifierPath), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			throw new StorageException("Failed to read shard identifier.", e);
+		}
+
+		for (Shard other : shards) {
+			if (other.identifier.equals(shard.identifier)) throw new StorageException("Shard root used twice.");
+		}
+		return shard;
+	}
+
+	/** Hashes a string to a ring position, FNV-1a followed by a mixing step for even spread. */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte value : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= value & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static TreeMap<Long, Shard> buildRing(List<Shard> shards) {
+		TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+		for (Shard shard : shards) {
+			for (int position = 0; position < RING_POSITIONS; position ++) {
+				ring.put(hash(shard.identifier + "#" + position), shard);
+			}
+		}
+		return ring;
+	}
+
+	private static String getKey(Iterable<String> address) {
+		// Address elements are directory names and cannot contain slashes.
+		StringBuilder key = new StringBuilder();
+		for (String element : address) key.append('/').append(element);
+		return key.toString();
+	}
+
+	private static Shard getShard(TreeMap<Long, Shard> ring, Iterable<String> address) {
+		Map.Entry<Long, Shard> entry = ring.ceilingEntry(hash(getKey(address)));
+		return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	private Storage getStorage(Iterable<String> address) {
+		return getShard(ring, address).storage;
+	}
+
+	private static Path getBasePath(Path root, Iterable<String> address) {
+		Path basePath = root;
+		for (String element : address) basePath = basePath.resolve(element);
+		return basePath;
+	}
+
+	/*****************************************************************************/
+
+	@Override
+	public Status getStatus(Iterable<String> address) throws StorageException {
+		return getStorage(address).getStatus(address);
+	}
+
+	@Override
+	public boolean compareAndSetStatus(Iterable<String> address, Status oldStatus, Status newStatus) throws StorageException {
+		return getStorage(address).compareAndSetStatus(address, oldStatus, newStatus);
+	}
+
+	/** Changes statuses of many addresses.
+	 * <p>
+	 * Transitions of addresses in one root are applied atomically. When the addresses
+	 * span several roots, each root is changed in turn and earlier roots are changed
+	 * back when a later one fails. Others can then briefly see part of the batch,
+	 * and a crash in between leaves part of the batch applied.
+	 */
+	@Override
+	public boolean compareAndSetStatuses(List<StatusTransition> transitions) throws StorageException {
+		TreeMap<Long, Shard> currentRing = ring;
+		Map<Shard, List<StatusTransition>> groups = new LinkedHashMap<Shard, List<StatusTransition>>();
+		for (StatusTransition transition : transitions) {
+			Shard shard = getShard(currentRing, transition.getAddress());
+			List<StatusTransition> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<StatusTransition>();
+				groups.put(shard, group);
+			}
+			group.add(transition);
+		}
+
+		List<Map.Entry<Shard, List<StatusTransition>>> applied = new ArrayList<Map.Entry<Shard, List<StatusTransition>>>();
+		for (Map.Entry<Shard, List<StatusTransition>> group : groups.entrySet()) {
+			if (group.getKey().storage.compareAndSetStatuses(group.getValue())) {
+				applied.add(group);
+				continue;
+			}
+
+			for (Map.Entry<Shard, List<StatusTransition>> undo : applied) {
+				List<StatusTransition> reverse = new ArrayList<StatusTransition>();
+				for (StatusTransition transition : undo.getValue()) {
+					reverse.add(new StatusTransition(transition.getAddress(), transition.getNewStatus(), transition.getOldStatus()));
+				}
+				undo.getKey().storage.compareAndSetStatuses(reverse);
+			}
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public Status waitForStatus(Iterable<String> address, Predicate<Status> predicate, long timeoutMillis) throws StorageException {
+		return getStorage(address).waitForStatus(address, predicate, timeoutMillis);
+	}
+
+	@Override
+	public List<Status> getStatuses(Iterable<? extends Iterable<String>> addresses) throws StorageException {
+		TreeMap<Long, Shard> currentRing = ring;
+
+		// Each root reads its addresses in one call, the results are put back in order.
+		Map<Shard, List<Iterable<String>>> groups = new HashMap<Shard, List<Iterable<String>>>();
+		List<Shard> order = new ArrayList<Shard>();
+		for (Iterable<String> address : addresses) {
+			Shard shard = getShard(currentRing, address);
+			List<Iterable<String>> group = groups.get(shard);
+			if (group == null) {
+				group = new ArrayList<Iterable<String>>();
+				groups.put(shard, group);
+			}
+			group.add(address);
+			order.add(shard);
+		}
+
+		Map<Shard, List<Status>> results = new HashMap<Shard, List<Status>>();
+		for (Map.Entry<Shard, List<Iterable<String>>> group : groups.entrySet()) {
+			results.put(group.getKey(), group.getKey().storage.getStatuses(group.getValue()));
+		}
+
+		Map<Shard, Integer> positions = new HashMap<Shard, Integer>();
+		List<Status> statuses = new ArrayList<Status>();
+		for (Shard shard : order) {
+			Integer position = positions.get(shard);
+			if (position == null) position = 0;
+			statuses.add(results.get(shard).get(position));
+			positions.put(shard, position + 1);
+		}
+		return statuses;
+	}
+
+	@Override
+	public Iterable<List<String>> findByStatus(Iterable<String> address, Set<Status> statuses) throws StorageException {
+		TreeMap<Long, Shard> currentRing = ring;
+		Set<List<String>> found = new LinkedHashSet<List<String>>();
+		for (Shard shard : shards) {
+			if (!Files.isDirectory(getBasePath(shard.root, address))) continue;
+			for (List<String> candidate : shard.storage.findByStatus(address, statuses)) {
+				// Roots other than the owner only hold the address as a parent, which has no status.
+				if (getShard(currentRing, candidate) == shard || statuses.contains(Status.NONE)) found.add(candidate);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public List<WorkspaceUsage> getUsage(Iterable<String> address) throws StorageException {
+		// Workspaces live only in the root owning their address, so the roots hold disjoint usages.
+		List<WorkspaceUsage> usages = new ArrayList<WorkspaceUsage>();
+		for (Shard shard : shards) {
+			if (Files.isDirectory(getBasePath(shard.root, address))) usages.addAll(shard.storage.getUsage(address));
+		}
+		return usages;
+	}
+
+	@Override
+	public Path getWorkspacePath(Iterable<String> address, Workspace workspace) throws StorageException {
+		return getStorage(address).getWorkspacePath(address, workspace);
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		getStorage(address).copyToWorkspace(address, workspace, source, destination);
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		getStorage(address).copyToWorkspace(address, workspace, source, destination, mode);
+	}
+
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		getStorage(address).copyFromWorkspace(address, workspace, source, destination);
+	}
+
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		getStorage(address).copyFromWorkspace(address, workspace, source, destination, mode);
+	}
+
+	@Override
+	public CopyStatistics syncToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		return getStorage(address).syncToWorkspace(address, workspace, source, destination, options);
+	}
+
+	@Override
+	public CopyStatistics syncFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		return getStorage(address).syncFromWorkspace(address, workspace, source, destination, options);
+	}
+
+	@Override
+	public void exportWorkspace(Iterable<String> address, Workspace workspace, Path source, OutputStream stream) throws StorageException {
+		getStorage(address).exportWorkspace(address, workspace, source, stream);
+	}
+
+	@Override
+	public void importWorkspace(Iterable<String> address, Workspace workspace, InputStream stream, Path destination) throws StorageException {
+		getStorage(address).importWorkspace(address, workspace, stream, destination);
+	}
+
+	@Override
+	public WorkspaceVerification verifyWorkspace(Iterable<String> address, Workspace workspace) throws StorageException {
+		return getStorage(address).verifyWorkspace(address, workspace);
+	}
+
+	/** Clones a workspace, linking files when both addresses are in the same root and copying them otherwise. */
+	@Override
+	public void cloneWorkspace(Iterable<String> sourceAddress, Workspace sourceWorkspace, Iterable<String> destinationAddress, Workspace destinationWorkspace) throws StorageException {
+		TreeMap<Long, Shard> currentRing = ring;
+		Storage sourceStorage = getShard(currentRing, sourceAddress).storage;
+		Storage destinationStorage = getShard(currentRing, destinationAddress).storage;
+
+		if (sourceStorage == destinationStorage) {
+			sourceStorage.cloneWorkspace(sourceAddress, sourceWorkspace, destinationAddress, destinationWorkspace);
+		} else {
+			Path sourcePath = sourceStorage.getWorkspacePath(sourceAddress, sourceWorkspace);
+			destinationStorage.copyToWorkspace(destinationAddress, destinationWorkspace, sourcePath, null, CopyMode.COPY);
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Returns the shards whose root holds an address directory. */
+	private List<Shard> getListedShards(Iterable<String> address) throws StorageException {
+		List<Shard> listed = new ArrayList<Shard>();
+		for (Shard shard : shards) {
+			if (Files.isDirectory(getBasePath(shard.root, address))) listed.add(shard);
+		}
+		if (listed.isEmpty()) throw new StorageException ("Failed to list storage.", new NoSuchFileException(getKey(address)));
+		return listed;
+	}
+
+	@Override
+	public Iterable<String> list(Iterable<String> address) throws StorageException {
+		Set<String> list = new LinkedHashSet<String>();
+		for (Shard shard : getListedShards(address)) {
+			for (String item : shard.storage.list(address)) list.add(item);
+		}
+		return new ArrayList<String>(list);
+	}
+
+	@Override
+	public Stream<String> listStream(Iterable<String> address) throws StorageException {
+		Stream<String> stream = Stream.empty();
+		for (Shard shard : getListedShards(address)) {
+			stream = Stream.concat(stream, shard.storage.listStream(address));
+		}
+		return stream.distinct();
+	}
+
+	/** Lists one page of addresses below an address.
+	 * <p>
+	 * Roots are listed one after another, items already present
+	 * in an earlier root are left out.
+	 */
+	@Override
+	public ListPage listPage(Iterable<String> address, String continuation, int limit) throws StorageException {
+		if (limit <= 0) throw new IllegalArgumentException("Listing page limit must be positive.");
+		List<Shard> listed = getListedShards(address);
+
+		// The continuation is the identifier of the root being listed and the continuation within it.
+		int index = 0;
+		String innerContinuation = null;
+		if (continuation != null) {
+			int separator = continuation.indexOf(':');
+			if (separator < 0) throw new StorageException ("Invalid listing continuation.");
+			String identifier = continuation.substring(0, separator);
+			innerContinuation = continuation.substring(separator + 1);
+			if (innerContinuation.isEmpty()) innerContinuation = null;
+			while (index < listed.size() && !listed.get(index).identifier.equals(identifier)) index ++;
+			if (index == listed.size()) throw new StorageException ("Listing continuation no longer matches the storage.");
+		}
+
+		List<String> items = new ArrayList<String>();
+		while (index < listed.size()) {
+			Shard shard = listed.get(index);
+			ListPage page = shard.storage.listPage(address, innerContinuation, limit - items.size());
+			for (String item : page.getItems()) {
+				boolean listedBefore = false;
+				for (int earlier = 0; earlier < index && !listedBefore; earlier ++) {
+					listedBefore = Files.isDirectory(getBasePath(listed.get(earlier).root, address).resolve(item));
+				}
+				if (!listedBefore) items.add(item);
+			}
+
+			if (page.getContinuation() != null) return new ListPage(items, shard.identifier + ":" + page.getContinuation());
+			index ++;
+			innerContinuation = null;
+			if (items.size() >= limit) {
+				return new ListPage(items, (index < listed.size()) ? listed.get(index).identifier + ":" : null);
+			}
+		}
+		return new ListPage(items, null);
+	}
+
+	/*****************************************************************************/
+
+	private static void moveTree(Path source, final Path destination) throws IOException {
+		try {
+			Files.move(source, destination);
+			return;
+		} catch (IOException e) {
+			// Directories cannot be moved between file systems, they are copied and deleted instead.
+		}
+
+		final Path sourceRoot = source;
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+				Files.copy(directory, destination.resolve(sourceRoot.relativize(directory)), StandardCopyOption.COPY_ATTRIBUTES);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.copy(file, destination.resolve(sourceRoot.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				if (e != null) throw e;
+				Path copy = destination.resolve(sourceRoot.relativize(directory));
+				Files.setLastModifiedTime(copy, Files.getLastModifiedTime(directory));
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static boolean isWorkspaceEntry(String name) {
+		if (name.equals(PATH_TEMPSPACE) || name.equals(PATH_KEEPSPACE)) return true;
+		if (name.equals(PATH_TEMPSPACE + PATH_MANIFESTSUFFIX) || name.equals(PATH_KEEPSPACE + PATH_MANIFESTSUFFIX)) return true;
+		// Packed workspaces come with their archive and leftovers of packing.
+		return name.startsWith(PATH_PACKPREFIX) && !name.equals(PATH_PACKLOCK);
+	}
+
+	/** Moves the status and workspaces of an address between roots. */
+	private static void moveAddress(List<String> address, Shard from, Shard to) throws StorageException {
+		Path fromPath = getBasePath(from.root, address);
+		Path toPath = getBasePath(to.root, address);
+
+		Status status = from.storage.getStatus(address);
+		try {
+			Files.createDirectories(toPath);
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(fromPath)) {
+				for (Path entry : entries) {
+					// Child addresses are moved on their own, the status moves through the storages.
+					String name = entry.getFileName().toString();
+					if (isWorkspaceEntry(name)) moveTree(entry, toPath.resolve(name));
+				}
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			throw new StorageException("Failed to move address to another root.", e);
+		}
+
+		if (status == Status.NONE) return;
+		if (!to.storage.compareAndSetStatus(address, Status.NONE, status)) throw new StorageException("Address moved to a root where it has status already.");
+		from.storage.compareAndSetStatus(address, status, Status.NONE);
+	}
+
+	/** Collects addresses below an address that have a directory in a root. */
+	private static void collectAddresses(Path root, List<String> address, List<List<String>> addresses) throws StorageException {
+		addresses.add(address);
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(getBasePath(root, address))) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				if (name.startsWith(".") || !Files.isDirectory(entry)) continue;
+				List<String> child = new ArrayList<String>(address);
+				child.add(name);
+				collectAddresses(root, child, addresses);
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			throw new StorageException("Failed to walk storage root.", e);
+		}
+	}
+
+	/** Adds a root and moves to it the addresses it takes over.
+	 * <p>
+	 * Only the addresses that hash to the new root move, which is about
+	 * one in as many addresses as there are roots after adding.
+	 * The moved addresses must not be used while the root is being added.
+	 *
+	 * @param root root directory to add
+	 * @return number of addresses moved
+	 * @throws StorageException
+	 */
+	public synchronized int addRoot(Path root) throws StorageException {
+		Shard added = openShard(root);
+		List<Shard> newShards = new ArrayList<Shard>(shards);
+		newShards.add(added);
+		TreeMap<Long, Shard> newRing = buildRing(newShards);
+
+		int moved = 0;
+		for (Shard shard : shards) {
+			List<List<String>> addresses = new ArrayList<List<String>>();
+			collectAddresses(shard.root, Collections.<String>emptyList(), addresses);
+			for (List<String> address : addresses) {
+				if (getShard(newRing, address) != added) continue;
+				moveAddress(address, shard, added);
+				moved ++;
+			}
+		}
+
+		shards = newShards;
+		ring = newRing;
+		return moved;
+	}
+
+	/** Closes the storages of all roots.
+	 *
+	 * @throws IOException
+	 * @see VanillaStorage#close()
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (Shard shard : shards) {
+			try {
+				shard.storage.close();
+			} catch (IOException e) {
+				if (failure == null) failure = e;
+			}
+		}
+		if (failure != null) throw failure;
+	}
+}
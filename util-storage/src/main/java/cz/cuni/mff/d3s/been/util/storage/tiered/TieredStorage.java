@@ -0,0 +1,553 @@
+package cz.cuni.mff.d3s.been.util.storage.tiered;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.StatusTransition;
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceUsage;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceVerification;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+/** Storage that keeps recently used workspaces on a fast hot tier and the rest on a cold tier.
+ * <p>
+ * Each tier is a vanilla storage. The cold tier holds the status of every address
+ * and is the only place where statuses are read or changed, so moving workspaces
+ * between the tiers never touches a status. The cold tier also holds every address
+ * directory and therefore serves listing.
+ * <p>
+ * Workspaces are promoted to the hot tier when used and demoted back to the cold
+ * tier by {@link #demote()} when the hot tier exceeds its budget. Only workspaces
+ * of addresses that are done or packed and were not used for a while are demoted.
+ * A workspace is held by the tier whose workspace directory is not empty.
+ * <p>
+ * A move copies the workspace and then clears the source. Throughout, the tier
+ * whose copy is incomplete is marked by a file beside its workspace directory:
+ * first the destination until the copy is complete, then the source until it is
+ * cleared. A marked copy left behind by a crash is discarded on the next use,
+ * which always leaves one complete copy. When both tiers hold an unmarked copy,
+ * which a crash between the two marks leaves, the copies are the same and the
+ * hot one is used.
+ * <p>
+ * Moving workspaces is coordinated within the process only, the tiers must not
+ * be shared with other processes.
+ */
+public class TieredStorage implements Storage, Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(TieredStorage.class);
+
+	/** Suffix of the file marking an incomplete workspace copy. */
+	static final String PATH_STALESUFFIX = ".stale";
+
+	/** Number of lock stripes guarding workspace moves. */
+	private static final int LOCK_STRIPES = 64;
+
+	private VanillaStorage hot;
+	private VanillaStorage cold;
+	private long hotBudget;
+	private long idleMillis;
+
+	/** Workspace use by address, directory modification time stands in for addresses used before a restart. */
+	private final Map<List<String>, Long> access = new ConcurrentHashMap<List<String>, Long>();
+
+	/** Workspace use holds the read lock of the address stripe, moving a workspace holds the write lock. */
+	private final ReentrantReadWriteLock [] locks = new ReentrantReadWriteLock [LOCK_STRIPES];
+
+	private ScheduledExecutorService scheduler;
+
+	/** Creates storage over given tiers.
+	 *
+	 * @param argHot storage on the fast tier
+	 * @param argCold storage on the slow tier, which also holds statuses
+	 * @param argHotBudget total size of workspaces on the hot tier in bytes
+	 * @param argIdleMillis time since last use after which a workspace may be demoted
+	 */
+	public TieredStorage(VanillaStorage argHot, VanillaStorage argCold, long argHotBudget, long argIdleMillis) {
+		hot = argHot;
+		cold = argCold;
+		hotBudget = argHotBudget;
+		idleMillis = argIdleMillis;
+		for (int index = 0; index < LOCK_STRIPES; index ++) locks [index] = new ReentrantReadWriteLock();
+	}
+
+	/*****************************************************************************/
+
+	private static List<String> getKey(Iterable<String> address) {
+		List<String> key = new ArrayList<String>();
+		for (String element : address) key.add(element);
+		return key;
+	}
+
+	private ReentrantReadWriteLock getLock(List<String> address) {
+		return locks [(address.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+	}
+
+	private static boolean isEmpty(Path directory) throws StorageException {
+		if (!Files.isDirectory(directory)) return true;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			return !entries.iterator().hasNext();
+		} catch (IOException | DirectoryIteratorException e) {
+			throw new StorageException("Failed to list workspace.", e);
+		}
+	}
+
+	private static void deleteContent(Path directory) throws StorageException {
+		if (!Files.isDirectory(directory)) return;
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+			for (Path entry : entries) {
+				Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+						Files.delete(file);
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+						if (e != null) throw e;
+						Files.delete(directory);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+		} catch (IOException | DirectoryIteratorException e) {
+			throw new StorageException("Failed to delete moved workspace.", e);
+		}
+	}
+
+	private static Path getStalePath(Path workspacePath) {
+		return workspacePath.resolveSibling(workspacePath.getFileName() + PATH_STALESUFFIX);
+	}
+
+	private static void setStale(Path workspacePath, boolean stale) throws StorageException {
+		Path stalePath = getStalePath(workspacePath);
+		try {
+			if (!stale) Files.deleteIfExists(stalePath);
+			else if (!Files.exists(stalePath)) Files.createFile(stalePath);
+		} catch (IOException e) {
+			throw new StorageException("Failed to mark moved workspace.", e);
+		}
+	}
+
+	/** Moves workspace content between tiers, the tiers are expected on different file systems so the content is copied. */
+	private static void moveWorkspace(VanillaStorage from, VanillaStorage to, List<String> address, Workspace workspace) throws StorageException {
+		Path fromPath = from.peekWorkspacePath(address, workspace);
+		// Getting the path rather than peeking registers the address with the destination tier.
+		Path toPath = to.getWorkspacePath(address, workspace);
+
+		setStale(toPath, true);
+		deleteContent(toPath);
+		to.copyToWorkspace(address, workspace, fromPath, null, CopyMode.COPY);
+		setStale(toPath, false);
+
+		setStale(fromPath, true);
+		deleteContent(fromPath);
+		setStale(fromPath, false);
+	}
+
+	/** Discards copies of a workspace that a move interrupted by a crash left incomplete, called with the write lock held. */
+	private void discardStale(List<String> address, Workspace workspace) throws StorageException {
+		for (VanillaStorage tier : Arrays.asList(hot, cold)) {
+			Path workspacePath = tier.peekWorkspacePath(address, workspace);
+			if (!Files.exists(getStalePath(workspacePath))) continue;
+			deleteContent(workspacePath);
+			setStale(workspacePath, false);
+			log.info("Discarded incomplete copy of workspace {} of {}.", workspace, address);
+		}
+	}
+
+	/** Moves a workspace to the hot tier unless it is there already, called with the write lock held. */
+	private void promote(List<String> address, Workspace workspace) throws StorageException {
+		discardStale(address, workspace);
+
+		// The cold tier holds all addresses for listing. A packed workspace
+		// is restored by the cold tier, which also changes the status there.
+		Path coldPath = cold.getWorkspacePath(address, workspace);
+		if (isEmpty(coldPath) || !isEmpty(hot.peekWorkspacePath(address, workspace))) return;
+
+		moveWorkspace(cold, hot, address, workspace);
+		log.debug("Promoted workspace {} of {}.", workspace, address);
+	}
+
+	/** Promotes a workspace and locks it against demotion, the lock is to be released by the caller. */
+	private ReentrantReadWriteLock.ReadLock acquire(List<String> address, Workspace workspace) throws StorageException {
+		ReentrantReadWriteLock lock = getLock(address);
+		lock.writeLock().lock();
+		try {
+			promote(address, workspace);
+			lock.readLock().lock();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		access.put(address, System.currentTimeMillis());
+		return lock.readLock();
+	}
+
+	/*****************************************************************************/
+
+	@Override
+	public Status getStatus(Iterable<String> address) throws StorageException {
+		return cold.getStatus(address);
+	}
+
+	@Override
+	public boolean compareAndSetStatus(Iterable<String> address, Status oldStatus, Status newStatus) throws StorageException {
+		return cold.compareAndSetStatus(address, oldStatus, newStatus);
+	}
+
+	@Override
+	public boolean compareAndSetStatuses(List<StatusTransition> transitions) throws StorageException {
+		return cold.compareAndSetStatuses(transitions);
+	}
+
+	@Override
+	public Status waitForStatus(Iterable<String> address, Predicate<Status> predicate, long timeoutMillis) throws StorageException {
+		return cold.waitForStatus(address, predicate, timeoutMillis);
+	}
+
+	@Override
+	public List<Status> getStatuses(Iterable<? extends Iterable<String>> addresses) throws StorageException {
+		return cold.getStatuses(addresses);
+	}
+
+	@Override
+	public Iterable<List<String>> findByStatus(Iterable<String> address, Set<Status> statuses) throws StorageException {
+		return cold.findByStatus(address, statuses);
+	}
+
+	/** Returns disk usage of workspaces, adding up both tiers. */
+	@Override
+	public List<WorkspaceUsage> getUsage(Iterable<String> address) throws StorageException {
+		Map<List<Object>, WorkspaceUsage> usages = new LinkedHashMap<List<Object>, WorkspaceUsage>();
+		for (VanillaStorage tier : Arrays.asList(cold, hot)) {
+			for (WorkspaceUsage usage : tier.getUsage(address)) {
+				List<Object> key = Arrays.<Object>asList(usage.getAddress(), usage.getWorkspace());
+				WorkspaceUsage other = usages.get(key);
+				if (other != null) {
+					usage = new WorkspaceUsage(usage.getAddress(), usage.getWorkspace(),
+							usage.getBytes() + other.getBytes(), usage.getFiles() + other.getFiles(),
+							Math.max(usage.getLastAccess(), other.getLastAccess()));
+				}
+				usages.put(key, usage);
+			}
+		}
+		return new ArrayList<WorkspaceUsage>(usages.values());
+	}
+
+	/** Returns the workspace path on the hot tier, promoting the workspace first.
+	 * <p>
+	 * The workspace is protected from demotion only by having been used recently,
+	 * the path should not be held longer than the idle time.
+	 */
+	@Override
+	public Path getWorkspacePath(Iterable<String> address, Workspace workspace) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			return hot.getWorkspacePath(key, workspace);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			hot.copyToWorkspace(key, workspace, source, destination);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			hot.copyToWorkspace(key, workspace, source, destination, mode);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			hot.copyFromWorkspace(key, workspace, source, destination);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			hot.copyFromWorkspace(key, workspace, source, destination, mode);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CopyStatistics syncToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			return hot.syncToWorkspace(key, workspace, source, destination, options);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public CopyStatistics syncFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			return hot.syncFromWorkspace(key, workspace, source, destination, options);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void exportWorkspace(Iterable<String> address, Workspace workspace, Path source, OutputStream stream) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			hot.exportWorkspace(key, workspace, source, stream);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void importWorkspace(Iterable<String> address, Workspace workspace, InputStream stream, Path destination) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			hot.importWorkspace(key, workspace, stream, destination);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public WorkspaceVerification verifyWorkspace(Iterable<String> address, Workspace workspace) throws StorageException {
+		List<String> key = getKey(address);
+		ReentrantReadWriteLock.ReadLock lock = acquire(key, workspace);
+		try {
+			return hot.verifyWorkspace(key, workspace);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Clones a workspace within the hot tier.
+	 * <p>
+	 * The source is promoted and then protected from demotion by having been used
+	 * recently, rather than by its lock, because locking both addresses could deadlock.
+	 */
+	@Override
+	public void cloneWorkspace(Iterable<String> sourceAddress, Workspace sourceWorkspace, Iterable<String> destinationAddress, Workspace destinationWorkspace) throws StorageException {
+		List<String> sourceKey = getKey(sourceAddress);
+		acquire(sourceKey, sourceWorkspace).unlock();
+
+		List<String> destinationKey = getKey(destinationAddress);
+		ReentrantReadWriteLock.ReadLock lock = acquire(destinationKey, destinationWorkspace);
+		try {
+			hot.cloneWorkspace(sourceKey, sourceWorkspace, destinationKey, destinationWorkspace);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Iterable<String> list(Iterable<String> address) throws StorageException {
+		return cold.list(address);
+	}
+
+	@Override
+	public Stream<String> listStream(Iterable<String> address) throws StorageException {
+		return cold.listStream(address);
+	}
+
+	@Override
+	public ListPage listPage(Iterable<String> address, String continuation, int limit) throws StorageException {
+		return cold.listPage(address, continuation, limit);
+	}
+
+	/*****************************************************************************/
+
+	private static class HotWorkspace {
+		List<String> address;
+		Workspace workspace;
+		Path path;
+		long size;
+		long access;
+	}
+
+	private static long getTreeSize(Path path) throws IOException {
+		final long [] size = { 0 };
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				size [0] += attributes.size();
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size [0];
+	}
+
+	/** Collects the workspaces held by the hot tier below an address. */
+	private void collectWorkspaces(List<String> address, List<HotWorkspace> workspaces) throws StorageException {
+		for (Workspace workspace : Workspace.values()) {
+			Path path = hot.peekWorkspacePath(address, workspace);
+			if (isEmpty(path)) continue;
+			try {
+				HotWorkspace hotWorkspace = new HotWorkspace();
+				hotWorkspace.address = address;
+				hotWorkspace.workspace = workspace;
+				hotWorkspace.path = path;
+				hotWorkspace.size = getTreeSize(path);
+				Long used = access.get(address);
+				hotWorkspace.access = (used != null) ? used : Files.getLastModifiedTime(path).toMillis();
+				workspaces.add(hotWorkspace);
+			} catch (IOException e) {
+				throw new StorageException("Failed to measure hot workspace.", e);
+			}
+		}
+
+		for (String child : hot.list(address)) {
+			List<String> childAddress = new ArrayList<String>(address);
+			childAddress.add(child);
+			collectWorkspaces(childAddress, workspaces);
+		}
+	}
+
+	/** Demotes least recently used workspaces until the hot tier fits its budget.
+	 * <p>
+	 * Workspaces in use, used within the idle time, or of addresses
+	 * that are not done or packed, stay on the hot tier.
+	 *
+	 * @return number of bytes moved to the cold tier
+	 * @throws StorageException
+	 */
+	public long demote() throws StorageException {
+		List<HotWorkspace> workspaces = new ArrayList<HotWorkspace>();
+		collectWorkspaces(Collections.<String>emptyList(), workspaces);
+		long total = 0;
+		for (HotWorkspace workspace : workspaces) total += workspace.size;
+		if (total <= hotBudget) return 0;
+
+		Collections.sort(workspaces, new Comparator<HotWorkspace>() {
+			@Override
+			public int compare(HotWorkspace first, HotWorkspace second) {
+				return Long.compare(first.access, second.access);
+			}
+		});
+
+		long demoted = 0;
+		long idleSince = System.currentTimeMillis() - idleMillis;
+		for (HotWorkspace workspace : workspaces) {
+			if (total - demoted <= hotBudget) break;
+			if (workspace.access > idleSince) break;
+
+			// Skipped rather than waited for, a workspace in use is not idle.
+			ReentrantReadWriteLock lock = getLock(workspace.address);
+			if (!lock.writeLock().tryLock()) continue;
+			try {
+				Long used = access.get(workspace.address);
+				if (used != null && used > idleSince) continue;
+				Status status = cold.getStatus(workspace.address);
+				if (status != Status.DONE && status != Status.PACK) continue;
+
+				discardStale(workspace.address, workspace.workspace);
+				if (isEmpty(workspace.path)) continue;
+				moveWorkspace(hot, cold, workspace.address, workspace.workspace);
+				access.remove(workspace.address);
+				demoted += workspace.size;
+				log.debug("Demoted workspace {} of {}.", workspace.workspace, workspace.address);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		return demoted;
+	}
+
+	/** Starts demoting periodically in a background thread.
+	 *
+	 * @param periodMillis time between demotion passes
+	 */
+	public synchronized void start(long periodMillis) {
+		if (scheduler != null) return;
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "storage-tier-demoter");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// An exception escaping the task would cancel all further passes.
+				try {
+					demote();
+				} catch (StorageException | RuntimeException e) {
+					log.warn("Failed to demote hot workspaces.", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops background demotion. */
+	@Override
+	public synchronized void close() {
+		if (scheduler == null) return;
+		scheduler.shutdownNow();
+		scheduler = null;
+	}
+}
@@ -0,0 +1,187 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import cz.cuni.mff.d3s.been.util.storage.StatusTransition;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Write ahead log of batch status changes.
+ * <p>
+ * A batch is written to the log before any status changes and the log is
+ * cleared once all statuses changed. A log found not empty therefore holds
+ * a batch interrupted by a crash, whose statuses were all verified, so the
+ * batch is completed rather than undone.
+ * <p>
+ * Only one batch runs at a time, which is ensured by locking the log file across
+ * processes and by a lock shared by all logs of the same file within the process.
+ * Records use the status journal encoding and are followed by a checksum,
+ * so that a log whose writing was interrupted is recognized.
+ */
+class BatchLog {
+
+	static final String PATH_BATCH = ".batch";
+
+	/** Trailer written after the records, a magic number and the checksum of the records. */
+	private static final int TRAILER_SIZE = 8;
+	private static final int TRAILER_MAGIC = 0x42415443;
+
+	/** In process locks by log file, because file locks cannot be nested within a process. */
+	private static final Map<Path, ReentrantLock> locks = new ConcurrentHashMap<Path, ReentrantLock>();
+
+	private final ReentrantLock lock;
+	private final FileChannel logChannel;
+
+	/** Opens or creates the log.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @throws StorageException
+	 */
+	BatchLog(Path argStoragePath) throws StorageException {
+		Path logPath = argStoragePath.resolve(PATH_BATCH).toAbsolutePath().normalize();
+
+		ReentrantLock newLock = new ReentrantLock(true);
+		ReentrantLock oldLock = locks.putIfAbsent(logPath, newLock);
+		lock = (oldLock != null) ? oldLock : newLock;
+
+		try {
+			logChannel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		} catch (IOException e) {
+			throw new StorageException("Failed to open batch log.", e);
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Log held locked by one batch until closed. */
+	class LockedLog implements AutoCloseable {
+
+		private final FileLock fileLock;
+
+		LockedLog(FileLock argFileLock) {
+			fileLock = argFileLock;
+		}
+
+		/** Reads the transitions of an interrupted batch.
+		 *
+		 * @return logged transitions, empty when no batch was interrupted
+		 * @throws StorageException
+		 */
+		List<StatusTransition> read() throws StorageException {
+			List<StatusTransition> transitions = new ArrayList<StatusTransition>();
+			try {
+				long size = logChannel.size();
+				if (size < TRAILER_SIZE || size > Integer.MAX_VALUE) return transitions;
+
+				ByteBuffer content = ByteBuffer.allocate((int) size);
+				while (content.hasRemaining()) {
+					if (logChannel.read(content, content.position()) < 0) return transitions;
+				}
+				content.flip();
+
+				// A log without a valid trailer was not written completely, so no status changed yet.
+				int recordsSize = (int) size - TRAILER_SIZE;
+				CRC32 checksum = new CRC32();
+				checksum.update(content.array(), 0, recordsSize);
+				if (content.getInt(recordsSize) != TRAILER_MAGIC || content.getInt(recordsSize + 4) != (int) checksum.getValue()) return transitions;
+
+				content.limit(recordsSize);
+				while (content.hasRemaining()) {
+					int length = content.getInt();
+					ByteBuffer payload = content.slice();
+					payload.limit(length);
+					content.position(content.position() + length);
+
+					StatusChange change = StatusJournal.decode(payload);
+					transitions.add(new StatusTransition(change.getAddress(), change.getOldStatus(), change.getNewStatus()));
+				}
+			} catch (IOException e) {
+				throw new StorageException("Failed to read batch log.", e);
+			}
+			return transitions;
+		}
+
+		/** Writes the transitions of a batch and makes them durable.
+		 *
+		 * @param transitions batch transitions
+		 * @throws StorageException
+		 */
+		void write(List<StatusTransition> transitions) throws StorageException {
+			long time = System.currentTimeMillis();
+
+			List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+			int recordsSize = 0;
+			for (StatusTransition transition : transitions) {
+				ByteBuffer record = StatusJournal.encode(transition.getAddress(), transition.getOldStatus(), transition.getNewStatus(), time);
+				records.add(record);
+				recordsSize += record.remaining();
+			}
+
+			ByteBuffer content = ByteBuffer.allocate(recordsSize + TRAILER_SIZE);
+			for (ByteBuffer record : records) content.put(record);
+			CRC32 checksum = new CRC32();
+			checksum.update(content.array(), 0, recordsSize);
+			content.putInt(TRAILER_MAGIC).putInt((int) checksum.getValue());
+			content.flip();
+
+			try {
+				long position = 0;
+				while (content.hasRemaining()) {
+					position += logChannel.write(content, position);
+				}
+				logChannel.force(false);
+			} catch (IOException e) {
+				throw new StorageException("Failed to write batch log.", e);
+			}
+		}
+
+		/** Clears the log after all statuses of a batch changed.
+		 *
+		 * @throws StorageException
+		 */
+		void clear() throws StorageException {
+			try {
+				logChannel.truncate(0);
+				logChannel.force(false);
+			} catch (IOException e) {
+				throw new StorageException("Failed to clear batch log.", e);
+			}
+		}
+
+		@Override
+		public void close() throws StorageException {
+			try {
+				fileLock.release();
+			} catch (IOException e) {
+				throw new StorageException("Failed to unlock batch log.", e);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/** Locks the log for one batch.
+	 *
+	 * @return locked log, to be closed by the caller
+	 * @throws StorageException
+	 */
+	LockedLog lock() throws StorageException {
+		lock.lock();
+		try {
+			return new LockedLog(logChannel.lock());
+		} catch (IOException e) {
+			lock.unlock();
+			throw new StorageException("Failed to lock batch log.", e);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Pool of reusable direct buffers.
+ * <p>
+ * Direct buffers avoid copying between the heap and native I/O but are
+ * expensive to allocate, which is why they are kept for reuse. When the
+ * pool is empty a new buffer is allocated, at most the pool capacity
+ * of buffers is kept when they are released.
+ */
+class BufferPool {
+
+	private final int bufferSize;
+	private final int capacity;
+
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	BufferPool(int argBufferSize, int argCapacity) {
+		bufferSize = argBufferSize;
+		capacity = argCapacity;
+	}
+
+	/** Takes a cleared buffer from the pool.
+	 *
+	 * @return buffer, to be returned with {@link #release(ByteBuffer)}
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) return ByteBuffer.allocateDirect(bufferSize);
+
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/** Returns a buffer to the pool.
+	 *
+	 * @param buffer buffer taken from the pool
+	 */
+	void release(ByteBuffer buffer) {
+		if (pooled.incrementAndGet() <= capacity) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+}
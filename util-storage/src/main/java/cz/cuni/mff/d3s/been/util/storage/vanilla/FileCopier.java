@@ -0,0 +1,221 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.Storage.CopyMode;
+import cz.cuni.mff.d3s.been.util.storage.Storage.SyncOption;
+
+/** Copies individual files for a single copy operation.
+ * <p>
+ * Safe to use from multiple threads of a parallel copy.
+ * Storages derived from {@link VanillaStorage} can extend this
+ * to change how files are stored in workspaces.
+ */
+public class FileCopier {
+
+	/** Engine used unless the storage provides its own. */
+	private static final TransferEngine DEFAULT_TRANSFER_ENGINE = new TransferEngine(TransferEngine.DEFAULT_THRESHOLD);
+
+	private final CopyMode mode;
+
+	/** Synchronization options, null when files are always transferred. */
+	private final Set<SyncOption> syncOptions;
+
+	/** Set after linking fails, typically because source and destination are on different volumes. */
+	private volatile boolean linkFailed;
+
+	private final AtomicLong filesTransferred = new AtomicLong();
+	private final AtomicLong bytesTransferred = new AtomicLong();
+	private final AtomicLong filesSkipped = new AtomicLong();
+	private final AtomicLong filesDeleted = new AtomicLong();
+
+	/** Net change of destination size and file count, for the usage index. */
+	private final AtomicLong bytesAdded = new AtomicLong();
+	private final AtomicLong filesAdded = new AtomicLong();
+
+	private TransferEngine transferEngine = DEFAULT_TRANSFER_ENGINE;
+
+	protected FileCopier(CopyMode argMode) {
+		this(argMode, null);
+	}
+
+	/** Creates a copier.
+	 *
+	 * @param argMode copy mode
+	 * @param argSyncOptions synchronization options, null to always transfer files
+	 */
+	protected FileCopier(CopyMode argMode, Set<SyncOption> argSyncOptions) {
+		mode = argMode;
+		syncOptions = argSyncOptions;
+	}
+
+	/*****************************************************************************/
+
+	/** Copies a file, replacing the destination if it exists.
+	 * <p>
+	 * When synchronizing, a destination that is up to date is left alone.
+	 *
+	 * @param source source file
+	 * @param destination destination file
+	 * @throws IOException
+	 */
+	public final void copyFile(Path source, Path destination) throws IOException {
+		BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+
+		if (syncOptions != null && isUpToDate(source, sourceAttributes, destination)) {
+			filesSkipped.incrementAndGet();
+			return;
+		}
+
+		try {
+			BasicFileAttributes destinationAttributes = Files.readAttributes(destination, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			bytesAdded.addAndGet(-destinationAttributes.size());
+		} catch (NoSuchFileException e) {
+			filesAdded.incrementAndGet();
+		}
+
+		transferFile(source, sourceAttributes, destination);
+		filesTransferred.incrementAndGet();
+		bytesTransferred.addAndGet(sourceAttributes.size());
+		bytesAdded.addAndGet(sourceAttributes.size());
+	}
+
+	/** Transfers a file, replacing the destination if it exists.
+	 *
+	 * @param source source file
+	 * @param sourceAttributes attributes of the source file
+	 * @param destination destination file
+	 * @throws IOException
+	 */
+	protected void transferFile(Path source, BasicFileAttributes sourceAttributes, Path destination) throws IOException {
+		if (mode == CopyMode.LINK && !linkFailed && Files.isRegularFile(source, LinkOption.NOFOLLOW_LINKS)) {
+			if (linkFile(source, destination)) return;
+		}
+		transferEngine.copy(source, sourceAttributes, destination);
+	}
+
+	private boolean linkFile(Path source, Path destination) throws IOException {
+		// Deleting the destination when it is the source would lose the file.
+		if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(source, destination)) return true;
+
+		try {
+			Files.deleteIfExists(destination);
+			Files.createLink(destination, source);
+			return true;
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			// Once linking fails it will most likely fail for the other files too.
+			linkFailed = true;
+			return false;
+		}
+	}
+
+	/*****************************************************************************/
+
+	private boolean isUpToDate(Path source, BasicFileAttributes sourceAttributes, Path destination) throws IOException {
+		BasicFileAttributes destinationAttributes;
+		try {
+			destinationAttributes = Files.readAttributes(destination, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+
+		if (!destinationAttributes.isRegularFile()) return false;
+		if (destinationAttributes.size() != sourceAttributes.size()) return false;
+
+		if (syncOptions.contains(SyncOption.CONTENT)) return transferEngine.isSameContent(source, destination);
+		// Copying attributes need not preserve the full time precision, milliseconds are compared.
+		return destinationAttributes.lastModifiedTime().toMillis() == sourceAttributes.lastModifiedTime().toMillis();
+	}
+
+	/*****************************************************************************/
+
+	void setTransferEngine(TransferEngine argTransferEngine) {
+		transferEngine = argTransferEngine;
+	}
+
+	/** Creates a destination directory unless it exists already.
+	 *
+	 * @param source source directory
+	 * @param destination destination directory
+	 * @throws IOException
+	 */
+	void copyDirectory(Path source, Path destination) throws IOException {
+		if (Files.isDirectory(destination, LinkOption.NOFOLLOW_LINKS)) return;
+		Files.copy(source, destination, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/** Completes a directory after its content was copied.
+	 * <p>
+	 * Deletes extraneous entries when synchronizing with deletion and restores
+	 * the modification time, which copying the content changes.
+	 *
+	 * @param source source directory
+	 * @param destination destination directory
+	 * @throws IOException
+	 */
+	void finishDirectory(Path source, Path destination) throws IOException {
+		if (syncOptions != null && syncOptions.contains(SyncOption.DELETE)) {
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(destination)) {
+				for (Path entry : entries) {
+					if (Files.exists(source.resolve(entry.getFileName()), LinkOption.NOFOLLOW_LINKS)) continue;
+					deleteTree(entry);
+					filesDeleted.incrementAndGet();
+				}
+			}
+		}
+
+		Files.setLastModifiedTime(destination, Files.getLastModifiedTime(source));
+	}
+
+	/** Deletes an extraneous destination tree, accounting for the deleted files. */
+	private void deleteTree(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				bytesAdded.addAndGet(-attributes.size());
+				filesAdded.decrementAndGet();
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				if (e != null) throw e;
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/** Returns statistics of the files handled so far.
+	 *
+	 * @return copy statistics
+	 */
+	public CopyStatistics getStatistics() {
+		return new CopyStatistics(filesTransferred.get(), bytesTransferred.get(), filesSkipped.get(), filesDeleted.get());
+	}
+
+	/** Returns the net change of destination file size, negative when more was deleted than copied. */
+	long getBytesAdded() {
+		return bytesAdded.get();
+	}
+
+	/** Returns the net change of destination file count. */
+	long getFilesAdded() {
+		return filesAdded.get();
+	}
+}
@@ -0,0 +1,225 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Keeps the status of each address in a status file in the address directory.
+ * <p>
+ * File locks exclude other processes but fail rather than wait when two threads
+ * of one process lock the same file. Threads therefore queue on a striped lock
+ * keyed by the address directory before locking the status file. The stripes
+ * are shared by all engines in the process, because so are the file locks.
+ */
+class FileStatusEngine implements StatusEngine {
+
+	static final String PATH_STATUS = ".status";
+
+	private static final int LOCK_STRIPES = 256;
+
+	private static final ReentrantLock [] stripes = new ReentrantLock [LOCK_STRIPES];
+	static {
+		for (int stripe = 0; stripe < LOCK_STRIPES; stripe ++) stripes [stripe] = new ReentrantLock(true);
+	}
+
+	/** Pool of buffers to read status files into. */
+	private final BufferPool buffers;
+
+	/** Directories known to exist. */
+	private final PathCache pathCache;
+
+	/** Creates the engine.
+	 *
+	 * @param argBuffers pool of buffers to read status files into
+	 * @param argPathCache cache of directories known to exist
+	 */
+	FileStatusEngine(BufferPool argBuffers, PathCache argPathCache) {
+		buffers = argBuffers;
+		pathCache = argPathCache;
+	}
+
+	private static ReentrantLock getStripe(Path basePath) {
+		// The same directory must map to the same stripe whichever engine resolved it.
+		return stripes [(basePath.toAbsolutePath().hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	private class LockedStatusFile implements LockedStatus {
+
+		private final FileChannel statusChannel;
+		private final ReentrantLock stripe;
+
+		LockedStatusFile(FileChannel argStatusChannel, ReentrantLock argStripe) {
+			statusChannel = argStatusChannel;
+			stripe = argStripe;
+		}
+
+		@Override
+		public Status get() throws StorageException {
+			return readStatusFromChannel(statusChannel);
+		}
+
+		@Override
+		public void set(Status status) throws StorageException {
+			byte [] statusArray = status.name().getBytes(StandardCharsets.UTF_8);
+			ByteBuffer statusBuffer = ByteBuffer.wrap(statusArray);
+	
+			try {
+				statusChannel.truncate(0);
+				statusChannel.write(statusBuffer, 0);
+			} catch (IOException e) {
+				throw new StorageException("Failed to update status file.", e);
+			}
+		}
+
+		@Override
+		public void force() throws StorageException {
+			try {
+				statusChannel.force(false);
+			} catch (IOException e) {
+				throw new StorageException("Failed to force status file.", e);
+			}
+		}
+
+		@Override
+		public void close() throws StorageException {
+			try {
+				statusChannel.close();
+			} catch (IOException e) {
+				throw new StorageException("Failed to close status file.", e);
+			} finally {
+				stripe.unlock();
+			}
+		}
+	}
+
+	/*****************************************************************************/
+
+	private FileChannel openStatusChannel(Path basePath) throws IOException {
+		Path statusPath = basePath.resolve(PATH_STATUS);
+
+		pathCache.createDirectories(basePath);
+		try {
+			return FileChannel.open(statusPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		} catch (NoSuchFileException e) {
+			// The address directory was removed externally after it was cached.
+			pathCache.invalidate(basePath);
+			pathCache.createDirectories(basePath);
+			return FileChannel.open(statusPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		}
+	}
+
+	private FileChannel getLockedStatusChannel(Path basePath) throws StorageException {
+		FileChannel statusChannel;
+		
+		try {
+			// We want to return the channel which is why we cannot try with resources here.
+			statusChannel = openStatusChannel(basePath);
+			
+			try {
+				statusChannel.lock();
+			} catch (IOException e) {
+				statusChannel.close();
+				throw new StorageException("Failed to lock status file.", e);
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to access status file.", e);
+		}
+		
+		return statusChannel;
+	}
+	
+	private Status readStatusFromChannel(FileChannel statusChannel) throws StorageException {
+
+		byte [] statusArray;
+		ByteBuffer statusBuffer = buffers.acquire();
+		try {
+			statusChannel.read(statusBuffer, 0);
+			statusArray = new byte [statusBuffer.position()];
+			statusBuffer.flip();
+			statusBuffer.get (statusArray);
+		} catch (IOException e) {
+			throw new StorageException("Failed to read status file.", e);
+		} finally {
+			buffers.release(statusBuffer);
+		}
+		
+		String statusText = new String(statusArray, StandardCharsets.UTF_8);
+
+		if (statusText.isEmpty()) return (Status.NONE);
+		
+		try {
+			return Status.valueOf(statusText);
+		} catch (IllegalArgumentException e) {
+			throw new StorageException("Invalid status file.", e);
+		}
+	}
+
+	/** Reads a status file without creating it.
+	 *
+	 * @param basePath directory of the address
+	 * @return address status, none when the status file does not exist
+	 * @throws StorageException
+	 */
+	Status readStatusFile(Path basePath) throws StorageException {
+		Path statusPath = basePath.resolve(PATH_STATUS);
+
+		// Readers share the file lock with other processes, within the process
+		// the stripe is still exclusive because file locks may not overlap.
+		ReentrantLock stripe = getStripe(basePath);
+		stripe.lock();
+		try (FileChannel statusChannel = FileChannel.open(statusPath, StandardOpenOption.READ)) {
+			statusChannel.lock(0, Long.MAX_VALUE, true);
+			return readStatusFromChannel(statusChannel);
+		} catch (NoSuchFileException e) {
+			return Status.NONE;
+		} catch (IOException e) {
+			throw new StorageException("Failed to read status file.", e);
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	/*****************************************************************************/
+
+	@Override
+	public Status getStatus(Iterable<String> address, Path basePath) throws StorageException {
+		try (LockedStatus status = lock(address, basePath)) {
+			return status.get();
+		}
+	}
+
+	@Override
+	public LockedStatus lock(Iterable<String> address, Path basePath) throws StorageException {
+		ReentrantLock stripe = getStripe(basePath);
+		stripe.lock();
+		try {
+			return new LockedStatusFile(getLockedStatusChannel(basePath), stripe);
+		} catch (StorageException | RuntimeException e) {
+			stripe.unlock();
+			throw e;
+		}
+	}
+
+	@Override
+	public Path getWatchableFile(Path basePath) {
+		return basePath.resolve(PATH_STATUS);
+	}
+
+	@Override
+	public StatusReader newReader() {
+		return new StatusReader() {
+			@Override
+			public Status read(Iterable<String> address, Path basePath) throws StorageException {
+				return readStatusFile(basePath);
+			}
+		};
+	}
+}
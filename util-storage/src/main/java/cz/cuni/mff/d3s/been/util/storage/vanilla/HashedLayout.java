@@ -0,0 +1,374 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Places address directories by the hash of the address rather than nesting them.
+ * <p>
+ * Each address directory sits below two levels of hash prefix directories in
+ * {@value #PATH_HASHED}, so that no directory grows with the address tree and
+ * resolving an address takes the same time at any depth. Since directories no
+ * longer reflect the address tree, each address directory keeps an index of its
+ * children, an address is entered into the index of its parent before its own
+ * directory is created. An existing address directory therefore implies an
+ * indexed address, only the address entered last need not have a directory yet.
+ * <p>
+ * An address is only entered while its directory does not exist, and an entry whose
+ * directory could not be created is removed again, by the appender itself or, after
+ * a crash, by the next appender. The index therefore holds no duplicates.
+ * <p>
+ * Each record holds the child name with its length and checksum before it and the
+ * length again after it, so that the last record can be checked from the end of the
+ * index. A record cut off by a crash is truncated by the next appender, readers stop at it.
+ * The index is read as records follow each other, so that listing streams
+ * the children and a listing page can resume at the offset of the next record.
+ * <p>
+ * The children index is appended to under a file lock, which excludes other processes
+ * but fails when two threads of one process lock the same file. Threads therefore
+ * queue on a striped lock first, as with status files.
+ */
+class HashedLayout {
+
+	static final String PATH_HASHED = ".hashed";
+	static final String PATH_CHILDREN = ".children";
+
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+
+	/** Record header, the name length and checksum. */
+	private static final int HEADER_SIZE = 8;
+	/** Record trailer, the name length again. */
+	private static final int TRAILER_SIZE = 4;
+
+	private static final int LOCK_STRIPES = 64;
+
+	private static final ReentrantLock [] stripes = new ReentrantLock [LOCK_STRIPES];
+	static {
+		for (int stripe = 0; stripe < LOCK_STRIPES; stripe ++) stripes [stripe] = new ReentrantLock();
+	}
+
+	private static final char [] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private final PathCache pathCache;
+
+	/** Creates the layout.
+	 *
+	 * @param argPathCache cache of address paths and directories known to exist
+	 */
+	HashedLayout(PathCache argPathCache) {
+		pathCache = argPathCache;
+	}
+
+	/*****************************************************************************/
+
+	/** Returns the root of the hashed address directories.
+	 *
+	 * @param storagePath storage root directory
+	 * @return hashed directories root
+	 */
+	static Path getHashedPath(Path storagePath) {
+		return storagePath.resolve(PATH_HASHED);
+	}
+
+	/** Returns the directory of an address.
+	 *
+	 * @param hashedPath root of the hashed address directories
+	 * @param address storage address
+	 * @return address directory, which need not exist
+	 */
+	static Path resolve(Path hashedPath, List<String> address) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every platform is required to provide the algorithm.
+			throw new IllegalStateException(e);
+		}
+
+		// Elements are prefixed with their length so that no two addresses hash the same input.
+		for (String element : address) {
+			byte [] bytes = element.getBytes(StandardCharsets.UTF_8);
+			digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+			digest.update(bytes);
+		}
+
+		byte [] hash = digest.digest();
+		char [] hex = new char [hash.length * 2];
+		for (int index = 0; index < hash.length; index ++) {
+			hex [index * 2] = HEX_DIGITS [(hash [index] >> 4) & 0xf];
+			hex [index * 2 + 1] = HEX_DIGITS [hash [index] & 0xf];
+		}
+		String name = new String(hex);
+
+		return hashedPath.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
+	}
+
+	/** Makes sure an address directory exists and the address is in the index of its parent.
+	 *
+	 * @param address storage address
+	 * @return address directory
+	 * @throws StorageException
+	 */
+	Path register(List<String> address) throws StorageException {
+		Path basePath = pathCache.getBasePath(address);
+		if (pathCache.isKnown(basePath)) return basePath;
+
+		try {
+			if (!address.isEmpty() && !Files.isDirectory(basePath)) {
+				List<String> parent = address.subList(0, address.size() - 1);
+				appendChild(register(parent), parent, address.get(address.size() - 1));
+			}
+			pathCache.createDirectories(basePath);
+		} catch (IOException e) {
+			throw new StorageException("Failed to register address.", e);
+		}
+		return basePath;
+	}
+
+	private static int checksum(byte [] name) {
+		CRC32 crc = new CRC32();
+		crc.update(name, 0, name.length);
+		return (int) crc.getValue();
+	}
+
+	/** Encodes an index record. */
+	private static ByteBuffer encode(String child) {
+		byte [] name = child.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + name.length + TRAILER_SIZE);
+		record.putInt(name.length).putInt(checksum(name)).put(name).putInt(name.length);
+		record.flip();
+		return record;
+	}
+
+	/** Reads the name of a record at a position.
+	 *
+	 * @return child name, null when the record is cut off or damaged
+	 */
+	private static String readRecord(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		if (!readFully(channel, header, position)) return null;
+		int length = header.getInt();
+		int checksum = header.getInt();
+		if (length < 0 || length > channel.size() - position - HEADER_SIZE - TRAILER_SIZE) return null;
+
+		ByteBuffer body = ByteBuffer.allocate(length + TRAILER_SIZE);
+		if (!readFully(channel, body, position + HEADER_SIZE)) return null;
+		byte [] name = new byte [length];
+		body.get(name);
+		if (body.getInt() != length || checksum(name) != checksum) return null;
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) return false;
+		}
+		buffer.flip();
+		return true;
+	}
+
+	/** Finds the end of the last complete record, scanning the whole index only when the last record is cut off. */
+	private static long findEnd(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size == 0) return 0;
+
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		if (size >= HEADER_SIZE + TRAILER_SIZE && readFully(channel, trailer, size - TRAILER_SIZE)) {
+			long start = size - TRAILER_SIZE - trailer.getInt() - HEADER_SIZE;
+			if (start >= 0 && readRecord(channel, start) != null) return size;
+		}
+
+		long end = 0;
+		for (String child = readRecord(channel, end); child != null; child = readRecord(channel, end)) {
+			end += getRecordLength(child);
+		}
+		return end;
+	}
+
+	/** Returns the start of the record ending at an offset. */
+	private static long findStart(FileChannel channel, long end) throws IOException {
+		ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+		readFully(channel, trailer, end - TRAILER_SIZE);
+		return end - TRAILER_SIZE - trailer.getInt() - HEADER_SIZE;
+	}
+
+	/** Enters a child into the index of its parent and creates the child directory.
+	 *
+	 * @param parentPath parent address directory
+	 * @param parent parent address
+	 * @param child name of the child address
+	 * @throws IOException
+	 */
+	private void appendChild(Path parentPath, List<String> parent, String child) throws IOException {
+		Path childrenPath = parentPath.resolve(PATH_CHILDREN);
+		Path childPath = getChildPath(parent, child);
+
+		ReentrantLock stripe = stripes [(childrenPath.toAbsolutePath().hashCode() & 0x7fffffff) % LOCK_STRIPES];
+		stripe.lock();
+		try (FileChannel channel = FileChannel.open(childrenPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+			channel.lock();
+			// Creating the directory under the lock keeps threads racing to create one child from each entering it.
+			if (Files.isDirectory(childPath)) return;
+
+			// Drop what a crashed append left behind, a cut off record or an entry without a directory.
+			long end = findEnd(channel);
+			if (end > 0) {
+				long start = findStart(channel, end);
+				if (!Files.isDirectory(getChildPath(parent, readRecord(channel, start)))) end = start;
+			}
+			channel.truncate(end);
+
+			// The record is written with one call so that readers see either all of it or a cut off end.
+			ByteBuffer record = encode(child);
+			long position = end;
+			while (record.hasRemaining()) {
+				position += channel.write(record, position);
+			}
+
+			boolean created = false;
+			try {
+				Files.createDirectories(childPath);
+				created = true;
+			} finally {
+				if (!created) channel.truncate(end);
+			}
+		} finally {
+			stripe.unlock();
+		}
+	}
+
+	private Path getChildPath(List<String> parent, String child) {
+		List<String> address = new ArrayList<String>(parent);
+		address.add(child);
+		return pathCache.getBasePath(address);
+	}
+
+	/** Iterates over the children index of an address.
+	 * <p>
+	 * Reading fails with {@link UncheckedIOException}, as with directory streams.
+	 */
+	static class ChildIterator implements Iterator<String>, Closeable {
+
+		private final DataInputStream input;
+
+		/** Offset of the record after the last one returned. */
+		private long offset;
+
+		private String next;
+		private long nextLength;
+
+		ChildIterator(DataInputStream argInput, long argOffset) {
+			input = argInput;
+			offset = argOffset;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (input == null) return false;
+			if (next != null) return true;
+			try {
+				int length = input.readInt();
+				int checksum = input.readInt();
+				if (length < 0) return false;
+				byte [] name = new byte [length];
+				input.readFully(name);
+				// A damaged record can only be one cut off while being written.
+				if (input.readInt() != length || checksum(name) != checksum) return false;
+				next = new String(name, StandardCharsets.UTF_8);
+				nextLength = HEADER_SIZE + length + TRAILER_SIZE;
+				return true;
+			} catch (EOFException e) {
+				// End of the index, possibly in a record still being written.
+				return false;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public String next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			String child = next;
+			next = null;
+			offset += nextLength;
+			return child;
+		}
+
+		/** Returns the index offset after the last child returned, where a later iteration can resume. */
+		long getOffset() {
+			return offset;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (input != null) input.close();
+		}
+	}
+
+	/** Returns the length of an index record. */
+	private static long getRecordLength(String child) {
+		return HEADER_SIZE + child.getBytes(StandardCharsets.UTF_8).length + TRAILER_SIZE;
+	}
+
+	/** Opens the children index of an address for reading.
+	 *
+	 * @param basePath address directory
+	 * @param offset index offset to start at, zero for the first child
+	 * @return iterator over child names in the order they were created, to be closed by the caller
+	 * @throws StorageException
+	 */
+	ChildIterator iterate(Path basePath, long offset) throws StorageException {
+		try {
+			FileChannel channel = FileChannel.open(basePath.resolve(PATH_CHILDREN), StandardOpenOption.READ);
+			try {
+				channel.position(offset);
+				return new ChildIterator(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel))), offset);
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+		} catch (NoSuchFileException e) {
+			// No children yet.
+			return new ChildIterator(null, offset);
+		} catch (IOException e) {
+			throw new StorageException("Failed to list storage.", e);
+		}
+	}
+
+	/** Returns the children of an address in the order they were created.
+	 *
+	 * @param basePath address directory
+	 * @return names of the child addresses
+	 * @throws StorageException
+	 */
+	List<String> list(Path basePath) throws StorageException {
+		List<String> children = new ArrayList<String>();
+		try (ChildIterator iterator = iterate(basePath, 0)) {
+			while (iterator.hasNext()) children.add(iterator.next());
+		} catch (IOException | UncheckedIOException e) {
+			throw new StorageException("Failed to list storage.", e);
+		}
+		return children;
+	}
+}
@@ -0,0 +1,32 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.util.List;
+
+/** Status changes read from the status journal.
+ *
+ * @see StatusJournal#tail(long, int)
+ */
+public class JournalPage {
+
+	private List<StatusChange> changes;
+	private long nextOffset;
+
+	public JournalPage(List<StatusChange> argChanges, long argNextOffset) {
+		changes = argChanges;
+		nextOffset = argNextOffset;
+	}
+
+	public List<StatusChange> getChanges() {
+		return changes;
+	}
+
+	/** Returns the offset to continue reading from.
+	 * <p>
+	 * When there were no more changes, this is the offset the page was read from.
+	 *
+	 * @return journal offset
+	 */
+	public long getNextOffset() {
+		return nextOffset;
+	}
+}
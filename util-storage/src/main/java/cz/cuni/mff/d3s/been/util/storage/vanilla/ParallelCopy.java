@@ -0,0 +1,129 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Copies a directory tree with a fork join pool.
+ * <p>
+ * Each directory is handled by one task, which forks a subtask for
+ * each subdirectory and for each batch of files. The directory
+ * is finished only after all subtasks finish, because creating
+ * the directory content changes its modification time.
+ */
+class ParallelCopy {
+
+	/** Number of files copied by one task. Keeps tasks reasonably coarse in wide directories. */
+	private static final int FILE_BATCH_SIZE = 32;
+
+	private final ForkJoinPool pool;
+
+	ParallelCopy(int argParallelism) {
+		pool = new ForkJoinPool(argParallelism);
+	}
+
+	/** Copies a directory tree.
+	 *
+	 * @param source source directory
+	 * @param destination destination directory
+	 * @param copier copier used for individual files
+	 * @throws IOException
+	 */
+	void copy(Path source, Path destination, FileCopier copier) throws IOException {
+		try {
+			pool.invoke(new DirectoryTask(source, destination, copier));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/** Stops the copying threads once their tasks complete. */
+	void close() {
+		pool.shutdown();
+	}
+
+	/*****************************************************************************/
+
+	private static class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path sourceDirectory;
+		private final Path destinationDirectory;
+		private final FileCopier copier;
+
+		DirectoryTask(Path argSourceDirectory, Path argDestinationDirectory, FileCopier argCopier) {
+			sourceDirectory = argSourceDirectory;
+			destinationDirectory = argDestinationDirectory;
+			copier = argCopier;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				copier.copyDirectory(sourceDirectory, destinationDirectory);
+
+				List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+				List<Path> batch = new ArrayList<Path>(FILE_BATCH_SIZE);
+
+				try (DirectoryStream<Path> entries = Files.newDirectoryStream(sourceDirectory)) {
+					for (Path entry : entries) {
+						Path name = entry.getFileName();
+						// Links are not followed when walking, same as with the sequential visitor.
+						if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+							tasks.add(new DirectoryTask(sourceDirectory.resolve(name), destinationDirectory.resolve(name), copier));
+						} else {
+							batch.add(name);
+							if (batch.size() == FILE_BATCH_SIZE) {
+								tasks.add(new FileTask(sourceDirectory, destinationDirectory, batch, copier));
+								batch = new ArrayList<Path>(FILE_BATCH_SIZE);
+							}
+						}
+					}
+				}
+				if (!batch.isEmpty()) tasks.add(new FileTask(sourceDirectory, destinationDirectory, batch, copier));
+
+				invokeAll(tasks);
+
+				copier.finishDirectory(sourceDirectory, destinationDirectory);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private static class FileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path sourceDirectory;
+		private final Path destinationDirectory;
+		private final List<Path> names;
+		private final FileCopier copier;
+
+		FileTask(Path argSourceDirectory, Path argDestinationDirectory, List<Path> argNames, FileCopier argCopier) {
+			sourceDirectory = argSourceDirectory;
+			destinationDirectory = argDestinationDirectory;
+			names = argNames;
+			copier = argCopier;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				for (Path name : names) {
+					copier.copyFile(sourceDirectory.resolve(name), destinationDirectory.resolve(name));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/** Remembers address paths and directories known to exist.
+ * <p>
+ * Resolving an address and making sure its directories exist is done on
+ * every storage operation, the cache makes repeated use of an address free
+ * of file system calls, except for one check of each workspace path handed
+ * out. Both maps are bounded and evict the least recently used entries.
+ * <p>
+ * Directories removed by the storage are invalidated explicitly. Directories
+ * removed externally are not noticed until an operation on them fails,
+ * which is when the callers invalidate them and retry. Workspace paths are
+ * handed out rather than used, so every call handing one out checks it
+ * with {@link #checkKnown(Path)}.
+ * <p>
+ * Known directories are also kept sorted by name, so that invalidating a
+ * directory finds the directories below it as a range rather than by scanning.
+ */
+class PathCache {
+
+	private final Path storagePath;
+
+	/** Root of the hashed address directories, null with the nested layout. */
+	private final Path hashedPath;
+
+	private final Map<List<String>, Path> basePaths;
+	private final DirectoryMap directories;
+
+	/** Incremented on every invalidation, so that directories created meanwhile are not remembered. */
+	private long generation;
+
+	/** Creates a cache.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @param argCapacity maximum number of entries in each map, zero disables caching
+	 * @param argLayout layout of address directories
+	 */
+	PathCache(Path argStoragePath, int argCapacity, VanillaConfiguration.Layout argLayout) {
+		storagePath = argStoragePath;
+		hashedPath = (argLayout == VanillaConfiguration.Layout.HASHED) ? HashedLayout.getHashedPath(argStoragePath) : null;
+		basePaths = new BoundedMap<List<String>, Path>(argCapacity);
+		directories = new DirectoryMap(argCapacity);
+	}
+
+	private static class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		BoundedMap(int argCapacity) {
+			super(16, 0.75f, true);
+			capacity = argCapacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return size() > capacity;
+		}
+	}
+
+	/** Bounded map of known directories with a sorted index of their names. */
+	private static class DirectoryMap extends BoundedMap<String, Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final TreeSet<String> sorted = new TreeSet<String>();
+
+		DirectoryMap(int argCapacity) {
+			super(argCapacity);
+		}
+
+		@Override
+		public Boolean put(String key, Boolean value) {
+			sorted.add(key);
+			return super.put(key, value);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			if (!super.removeEldestEntry(eldest)) return false;
+			sorted.remove(eldest.getKey());
+			return true;
+		}
+
+		/** Removes a directory and all directories below it. */
+		void removeTree(String key, String separator) {
+			remove(key);
+			sorted.remove(key);
+			// Names below the directory all sort before the directory with the separator incremented.
+			SortedSet<String> below = sorted.subSet(key + separator, key + (char) (separator.charAt(0) + 1));
+			for (String name : below) remove(name);
+			below.clear();
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Returns the directory of an address.
+	 *
+	 * @param address storage address
+	 * @return address directory, which need not exist
+	 */
+	Path getBasePath(Iterable<String> address) {
+		List<String> key = new ArrayList<String>();
+		for (String element : address) key.add(element);
+
+		synchronized (basePaths) {
+			Path basePath = basePaths.get(key);
+			if (basePath != null) return basePath;
+		}
+
+		Path basePath;
+		if (hashedPath != null) {
+			basePath = HashedLayout.resolve(hashedPath, key);
+		} else {
+			// Build the base path by concatenating address elements
+			basePath = storagePath;
+			for (String element : key) {
+				basePath = basePath.resolve(element);
+			}
+		}
+
+		synchronized (basePaths) {
+			basePaths.put(key, basePath);
+		}
+		return basePath;
+	}
+
+	/** Tells whether a directory is known to exist.
+	 *
+	 * @param directory directory to check
+	 * @return true when the directory was created or found before and not invalidated since
+	 */
+	boolean isKnown(Path directory) {
+		synchronized (directories) {
+			return directories.get(directory.toString()) != null;
+		}
+	}
+
+	/** Makes sure a directory exists, creating it and its parents when not known to exist.
+	 *
+	 * @param directory directory to create
+	 * @throws IOException
+	 */
+	void createDirectories(Path directory) throws IOException {
+		String key = directory.toString();
+		long created;
+		synchronized (directories) {
+			if (directories.get(key) != null) return;
+			created = generation;
+		}
+
+		Files.createDirectories(directory);
+
+		synchronized (directories) {
+			// An invalidation while creating might have removed the directory again.
+			if (generation == created) directories.put(key, Boolean.TRUE);
+		}
+	}
+
+	/** Tells whether a directory is known to exist and still does, forgetting it when not.
+	 * <p>
+	 * Costs one check of the directory on every call, even when the directory is known,
+	 * used where the directory is handed out rather than used by an operation that would fail.
+	 *
+	 * @param directory directory to check
+	 * @return true when the directory is known and exists, false when it has to be created
+	 */
+	boolean checkKnown(Path directory) {
+		if (isKnown(directory) && Files.isDirectory(directory)) return true;
+		invalidate(directory);
+		return false;
+	}
+
+	/** Forgets a directory and all directories below it.
+	 * <p>
+	 * Must be called after removing a directory the cache might know.
+	 *
+	 * @param directory removed directory
+	 */
+	void invalidate(Path directory) {
+		synchronized (directories) {
+			generation ++;
+			directories.removeTree(directory.toString(), directory.getFileSystem().getSeparator());
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.util.List;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+
+/** One status transition recorded in the status journal.
+ *
+ * @see StatusJournal
+ */
+public class StatusChange {
+
+	private List<String> address;
+	private Status oldStatus;
+	private Status newStatus;
+	private long time;
+
+	public StatusChange(List<String> argAddress, Status argOldStatus, Status argNewStatus, long argTime) {
+		address = argAddress;
+		oldStatus = argOldStatus;
+		newStatus = argNewStatus;
+		time = argTime;
+	}
+
+	public List<String> getAddress() {
+		return address;
+	}
+
+	public Status getOldStatus() {
+		return oldStatus;
+	}
+
+	public Status getNewStatus() {
+		return newStatus;
+	}
+
+	/** Returns the time of the transition in milliseconds since the epoch. */
+	public long getTime() {
+		return time;
+	}
+
+	@Override
+	public String toString() {
+		return address + " " + oldStatus + " -> " + newStatus + " at " + time;
+	}
+}
@@ -0,0 +1,59 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.nio.file.Path;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Keeps the statuses of storage addresses. */
+interface StatusEngine {
+
+	/** Status of a single address held locked until closed. */
+	interface LockedStatus extends AutoCloseable {
+		Status get() throws StorageException;
+		void set(Status status) throws StorageException;
+		/** Makes the status set so far survive a crash of the system. */
+		void force() throws StorageException;
+		@Override
+		void close() throws StorageException;
+	}
+
+	/** Reader of many statuses that shares resources between reads.
+	 * <p>
+	 * Reading does not create the address. A reader is used by a single thread.
+	 */
+	interface StatusReader {
+		Status read(Iterable<String> address, Path basePath) throws StorageException;
+	}
+
+	/** Reads the status of an address.
+	 *
+	 * @param address storage address
+	 * @param basePath directory of the address
+	 * @return address status
+	 * @throws StorageException
+	 */
+	Status getStatus(Iterable<String> address, Path basePath) throws StorageException;
+
+	/** Locks the status of an address, both within the process and across processes.
+	 *
+	 * @param address storage address
+	 * @param basePath directory of the address
+	 * @return locked status, to be closed by the caller
+	 * @throws StorageException
+	 */
+	LockedStatus lock(Iterable<String> address, Path basePath) throws StorageException;
+
+	/** Returns the file whose modification signals a status change of an address.
+	 *
+	 * @param basePath directory of the address
+	 * @return status file, null when changes cannot be watched
+	 */
+	Path getWatchableFile(Path basePath);
+
+	/** Creates a reader for reading many statuses.
+	 *
+	 * @return status reader
+	 */
+	StatusReader newReader();
+}
@@ -0,0 +1,317 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Append only journal of status transitions.
+ * <p>
+ * The journal is a sequence of segment files, each named after the journal offset
+ * of its first record. A segment is appended to until it reaches the segment size,
+ * then a new one is started. Offsets grow across segments, so an offset remembered
+ * by a reader stays valid until the segment holding it is truncated.
+ * <p>
+ * The lock file holds the offset where the last complete record ends. Records
+ * are visible to readers only once this offset is updated, and a record left
+ * incomplete by a crash is overwritten by the next append.
+ * <p>
+ * Appending is serialized by locking the lock file across processes and by a lock
+ * shared by all journals of the same directory within the process.
+ * <p>
+ * The storage appends a transition while the address status is locked but before
+ * the status changes. The journal therefore never misses a transition that took effect,
+ * but may hold one that did not when changing the status failed or the process crashed
+ * right after appending, and may hold a transition of a crashed batch twice once the
+ * batch is completed. Readers that need certainty check the current status.
+ */
+public class StatusJournal {
+
+	static final String PATH_JOURNAL = ".journal";
+
+	private static final String PATH_LOCK = "lock";
+	private static final String SEGMENT_SUFFIX = ".segment";
+
+	/** Record header, the payload length. */
+	private static final int HEADER_SIZE = 4;
+
+	/** In process locks by journal directory, because file locks cannot be nested within a process. */
+	private static final Map<Path, ReentrantLock> locks = new ConcurrentHashMap<Path, ReentrantLock>();
+
+	private final Path journalPath;
+	private final long segmentSize;
+	private final ReentrantLock lock;
+	private final FileChannel lockChannel;
+
+	/** Segment appended to, null until the first append. */
+	private FileChannel segment;
+	private long segmentStart;
+
+	/** Opens or creates the journal.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @param argSegmentSize size from which a new segment is started
+	 * @throws StorageException
+	 */
+	StatusJournal(Path argStoragePath, long argSegmentSize) throws StorageException {
+		journalPath = argStoragePath.resolve(PATH_JOURNAL).toAbsolutePath().normalize();
+		segmentSize = argSegmentSize;
+
+		ReentrantLock newLock = new ReentrantLock(true);
+		ReentrantLock oldLock = locks.putIfAbsent(journalPath, newLock);
+		lock = (oldLock != null) ? oldLock : newLock;
+
+		try {
+			Files.createDirectories(journalPath);
+			lockChannel = FileChannel.open(journalPath.resolve(PATH_LOCK), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		} catch (IOException e) {
+			throw new StorageException("Failed to open status journal.", e);
+		}
+	}
+
+	/*****************************************************************************/
+
+	private static String getSegmentName(long start) {
+		// Zero padding makes the names sort by offset.
+		return String.format("%020d%s", start, SEGMENT_SUFFIX);
+	}
+
+	/** Lists segment start offsets in ascending order. */
+	private List<Long> listSegments() throws IOException {
+		List<Long> starts = new ArrayList<Long>();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(journalPath, "*" + SEGMENT_SUFFIX)) {
+			for (Path entry : entries) {
+				String name = entry.getFileName().toString();
+				try {
+					starts.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// Not a segment after all.
+				}
+			}
+		} catch (DirectoryIteratorException e) {
+			throw e.getCause();
+		}
+		Collections.sort(starts);
+		return starts;
+	}
+
+	/** Reads the offset where the last complete record ends. */
+	private long readEnd() throws IOException {
+		ByteBuffer end = ByteBuffer.allocate(8);
+		while (end.hasRemaining()) {
+			if (lockChannel.read(end, end.position()) < 0) return 0;
+		}
+		end.flip();
+		return end.getLong();
+	}
+
+	private void writeEnd(long offset) throws IOException {
+		ByteBuffer end = ByteBuffer.allocate(8);
+		end.putLong(offset).flip();
+		while (end.hasRemaining()) {
+			lockChannel.write(end, end.position());
+		}
+	}
+
+	/** Opens the segment to append at an offset, starting a new one when the newest is full. */
+	private void openSegment(long end) throws IOException {
+		if (segment != null) segment.close();
+		segment = null;
+
+		List<Long> starts = listSegments();
+		long start = starts.isEmpty() ? 0 : starts.get(starts.size() - 1);
+		if (end - start >= segmentSize) start = end;
+
+		segment = FileChannel.open(journalPath.resolve(getSegmentName(start)), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+		segmentStart = start;
+	}
+
+	/** Encodes a status transition as a record, also used by the batch log. */
+	static ByteBuffer encode(Iterable<String> address, Status oldStatus, Status newStatus, long time) {
+		List<byte []> elements = new ArrayList<byte []>();
+		int size = HEADER_SIZE + 8 + 1 + 1 + 2;
+		for (String element : address) {
+			byte [] bytes = element.getBytes(StandardCharsets.UTF_8);
+			elements.add(bytes);
+			size += 2 + bytes.length;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(size);
+		record.position(HEADER_SIZE);
+		record.putLong(time);
+		record.put((byte) oldStatus.ordinal());
+		record.put((byte) newStatus.ordinal());
+		record.putShort((short) elements.size());
+		for (byte [] bytes : elements) {
+			record.putShort((short) bytes.length);
+			record.put(bytes);
+		}
+
+		record.putInt(0, size - HEADER_SIZE);
+
+		record.flip();
+		return record;
+	}
+
+	/** Appends a status transition.
+	 *
+	 * @param address storage address
+	 * @param oldStatus status before the transition
+	 * @param newStatus status after the transition
+	 * @param time time of the transition
+	 * @throws StorageException
+	 */
+	void append(Iterable<String> address, Status oldStatus, Status newStatus, long time) throws StorageException {
+		ByteBuffer record = encode(address, oldStatus, newStatus, time);
+
+		lock.lock();
+		try {
+			FileLock fileLock = lockChannel.lock();
+			try {
+				long end = readEnd();
+				// Another appender might have started a new segment, which happens only once the segment is full.
+				if (segment == null || end - segmentStart >= segmentSize) openSegment(end);
+
+				// Writing at the committed end rather than the segment end drops what a crashed append left behind.
+				long position = end - segmentStart;
+				int length = record.remaining();
+				while (record.hasRemaining()) {
+					position += segment.write(record, position);
+				}
+				writeEnd(end + length);
+			} finally {
+				fileLock.release();
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to append to status journal.", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Decodes the payload of a record. */
+	static StatusChange decode(ByteBuffer payload) {
+		Status [] statuses = Status.values();
+		long time = payload.getLong();
+		Status oldStatus = statuses [payload.get()];
+		Status newStatus = statuses [payload.get()];
+
+		int count = payload.getShort();
+		List<String> address = new ArrayList<String>(count);
+		for (int index = 0; index < count; index ++) {
+			byte [] bytes = new byte [payload.getShort()];
+			payload.get(bytes);
+			address.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+
+		return new StatusChange(address, oldStatus, newStatus, time);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Status journal segment truncated.");
+		}
+		buffer.flip();
+	}
+
+	/** Reads the payload of one record at a position. */
+	private static ByteBuffer readRecord(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, position);
+		ByteBuffer payload = ByteBuffer.allocate(header.getInt());
+		readFully(channel, payload, position + HEADER_SIZE);
+		return payload;
+	}
+
+	/** Reads status changes starting at an offset.
+	 * <p>
+	 * Reading from the offset returned with the last page yields the changes
+	 * recorded since, reading from zero replays the whole journal.
+	 *
+	 * @param offset journal offset to read from
+	 * @param limit maximum number of changes to read
+	 * @return changes read and the offset to continue from
+	 * @throws StorageException when the offset was truncated or reading failed
+	 */
+	public JournalPage tail(long offset, int limit) throws StorageException {
+		List<StatusChange> changes = new ArrayList<StatusChange>();
+		try {
+			// Records are complete up to the committed end, which is read before the segments are listed.
+			long committed = readEnd();
+			if (offset > committed) throw new StorageException("Status journal offset not available.");
+
+			List<Long> starts = listSegments();
+			if (offset < committed && (starts.isEmpty() || offset < starts.get(0))) throw new StorageException("Status journal offset truncated.");
+
+			long position = offset;
+			for (int index = 0; index < starts.size() && position < committed && changes.size() < limit; index ++) {
+				long start = starts.get(index);
+				long end = (index + 1 < starts.size()) ? Math.min(starts.get(index + 1), committed) : committed;
+				if (position >= end) continue;
+
+				try (FileChannel channel = FileChannel.open(journalPath.resolve(getSegmentName(start)), StandardOpenOption.READ)) {
+					while (position < end && changes.size() < limit) {
+						ByteBuffer payload = readRecord(channel, position - start);
+						changes.add(decode(payload));
+						position += HEADER_SIZE + payload.limit();
+					}
+				}
+			}
+
+			return new JournalPage(changes, position);
+
+		} catch (NoSuchFileException e) {
+			throw new StorageException("Status journal offset truncated.", e);
+		} catch (IOException e) {
+			throw new StorageException("Failed to read status journal.", e);
+		}
+	}
+
+	/** Deletes segments that hold only records before an offset.
+	 *
+	 * @param offset journal offset readers no longer need
+	 * @return number of segments deleted
+	 * @throws StorageException
+	 */
+	public int truncate(long offset) throws StorageException {
+		int deleted = 0;
+		lock.lock();
+		try {
+			FileLock fileLock = lockChannel.lock();
+			try {
+				List<Long> starts = listSegments();
+				// The newest segment stays even when read entirely, it is where appending continues.
+				for (int index = 0; index + 1 < starts.size(); index ++) {
+					if (starts.get(index + 1) > offset) break;
+					Files.delete(journalPath.resolve(getSegmentName(starts.get(index))));
+					deleted ++;
+				}
+			} finally {
+				fileLock.release();
+			}
+		} catch (IOException e) {
+			throw new StorageException("Failed to truncate status journal.", e);
+		} finally {
+			lock.unlock();
+		}
+		return deleted;
+	}
+}
@@ -0,0 +1,186 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Notifies threads waiting for status files to change.
+ * <p>
+ * All waiters share one watch service and one thread that dispatches its events.
+ * The directory of a status file is watched while somebody waits for the file.
+ * <p>
+ * Watching is not available on every file system, and some watch services
+ * only poll with long periods. Callers must poll themselves when
+ * {@link #watch(Path)} returns null.
+ */
+class StatusWatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(StatusWatcher.class);
+
+	/** Watch service, null when file system events are not available. */
+	private final WatchService watchService;
+
+	/** Watches by watched directory. */
+	private final Map<Path, Watch> watches = new HashMap<Path, Watch>();
+
+	/** Creates a watcher for a file system.
+	 *
+	 * @param argFileSystem file system of the status files
+	 */
+	StatusWatcher(FileSystem argFileSystem) {
+		WatchService service = null;
+		try {
+			service = argFileSystem.newWatchService();
+			// The generic implementation polls every few seconds, which is worse than polling ourselves.
+			if (service.getClass().getName().endsWith("PollingWatchService")) {
+				service.close();
+				service = null;
+			}
+		} catch (IOException | UnsupportedOperationException e) {
+			log.debug("File system watch not available, waiting for status will poll.", e);
+		}
+		watchService = service;
+
+		if (watchService != null) {
+			Thread dispatcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			}, "storage-status-watcher");
+			dispatcher.setDaemon(true);
+			dispatcher.start();
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Registration of a watched status file shared by the threads waiting on it. */
+	class Watch {
+
+		private final Path directory;
+		private final Path fileName;
+		private WatchKey key;
+		private int waiters;
+
+		/** Number of events seen, tells waiters whether something happened since they looked. */
+		private long version;
+
+		Watch(Path argFile) {
+			directory = argFile.getParent();
+			fileName = argFile.getFileName();
+		}
+
+		/** Returns the number of events seen so far.
+		 *
+		 * @return event count
+		 */
+		synchronized long getVersion() {
+			return version;
+		}
+
+		/** Waits until an event arrives after the given version or the time passes.
+		 *
+		 * @param seenVersion version seen before checking the status
+		 * @param millis maximum time to wait
+		 * @throws InterruptedException
+		 */
+		synchronized void await(long seenVersion, long millis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + millis;
+			while (version == seenVersion) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return;
+				wait(remaining);
+			}
+		}
+
+		private synchronized void signal() {
+			version ++;
+			notifyAll();
+		}
+
+		/** Stops waiting, the directory is no longer watched when nobody else waits. */
+		void release() {
+			synchronized (watches) {
+				if (-- waiters > 0) return;
+				watches.remove(directory);
+				key.cancel();
+			}
+		}
+	}
+
+	/** Starts watching a status file.
+	 * <p>
+	 * The directory of the file must exist, the file need not.
+	 *
+	 * @param file file to watch
+	 * @return watch to be released by the caller, null when the file cannot be watched
+	 */
+	Watch watch(Path file) {
+		if (watchService == null) return null;
+
+		Path directory = file.getParent();
+		synchronized (watches) {
+			Watch watch = watches.get(directory);
+			if (watch == null) {
+				watch = new Watch(file);
+				try {
+					watch.key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+				} catch (IOException | ClosedWatchServiceException e) {
+					log.debug("Failed to watch {}, waiting for status will poll.", directory, e);
+					return null;
+				}
+				watches.put(directory, watch);
+			}
+			watch.waiters ++;
+			return watch;
+		}
+	}
+
+	/** Stops watching and the dispatching thread, later waiters poll. */
+	void close() {
+		if (watchService == null) return;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			log.debug("Failed to close status watch service.", e);
+		}
+	}
+
+	private void dispatch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			Watch watch;
+			synchronized (watches) {
+				watch = watches.get((Path) key.watchable());
+			}
+
+			// Only events of the status file and overflows wake the waiters, which read the status
+			// and wait again when nothing changed. Other events would only cost them a read.
+			boolean relevant = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) relevant = true;
+				else if (watch != null && watch.fileName.equals(event.context())) relevant = true;
+			}
+			if (relevant && watch != null) watch.signal();
+
+			key.reset();
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Status;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Keeps the statuses of all addresses in a single memory mapped table.
+ * <p>
+ * The table is an open addressing hash table with fixed size slots, each slot
+ * holds the address key and status. Slots are never freed, so the probe sequence
+ * of a key never changes. Slots are claimed and updated under a striped lock
+ * within the process and a file region lock across processes. The striped locks
+ * are shared by all engines of the same table in the process, because so are the file locks.
+ * <p>
+ * A key is only looked for within a bounded window of slots from its hash. Once all
+ * slots of the window are claimed by other keys, which never changes afterwards, the
+ * key keeps its status in its status file instead. The table therefore never fills up,
+ * it gradually falls back to status files as it gets crowded. Keys too long for a slot
+ * always keep their status in their status file.
+ * <p>
+ * Status file stripes are never taken while holding a slot stripe, so that batches
+ * mixing table and status file addresses cannot deadlock.
+ * <p>
+ * Addresses missing from the table are imported from their status files
+ * when first touched, which migrates storage that used status files before.
+ */
+class TableStatusEngine implements StatusEngine {
+
+	static final String PATH_TABLE = ".status.table";
+
+	private static final int TABLE_MAGIC = 0x53544154;
+	private static final int HEADER_SIZE = 4096;
+	private static final int SLOT_SIZE = 256;
+
+	private static final int SLOT_KEY_LENGTH = 0;
+	private static final int SLOT_STATUS = 4;
+	private static final int SLOT_KEY = 8;
+	private static final int SLOT_KEY_CAPACITY = SLOT_SIZE - SLOT_KEY;
+
+	private static final int LOCK_STRIPES = 64;
+
+	/** Number of slots probed for a key before it falls back to its status file. */
+	private static final int PROBE_WINDOW = 128;
+
+	/** In process locks of one table file. */
+	private static class TableLocks {
+		final ReentrantLock header = new ReentrantLock();
+		final ReentrantLock [] stripes = new ReentrantLock [LOCK_STRIPES];
+
+		TableLocks() {
+			for (int stripe = 0; stripe < LOCK_STRIPES; stripe ++) stripes [stripe] = new ReentrantLock(true);
+		}
+	}
+
+	/** In process locks by table file, because file locks cannot overlap within a process. */
+	private static final Map<Path, TableLocks> sharedLocks = new ConcurrentHashMap<Path, TableLocks>();
+
+	private final int capacity;
+	private final int window;
+	private final FileChannel tableChannel;
+	private final MappedByteBuffer table;
+	private final ReentrantLock [] stripes;
+
+	/** Status files imported into the table. */
+	private final FileStatusEngine statusFiles;
+
+	/** Opens or creates the status table.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @param argCapacity number of slots when creating the table
+	 * @param argStatusFiles engine to read status files with when importing them
+	 * @throws StorageException
+	 */
+	TableStatusEngine(Path argStoragePath, int argCapacity, FileStatusEngine argStatusFiles) throws StorageException {
+		statusFiles = argStatusFiles;
+		Path tablePath = argStoragePath.resolve(PATH_TABLE);
+
+		if (argCapacity < 1 || argCapacity > Integer.MAX_VALUE / SLOT_SIZE) {
+			throw new StorageException("Status table capacity out of range.");
+		}
+
+		try {
+			tableChannel = FileChannel.open(tablePath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+
+			TableLocks newLocks = new TableLocks();
+			TableLocks oldLocks = sharedLocks.putIfAbsent(tablePath.toRealPath(), newLocks);
+			TableLocks locks = (oldLocks != null) ? oldLocks : newLocks;
+			stripes = locks.stripes;
+
+			// The header is written under an exclusive lock so that concurrent creators agree on the capacity.
+			locks.header.lock();
+			FileLock headerLock = null;
+			try {
+				headerLock = tableChannel.lock(0, HEADER_SIZE, false);
+				if (tableChannel.size() == 0) {
+					ByteBuffer header = ByteBuffer.allocate(8);
+					header.putInt(TABLE_MAGIC).putInt(argCapacity).flip();
+					tableChannel.write(header, 0);
+					// Extending the file makes it sparse, unused slots take no space.
+					tableChannel.write(ByteBuffer.allocate(1), HEADER_SIZE + (long) argCapacity * SLOT_SIZE - 1);
+				}
+
+				ByteBuffer header = ByteBuffer.allocate(8);
+				tableChannel.read(header, 0);
+				header.flip();
+				if (header.getInt() != TABLE_MAGIC) throw new StorageException("Invalid status table.");
+				capacity = header.getInt();
+			} finally {
+				if (headerLock != null) headerLock.release();
+				locks.header.unlock();
+			}
+			window = Math.min(PROBE_WINDOW, capacity);
+
+			table = tableChannel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, (long) capacity * SLOT_SIZE);
+
+		} catch (IOException e) {
+			throw new StorageException("Failed to open status table.", e);
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Builds the table key of an address.
+	 *
+	 * @return key, null when the address is too long for a slot
+	 */
+	private static byte [] getKey(Iterable<String> address) {
+		// Address elements are directory names and cannot contain slashes.
+		StringBuilder key = new StringBuilder();
+		for (String element : address) key.append('/').append(element);
+		if (key.length() == 0) key.append('/');
+
+		byte [] keyBytes = key.toString().getBytes(StandardCharsets.UTF_8);
+		if (keyBytes.length > SLOT_KEY_CAPACITY) return null;
+		return keyBytes;
+	}
+
+	private static int hashKey(byte [] key) {
+		// FNV-1a, stable across processes unlike identity based hashes.
+		int hash = 0x811c9dc5;
+		for (byte value : key) {
+			hash ^= value & 0xff;
+			hash *= 0x01000193;
+		}
+		return hash & 0x7fffffff;
+	}
+
+	private boolean slotEmpty(int slot) {
+		return table.getInt(slot * SLOT_SIZE + SLOT_KEY_LENGTH) == 0;
+	}
+
+	private boolean slotMatches(int slot, byte [] key) {
+		int offset = slot * SLOT_SIZE;
+		if (table.getInt(offset + SLOT_KEY_LENGTH) != key.length) return false;
+		for (int index = 0; index < key.length; index ++) {
+			if (table.get(offset + SLOT_KEY + index) != key [index]) return false;
+		}
+		return true;
+	}
+
+	private Status readSlot(int slot) throws StorageException {
+		int ordinal = table.getInt(slot * SLOT_SIZE + SLOT_STATUS);
+		Status [] statuses = Status.values();
+		if (ordinal < 0 || ordinal >= statuses.length) throw new StorageException("Invalid status table slot.");
+		return statuses [ordinal];
+	}
+
+	private void writeSlot(int slot, Status status) {
+		table.putInt(slot * SLOT_SIZE + SLOT_STATUS, status.ordinal());
+	}
+
+	private void claimSlot(int slot, byte [] key, Status status) {
+		int offset = slot * SLOT_SIZE;
+		for (int index = 0; index < key.length; index ++) table.put(offset + SLOT_KEY + index, key [index]);
+		table.putInt(offset + SLOT_STATUS, status.ordinal());
+		// The key length marks the slot as used and therefore goes last.
+		table.putInt(offset + SLOT_KEY_LENGTH, key.length);
+	}
+
+	/*****************************************************************************/
+
+	/** Slot held locked by this process and, unless reading only, across processes. */
+	private class LockedSlot implements LockedStatus {
+
+		private final int slot;
+		private final ReentrantLock stripe;
+		private final FileLock regionLock;
+
+		LockedSlot(int argSlot, boolean argShared) throws StorageException {
+			slot = argSlot;
+			stripe = stripes [slot % LOCK_STRIPES];
+
+			stripe.lock();
+			try {
+				regionLock = tableChannel.lock(HEADER_SIZE + (long) slot * SLOT_SIZE, SLOT_SIZE, argShared);
+			} catch (IOException e) {
+				stripe.unlock();
+				throw new StorageException("Failed to lock status table slot.", e);
+			}
+		}
+
+		@Override
+		public Status get() throws StorageException {
+			return readSlot(slot);
+		}
+
+		@Override
+		public void set(Status status) throws StorageException {
+			writeSlot(slot, status);
+		}
+
+		@Override
+		public void force() throws StorageException {
+			// Mapped buffers can only be forced whole, pages already written cost little to force again.
+			table.force();
+		}
+
+		@Override
+		public void close() throws StorageException {
+			try {
+				regionLock.release();
+			} catch (IOException e) {
+				throw new StorageException("Failed to unlock status table slot.", e);
+			} finally {
+				stripe.unlock();
+			}
+		}
+	}
+
+	/** Finds the probe step of a key, or of the first empty slot where the key would go.
+	 * <p>
+	 * Done without locking, the result must be verified under the slot lock.
+	 *
+	 * @return probe step, the window size when the rest of the window is claimed by other keys
+	 */
+	private int probe(byte [] key, int start, int step) {
+		for (; step < window; step ++) {
+			int slot = (start + step) % capacity;
+			if (slotEmpty(slot) || slotMatches(slot, key)) return step;
+		}
+		return window;
+	}
+
+	/** Locks the slot of a key, claiming a new slot when the key is not present.
+	 *
+	 * @param key address key
+	 * @param basePath directory of the address, used to import status files
+	 * @param claim whether to claim a slot for a missing key
+	 * @param shared whether the cross process lock can be shared
+	 * @return locked slot, or null when the key is missing and not claimed or when the key has no room in the table
+	 * @throws StorageException
+	 */
+	private LockedSlot lockSlot(byte [] key, Path basePath, boolean claim, boolean shared) throws StorageException {
+		int start = hashKey(key) % capacity;
+		Status imported = null;
+		for (int step = probe(key, start, 0); step < window; step = probe(key, start, step + 1)) {
+			int slot = (start + step) % capacity;
+
+			if (claim && imported == null && slotEmpty(slot)) {
+				// Prepared before taking the slot stripe, the status file takes its own stripe.
+				// Keys with room in the table never write their status file, so it cannot change meanwhile.
+				try {
+					// Only new addresses need their directory, existing ones are not touched again.
+					Files.createDirectories(basePath);
+				} catch (IOException e) {
+					throw new StorageException("Failed to create address directory.", e);
+				}
+				imported = statusFiles.readStatusFile(basePath);
+			}
+
+			LockedSlot locked = new LockedSlot(slot, shared && !slotEmpty(slot));
+			if (slotMatches(slot, key)) return locked;
+
+			if (slotEmpty(slot)) {
+				if (!claim) {
+					locked.close();
+					return null;
+				}
+				// Still empty under the lock, the key is not in the table. Slots are never
+				// freed, so the slot was empty before locking too and the status was imported.
+				claimSlot(slot, key, imported);
+				return locked;
+			}
+
+			// Another address claimed the slot meanwhile, continue probing behind it.
+			locked.close();
+		}
+		return null;
+	}
+
+	/** Tells whether a key has no room in the table and keeps its status in its status file. */
+	private boolean isOverflow(byte [] key) {
+		return probe(key, hashKey(key) % capacity, 0) == window;
+	}
+
+	/*****************************************************************************/
+
+	@Override
+	public Status getStatus(Iterable<String> address, Path basePath) throws StorageException {
+		byte [] key = getKey(address);
+		if (key == null) return statusFiles.readStatusFile(basePath);
+		try (LockedSlot locked = lockSlot(key, basePath, false, true)) {
+			if (locked != null) return locked.get();
+		}
+
+		// Not in the table, import a status file when there is one.
+		if (!Files.exists(basePath.resolve(FileStatusEngine.PATH_STATUS))) return Status.NONE;
+		if (isOverflow(key)) return statusFiles.readStatusFile(basePath);
+		try (LockedSlot locked = lockSlot(key, basePath, true, true)) {
+			if (locked != null) return locked.get();
+		}
+		// The window filled up meanwhile.
+		return statusFiles.readStatusFile(basePath);
+	}
+
+	@Override
+	public LockedStatus lock(Iterable<String> address, Path basePath) throws StorageException {
+		byte [] key = getKey(address);
+		LockedSlot locked = (key != null) ? lockSlot(key, basePath, true, false) : null;
+		if (locked != null) return locked;
+		return statusFiles.lock(address, basePath);
+	}
+
+	@Override
+	public Path getWatchableFile(Path basePath) {
+		// Writes to the mapped table produce no file system events.
+		return null;
+	}
+
+	@Override
+	public StatusReader newReader() {
+		return new StatusReader() {
+			@Override
+			public Status read(Iterable<String> address, Path basePath) throws StorageException {
+				return getStatus(address, basePath);
+			}
+		};
+	}
+}
@@ -0,0 +1,225 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+/** Streams directory trees to and from tar archives.
+ * <p>
+ * Only one file is open at a time and content is streamed,
+ * memory use does not depend on the size of the tree.
+ */
+class TarArchiver {
+
+	/** Permission bits in the order of the tar mode field, highest first. */
+	private static final PosixFilePermission [] PERMISSIONS = {
+		PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+		PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE,
+		PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE
+	};
+
+	private TarArchiver() {
+	}
+
+	/*****************************************************************************/
+
+	private static int permissionsToMode(Set<PosixFilePermission> permissions) {
+		int mode = 0;
+		for (PosixFilePermission permission : PERMISSIONS) {
+			mode <<= 1;
+			if (permissions.contains(permission)) mode |= 1;
+		}
+		return mode;
+	}
+
+	private static Set<PosixFilePermission> modeToPermissions(int mode) {
+		Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+		for (int bit = 0; bit < PERMISSIONS.length; bit ++) {
+			if ((mode & (1 << (PERMISSIONS.length - 1 - bit))) != 0) permissions.add(PERMISSIONS [bit]);
+		}
+		return permissions;
+	}
+
+	private static void setPermissions(Path path, int mode) throws IOException {
+		PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+		if (view != null) view.setPermissions(modeToPermissions(mode));
+	}
+
+	private static String getEntryName(Path root, Path path) {
+		// Tar entry names always use slashes.
+		StringBuilder name = new StringBuilder();
+		for (Path element : root.relativize(path)) {
+			if (name.length() > 0) name.append('/');
+			name.append(element.toString());
+		}
+		return name.toString();
+	}
+
+	/** Writes a directory tree or a single file as a tar stream.
+	 * <p>
+	 * The stream is finished but not closed.
+	 *
+	 * @param source directory or file to archive
+	 * @param stream stream to write the archive to
+	 * @throws IOException
+	 */
+	static void write(final Path source, OutputStream stream) throws IOException {
+
+		// A single file is archived under its own name, a directory by its content.
+		final Path root = Files.isDirectory(source) ? source : source.toAbsolutePath().getParent();
+
+		final TarArchiveOutputStream archive = new TarArchiveOutputStream(stream);
+		archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+		archive.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+		class ArchiveVisitor extends SimpleFileVisitor<Path> {
+
+			private void putEntry(Path path, TarArchiveEntry entry, BasicFileAttributes attributes) throws IOException {
+				entry.setModTime(attributes.lastModifiedTime().toMillis());
+				PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+				if (view != null) entry.setMode((entry.getMode() & ~0777) | permissionsToMode(view.readAttributes().permissions()));
+				archive.putArchiveEntry(entry);
+			}
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) throws IOException {
+				// The root itself has no entry.
+				if (directory.equals(root)) return FileVisitResult.CONTINUE;
+				putEntry(directory, new TarArchiveEntry(getEntryName(root, directory) + "/"), attributes);
+				archive.closeArchiveEntry();
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				String name = getEntryName(root, file);
+				if (attributes.isSymbolicLink()) {
+					TarArchiveEntry entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+					entry.setLinkName(Files.readSymbolicLink(file).toString());
+					putEntry(file, entry, attributes);
+				} else {
+					TarArchiveEntry entry = new TarArchiveEntry(name);
+					entry.setSize(attributes.size());
+					putEntry(file, entry, attributes);
+					Files.copy(file, archive);
+				}
+				archive.closeArchiveEntry();
+				return FileVisitResult.CONTINUE;
+			}
+		}
+
+		if (Files.isDirectory(source)) Files.walkFileTree(source, new ArchiveVisitor());
+		else new ArchiveVisitor().visitFile(source.toAbsolutePath(), Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+
+		archive.finish();
+	}
+
+	/** Makes sure no directory between the root and a path is a symbolic link, which writing could follow outside the root. */
+	private static void checkParents(Path root, Path path, String name) throws IOException {
+		Path current = root;
+		for (Path element : root.relativize(path.getParent())) {
+			current = current.resolve(element);
+			if (Files.isSymbolicLink(current)) throw new IOException("Archive entry below a symbolic link: " + name);
+		}
+	}
+
+	/** Tells whether an entry holds the content of a regular file.
+	 * <p>
+	 * The library counts any entry not named as a directory as a file, special types are excluded explicitly.
+	 */
+	private static boolean isRegular(TarArchiveEntry entry) {
+		return entry.isFile() && !entry.isLink() && !entry.isSymbolicLink() && !entry.isCharacterDevice() && !entry.isBlockDevice() && !entry.isFIFO();
+	}
+
+	/** Unpacks a tar stream into a directory.
+	 * <p>
+	 * Entries that would be unpacked outside the directory are rejected, including entries
+	 * below symbolic links and symbolic links whose target is absolute or outside the directory.
+	 * Hard links are recreated to files unpacked earlier, devices and pipes are rejected.
+	 * The stream is read to the end of the archive but not closed.
+	 *
+	 * @param stream stream to read the archive from
+	 * @param destination directory to unpack into
+	 * @throws IOException
+	 */
+	static void read(InputStream stream, Path destination) throws IOException {
+
+		// Directory attributes are restored last because unpacking their content changes
+		// the modification time and read only permissions would prevent unpacking.
+		class DirectoryAttributes {
+			Path directory;
+			FileTime time;
+			int mode;
+		}
+		Deque<DirectoryAttributes> directoryAttributes = new ArrayDeque<DirectoryAttributes>();
+
+		Path root = destination.toAbsolutePath().normalize();
+		Files.createDirectories(root);
+
+		TarArchiveInputStream archive = new TarArchiveInputStream(stream);
+		for (TarArchiveEntry entry = archive.getNextTarEntry(); entry != null; entry = archive.getNextTarEntry()) {
+
+			Path path = root.resolve(entry.getName()).normalize();
+			if (!path.startsWith(root) || path.equals(root)) throw new IOException("Archive entry outside destination: " + entry.getName());
+			// Names are checked lexically, links unpacked earlier must not lead writes elsewhere.
+			checkParents(root, path, entry.getName());
+
+			Files.createDirectories(path.getParent());
+			if (entry.isDirectory()) {
+				Files.createDirectories(path);
+				DirectoryAttributes attributes = new DirectoryAttributes();
+				attributes.directory = path;
+				attributes.time = FileTime.fromMillis(entry.getModTime().getTime());
+				attributes.mode = entry.getMode();
+				directoryAttributes.push(attributes);
+			} else if (entry.isSymbolicLink()) {
+				Path target = path.getFileSystem().getPath(entry.getLinkName());
+				if (target.isAbsolute() || !path.getParent().resolve(target).normalize().startsWith(root)) {
+					throw new IOException("Archive link target outside destination: " + entry.getName());
+				}
+				Files.deleteIfExists(path);
+				Files.createSymbolicLink(path, target);
+			} else if (entry.isLink()) {
+				// Hard link targets are named from the archive root and must have been unpacked already.
+				Path target = root.resolve(entry.getLinkName()).normalize();
+				if (!target.startsWith(root) || target.equals(root)) throw new IOException("Archive link target outside destination: " + entry.getName());
+				checkParents(root, target, entry.getLinkName());
+				if (!Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) throw new IOException("Archive link target not unpacked: " + entry.getName());
+				Files.deleteIfExists(path);
+				Files.createLink(path, target);
+			} else if (isRegular(entry)) {
+				Files.copy(archive, path, StandardCopyOption.REPLACE_EXISTING);
+				Files.setLastModifiedTime(path, FileTime.fromMillis(entry.getModTime().getTime()));
+				setPermissions(path, entry.getMode());
+			} else {
+				// Devices, pipes and unknown types have no place in a workspace.
+				throw new IOException("Unsupported archive entry type: " + entry.getName());
+			}
+		}
+
+		// Deeper directories come later in the archive, hence earlier in the stack.
+		for (DirectoryAttributes attributes : directoryAttributes) {
+			Files.setLastModifiedTime(attributes.directory, attributes.time);
+			setPermissions(attributes.directory, attributes.mode);
+		}
+	}
+}
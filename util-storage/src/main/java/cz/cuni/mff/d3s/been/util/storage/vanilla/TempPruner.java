@@ -0,0 +1,188 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Workspace;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Removes least recently used temporary workspaces to keep their total size within a quota.
+ * <p>
+ * Pruning starts when the total size of temporary workspaces exceeds the high
+ * watermark and removes workspaces until the size drops below the low watermark.
+ * Workspaces of busy addresses are never removed.
+ * <p>
+ * Workspace use is tracked by the storage when the workspace path is requested,
+ * the pruner records it as the directory modification time before each pass.
+ */
+public class TempPruner implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(TempPruner.class);
+
+	private VanillaStorage storage;
+	private long highWatermark;
+	private long lowWatermark;
+
+	private ScheduledExecutorService scheduler;
+
+	/** Creates a pruner.
+	 *
+	 * @param argStorage storage whose temporary workspaces to prune
+	 * @param argQuota total size of temporary workspaces in bytes
+	 * @param argHighWatermark fraction of the quota above which pruning starts
+	 * @param argLowWatermark fraction of the quota below which pruning stops
+	 * @throws StorageException
+	 */
+	public TempPruner(VanillaStorage argStorage, long argQuota, double argHighWatermark, double argLowWatermark) throws StorageException {
+		if (argLowWatermark < 0 || argLowWatermark > argHighWatermark || argHighWatermark > 1) {
+			throw new StorageException("Pruner watermarks must satisfy 0 <= low <= high <= 1.");
+		}
+
+		storage = argStorage;
+		highWatermark = (long) (argQuota * argHighWatermark);
+		lowWatermark = (long) (argQuota * argLowWatermark);
+	}
+
+	/*****************************************************************************/
+
+	private static class TempWorkspace {
+		List<String> address;
+		long size;
+		long access;
+	}
+
+	/** Measures a directory tree, skipping files removed while walking it. */
+	private static long getTreeSize(Path path) throws IOException {
+		final long [] size = { 0 };
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				size [0] += attributes.size();
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+				if (e instanceof NoSuchFileException) return FileVisitResult.CONTINUE;
+				throw e;
+			}
+		});
+		return size [0];
+	}
+
+	private List<TempWorkspace> collectWorkspaces() throws StorageException {
+		final List<TempWorkspace> workspaces = new ArrayList<TempWorkspace>();
+
+		storage.walkAddresses(Collections.<String>emptyList(), new VanillaStorage.AddressVisitor() {
+			@Override
+			public void visit(List<String> address) throws StorageException {
+				Path tempPath = storage.peekWorkspacePath(address, Workspace.TEMP);
+				if (!Files.isDirectory(tempPath)) return;
+				try {
+					TempWorkspace workspace = new TempWorkspace();
+					workspace.address = address;
+					workspace.access = Files.getLastModifiedTime(tempPath).toMillis();
+					workspace.size = getTreeSize(tempPath);
+					workspaces.add(workspace);
+				} catch (NoSuchFileException e) {
+					// Workspace removed meanwhile, nothing to prune.
+				} catch (IOException e) {
+					throw new StorageException("Failed to measure temporary workspace.", e);
+				}
+			}
+		});
+
+		return workspaces;
+	}
+
+	/** Performs one pruning pass.
+	 *
+	 * @return number of bytes reclaimed
+	 * @throws StorageException
+	 */
+	public long prune() throws StorageException {
+		storage.flushTempAccess();
+
+		List<TempWorkspace> workspaces = collectWorkspaces();
+		long total = 0;
+		for (TempWorkspace workspace : workspaces) total += workspace.size;
+		if (total <= highWatermark) return 0;
+
+		Collections.sort(workspaces, new Comparator<TempWorkspace>() {
+			@Override
+			public int compare(TempWorkspace first, TempWorkspace second) {
+				return Long.compare(first.access, second.access);
+			}
+		});
+
+		long reclaimed = 0;
+		for (TempWorkspace workspace : workspaces) {
+			if (total - reclaimed <= lowWatermark) break;
+			if (storage.pruneTempWorkspace(workspace.address)) {
+				log.debug("Pruned temporary workspace of {}.", workspace.address);
+				reclaimed += workspace.size;
+			}
+		}
+
+		return reclaimed;
+	}
+
+	/*****************************************************************************/
+
+	/** Starts pruning periodically in a background thread.
+	 *
+	 * @param periodMillis time between pruning passes
+	 */
+	public synchronized void start(long periodMillis) {
+		if (scheduler != null) return;
+		storage.addBackgroundTask(this);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "storage-temp-pruner");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// An exception escaping the task would cancel all further passes.
+				try {
+					prune();
+				} catch (StorageException | RuntimeException e) {
+					log.warn("Failed to prune temporary workspaces.", e);
+				}
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops background pruning, also done when the storage is closed. */
+	@Override
+	public synchronized void close() {
+		if (scheduler == null) return;
+		scheduler.shutdownNow();
+		scheduler = null;
+		storage.removeBackgroundTask(this);
+	}
+}
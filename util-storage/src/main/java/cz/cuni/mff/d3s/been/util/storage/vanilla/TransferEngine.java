@@ -0,0 +1,117 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/** Transfers file content, choosing the strategy by file size.
+ * <p>
+ * Small files are copied with {@link Files#copy}, whose per file overhead is lowest.
+ * Large files are transferred between channels, which lets the kernel move
+ * the data without passing it through user space buffers.
+ */
+class TransferEngine {
+
+	static final long DEFAULT_THRESHOLD = 1 << 20;
+
+	private static final int BUFFER_SIZE = 65536;
+	private static final int BUFFER_POOL_CAPACITY = 64;
+
+	private final long threshold;
+	private final BufferPool bufferPool;
+
+	/** Creates an engine.
+	 *
+	 * @param argThreshold size from which files are transferred between channels
+	 */
+	TransferEngine(long argThreshold) {
+		threshold = argThreshold;
+		bufferPool = new BufferPool(BUFFER_SIZE, BUFFER_POOL_CAPACITY);
+	}
+
+	/** Returns the pool of buffers for the remaining buffered I/O. */
+	BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/*****************************************************************************/
+
+	/** Copies a file with attributes, replacing the destination if it exists.
+	 *
+	 * @param source source file
+	 * @param sourceAttributes attributes of the source file
+	 * @param destination destination file
+	 * @throws IOException
+	 */
+	void copy(Path source, BasicFileAttributes sourceAttributes, Path destination) throws IOException {
+		if (!sourceAttributes.isRegularFile() || sourceAttributes.size() < threshold) {
+			Files.copy(source, destination, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+
+		// Copying a file onto itself is a no operation, the replacement below would lose it.
+		if (Files.exists(destination, LinkOption.NOFOLLOW_LINKS) && Files.isSameFile(source, destination)) return;
+
+		// Replacing rather than overwriting, so that links at the destination are not written through.
+		Files.deleteIfExists(destination);
+		try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel destinationChannel = FileChannel.open(destination, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+			long size = sourceChannel.size();
+			long position = 0;
+			while (position < size) {
+				position += sourceChannel.transferTo(position, size - position, destinationChannel);
+			}
+		}
+
+		PosixFileAttributeView sourceView = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+		PosixFileAttributeView destinationView = Files.getFileAttributeView(destination, PosixFileAttributeView.class);
+		if (sourceView != null && destinationView != null) destinationView.setPermissions(sourceView.readAttributes().permissions());
+
+		BasicFileAttributeView timeView = Files.getFileAttributeView(destination, BasicFileAttributeView.class);
+		timeView.setTimes(sourceAttributes.lastModifiedTime(), sourceAttributes.lastAccessTime(), null);
+	}
+
+	/** Compares file content.
+	 *
+	 * @param first first file
+	 * @param second second file
+	 * @return true when the content is the same
+	 * @throws IOException
+	 */
+	boolean isSameContent(Path first, Path second) throws IOException {
+		ByteBuffer firstBuffer = bufferPool.acquire();
+		ByteBuffer secondBuffer = bufferPool.acquire();
+
+		try (FileChannel firstChannel = FileChannel.open(first, StandardOpenOption.READ);
+				FileChannel secondChannel = FileChannel.open(second, StandardOpenOption.READ)) {
+			while (true) {
+				int firstLength = readFully(firstChannel, firstBuffer);
+				int secondLength = readFully(secondChannel, secondBuffer);
+				if (firstLength != secondLength) return false;
+				if (firstLength == 0) return true;
+				if (!firstBuffer.equals(secondBuffer)) return false;
+			}
+		} finally {
+			bufferPool.release(firstBuffer);
+			bufferPool.release(secondBuffer);
+		}
+	}
+
+	/** Fills a buffer from a channel and flips it for reading. */
+	private static int readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			// Keep reading until the buffer is full or the file ends.
+		}
+		buffer.flip();
+		return buffer.remaining();
+	}
+}
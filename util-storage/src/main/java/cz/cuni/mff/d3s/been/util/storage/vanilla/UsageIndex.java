@@ -0,0 +1,252 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.Workspace;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceUsage;
+
+/** Index of workspace disk usage by address.
+ * <p>
+ * Entries are kept in memory sorted by address, so that the usage below an address
+ * is a contiguous range found without touching the file system. The index is
+ * updated as workspaces change and saved to the storage root when reconciled,
+ * changes since the last save are recovered by the next reconciliation.
+ */
+class UsageIndex {
+
+	static final String PATH_USAGE = ".usage";
+	private static final String PATH_USAGEPARTIAL = ".usage.part";
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static class Entry {
+		List<String> address;
+		Workspace workspace;
+		long bytes;
+		long files;
+		long access;
+	}
+
+	private final Path indexPath;
+	private final Path partialPath;
+
+	/** Entries by address key followed by the workspace name, guarded by itself. */
+	private TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/** Opens the index, loading the last saved state.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @throws StorageException
+	 */
+	UsageIndex(Path argStoragePath) throws StorageException {
+		indexPath = argStoragePath.resolve(PATH_USAGE);
+		partialPath = argStoragePath.resolve(PATH_USAGEPARTIAL);
+		load();
+	}
+
+	/*****************************************************************************/
+
+	/** Returns the key prefix of an address, shared by all addresses below it. */
+	private static String getPrefix(Iterable<String> address) {
+		StringBuilder prefix = new StringBuilder();
+		for (String element : address) prefix.append('/').append(element);
+		return prefix.append('/').toString();
+	}
+
+	/** Returns the key of a workspace, address elements never start with a dot so workspaces cannot collide with children. */
+	private static String getKey(Iterable<String> address, Workspace workspace) {
+		return getPrefix(address) + "." + workspace.name();
+	}
+
+	private static List<String> copyAddress(Iterable<String> address) {
+		List<String> copy = new ArrayList<String>();
+		for (String element : address) copy.add(element);
+		return copy;
+	}
+
+	private Entry getEntry(Iterable<String> address, Workspace workspace) {
+		String key = getKey(address, workspace);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			entry = new Entry();
+			entry.address = copyAddress(address);
+			entry.workspace = workspace;
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/** Records workspace use.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param time time of use
+	 */
+	synchronized void touch(Iterable<String> address, Workspace workspace, long time) {
+		Entry entry = getEntry(address, workspace);
+		entry.access = Math.max(entry.access, time);
+	}
+
+	/** Records a change of workspace content.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param bytes change of total file size
+	 * @param files change of file count
+	 * @param time time of the change
+	 */
+	synchronized void add(Iterable<String> address, Workspace workspace, long bytes, long files, long time) {
+		Entry entry = getEntry(address, workspace);
+		entry.bytes = Math.max(0, entry.bytes + bytes);
+		entry.files = Math.max(0, entry.files + files);
+		entry.access = Math.max(entry.access, time);
+	}
+
+	/** Replaces the usage of a workspace with a measured one.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @param usage measured usage, null when the workspace does not exist
+	 */
+	synchronized void put(Iterable<String> address, Workspace workspace, WorkspaceUsage usage) {
+		if (usage == null) {
+			entries.remove(getKey(address, workspace));
+			return;
+		}
+		Entry entry = getEntry(address, workspace);
+		entry.bytes = usage.getBytes();
+		entry.files = usage.getFiles();
+		entry.access = Math.max(entry.access, usage.getLastAccess());
+	}
+
+	/** Replaces the usage of all workspaces below an address with measured ones.
+	 * <p>
+	 * Entries not measured are removed unless changed since measuring started,
+	 * their workspaces might have been created after the scan passed them.
+	 *
+	 * @param address storage address whose subtree was measured
+	 * @param usages measured usage of all existing workspaces in the subtree
+	 * @param since time measuring started
+	 */
+	synchronized void replace(Iterable<String> address, Collection<WorkspaceUsage> usages, long since) {
+		SortedMap<String, Entry> range = getRange(getPrefix(address));
+		TreeMap<String, Entry> previous = new TreeMap<String, Entry>(range);
+		range.clear();
+
+		for (WorkspaceUsage usage : usages) {
+			String key = getKey(usage.getAddress(), usage.getWorkspace());
+			Entry entry = new Entry();
+			entry.address = usage.getAddress();
+			entry.workspace = usage.getWorkspace();
+			entry.bytes = usage.getBytes();
+			entry.files = usage.getFiles();
+			// Use remembered only in memory can be newer than the directory modification time.
+			Entry old = previous.remove(key);
+			entry.access = (old != null) ? Math.max(old.access, usage.getLastAccess()) : usage.getLastAccess();
+			entries.put(key, entry);
+		}
+
+		for (Map.Entry<String, Entry> old : previous.entrySet()) {
+			if (old.getValue().access >= since) entries.put(old.getKey(), old.getValue());
+		}
+	}
+
+	private SortedMap<String, Entry> getRange(String prefix) {
+		// Keys below the prefix all sort before the prefix with the trailing slash incremented.
+		return entries.subMap(prefix, prefix.substring(0, prefix.length() - 1) + (char) ('/' + 1));
+	}
+
+	/** Returns usage of workspaces of an address and all addresses below it.
+	 *
+	 * @param address storage address to start from
+	 * @return usage of each indexed workspace
+	 */
+	synchronized List<WorkspaceUsage> query(Iterable<String> address) {
+		List<WorkspaceUsage> usages = new ArrayList<WorkspaceUsage>();
+		for (Entry entry : getRange(getPrefix(address)).values()) {
+			usages.add(new WorkspaceUsage(entry.address, entry.workspace, entry.bytes, entry.files, entry.access));
+		}
+		return usages;
+	}
+
+	/*****************************************************************************/
+
+	private synchronized void load() throws StorageException {
+		Workspace [] workspaces = Workspace.values();
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+			if (input.readInt() != FORMAT_VERSION) throw new StorageException("Unknown usage index format.");
+			int count = input.readInt();
+			for (int index = 0; index < count; index ++) {
+				Entry entry = new Entry();
+				int elements = input.readShort();
+				entry.address = new ArrayList<String>(elements);
+				for (int element = 0; element < elements; element ++) entry.address.add(input.readUTF());
+				entry.workspace = workspaces [input.readByte()];
+				entry.bytes = input.readLong();
+				entry.files = input.readLong();
+				entry.access = input.readLong();
+				entries.put(getKey(entry.address, entry.workspace), entry);
+			}
+		} catch (NoSuchFileException e) {
+			// Nothing saved yet, the index fills as workspaces are used and reconciled.
+		} catch (IOException e) {
+			throw new StorageException("Failed to load usage index.", e);
+		}
+	}
+
+	/** Saves the index to the storage root.
+	 *
+	 * @throws StorageException
+	 */
+	void save() throws StorageException {
+		List<Entry> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<Entry>(entries.size());
+			for (Entry entry : entries.values()) {
+				Entry copy = new Entry();
+				copy.address = entry.address;
+				copy.workspace = entry.workspace;
+				copy.bytes = entry.bytes;
+				copy.files = entry.files;
+				copy.access = entry.access;
+				snapshot.add(copy);
+			}
+		}
+
+		// Written aside and moved so that a crash never leaves a partial index behind.
+		synchronized (indexPath) {
+			try {
+				try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partialPath)))) {
+					output.writeInt(FORMAT_VERSION);
+					output.writeInt(snapshot.size());
+					for (Entry entry : snapshot) {
+						output.writeShort(entry.address.size());
+						for (String element : entry.address) output.writeUTF(element);
+						output.writeByte(entry.workspace.ordinal());
+						output.writeLong(entry.bytes);
+						output.writeLong(entry.files);
+						output.writeLong(entry.access);
+					}
+				}
+				Files.move(partialPath, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				throw new StorageException("Failed to save usage index.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Reconciles the workspace usage index of a storage with the file system.
+ * <p>
+ * The index follows changes made through the storage, reconciling measures
+ * all workspaces to pick up changes made otherwise and saves the index.
+ * Reconciling walks the whole storage and therefore runs at low priority.
+ *
+ * @see VanillaConfiguration#setUsageIndex(boolean)
+ */
+public class UsageReconciler implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(UsageReconciler.class);
+
+	private VanillaStorage storage;
+
+	private ScheduledExecutorService scheduler;
+
+	/** Creates a reconciler.
+	 *
+	 * @param argStorage storage whose usage index to reconcile
+	 */
+	public UsageReconciler(VanillaStorage argStorage) {
+		storage = argStorage;
+	}
+
+	/*****************************************************************************/
+
+	/** Performs one reconciling pass.
+	 *
+	 * @throws StorageException
+	 */
+	public void reconcile() throws StorageException {
+		storage.reconcileUsage();
+	}
+
+	/** Starts reconciling periodically in a background thread, the first pass starts right away.
+	 *
+	 * @param periodMillis time between reconciling passes
+	 */
+	public synchronized void start(long periodMillis) {
+		if (scheduler != null) return;
+		storage.addBackgroundTask(this);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "storage-usage-reconciler");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				// An exception escaping the task would cancel all further passes.
+				try {
+					reconcile();
+				} catch (StorageException | RuntimeException e) {
+					log.warn("Failed to reconcile workspace usage.", e);
+				}
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops background reconciling, also done when the storage is closed. */
+	@Override
+	public synchronized void close() {
+		if (scheduler == null) return;
+		scheduler.shutdownNow();
+		scheduler = null;
+		storage.removeBackgroundTask(this);
+	}
+}
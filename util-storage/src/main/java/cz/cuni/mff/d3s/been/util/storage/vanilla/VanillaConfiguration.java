@@ -0,0 +1,159 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage.CopyMode;
+
+/** Settings of a vanilla storage.
+ * <p>
+ * Setters return the configuration so that settings can be chained.
+ */
+public class VanillaConfiguration {
+
+	public enum StatusMode {
+		/** Status of each address is kept in a status file in the address directory. */
+		FILES,
+		/** Statuses of all addresses are kept in one memory mapped table in the storage root.
+		 * Existing status files are imported when their address is first touched. */
+		TABLE
+	};
+
+	public enum Layout {
+		/** Each address element is a directory nested in the directory of its parent. */
+		NESTED,
+		/** Address directories are spread over hash prefix directories, children of each address are kept in an index.
+		 * Listing pages resume at an offset in the index rather than reading earlier children again. */
+		HASHED
+	};
+
+	private int copyParallelism = 1;
+	private CopyMode defaultCopyMode = CopyMode.COPY;
+	private StatusMode statusMode = StatusMode.FILES;
+	private int statusTableCapacity = 65536;
+	private long transferThreshold = TransferEngine.DEFAULT_THRESHOLD;
+	private int pathCacheCapacity = 4096;
+	private boolean statusJournal = false;
+	private long journalSegmentSize = 64 << 20;
+	private boolean usageIndex = false;
+	private Layout layout = Layout.NESTED;
+	private boolean workspaceManifests = false;
+	private int verifyParallelism = Runtime.getRuntime().availableProcessors();
+
+	public int getCopyParallelism() {
+		return copyParallelism;
+	}
+
+	/** Sets the number of threads used to copy directory trees, one for sequential copying. */
+	public VanillaConfiguration setCopyParallelism(int argCopyParallelism) {
+		copyParallelism = argCopyParallelism;
+		return this;
+	}
+
+	public CopyMode getDefaultCopyMode() {
+		return defaultCopyMode;
+	}
+
+	/** Sets the copy mode used when none is given. */
+	public VanillaConfiguration setDefaultCopyMode(CopyMode argDefaultCopyMode) {
+		defaultCopyMode = argDefaultCopyMode;
+		return this;
+	}
+
+	public StatusMode getStatusMode() {
+		return statusMode;
+	}
+
+	/** Sets how address statuses are kept. All users of one storage must use the same mode. */
+	public VanillaConfiguration setStatusMode(StatusMode argStatusMode) {
+		statusMode = argStatusMode;
+		return this;
+	}
+
+	public int getStatusTableCapacity() {
+		return statusTableCapacity;
+	}
+
+	/** Sets the number of addresses the status table can hold. Only used when the table is created. */
+	public VanillaConfiguration setStatusTableCapacity(int argStatusTableCapacity) {
+		statusTableCapacity = argStatusTableCapacity;
+		return this;
+	}
+
+	public long getTransferThreshold() {
+		return transferThreshold;
+	}
+
+	/** Sets the file size from which file content is transferred between channels rather than copied. */
+	public VanillaConfiguration setTransferThreshold(long argTransferThreshold) {
+		transferThreshold = argTransferThreshold;
+		return this;
+	}
+
+	public int getPathCacheCapacity() {
+		return pathCacheCapacity;
+	}
+
+	/** Sets the number of address paths and directories remembered to avoid file system calls, zero disables caching. */
+	public VanillaConfiguration setPathCacheCapacity(int argPathCacheCapacity) {
+		pathCacheCapacity = argPathCacheCapacity;
+		return this;
+	}
+
+	public boolean isStatusJournal() {
+		return statusJournal;
+	}
+
+	/** Sets whether status transitions are recorded in a journal at the storage root. The journal grows until truncated. */
+	public VanillaConfiguration setStatusJournal(boolean argStatusJournal) {
+		statusJournal = argStatusJournal;
+		return this;
+	}
+
+	public long getJournalSegmentSize() {
+		return journalSegmentSize;
+	}
+
+	/** Sets the size from which the status journal starts a new segment. */
+	public VanillaConfiguration setJournalSegmentSize(long argJournalSegmentSize) {
+		journalSegmentSize = argJournalSegmentSize;
+		return this;
+	}
+
+	public boolean isUsageIndex() {
+		return usageIndex;
+	}
+
+	/** Sets whether workspace disk usage is kept in an index rather than measured when queried. */
+	public VanillaConfiguration setUsageIndex(boolean argUsageIndex) {
+		usageIndex = argUsageIndex;
+		return this;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	/** Sets how address directories are placed. All users of one storage must use the same layout, which is checked when the storage is opened. */
+	public VanillaConfiguration setLayout(Layout argLayout) {
+		layout = argLayout;
+		return this;
+	}
+
+	public boolean isWorkspaceManifests() {
+		return workspaceManifests;
+	}
+
+	/** Sets whether copying into workspaces keeps manifests for verification. Copied files are read once more to compute their checksums. */
+	public VanillaConfiguration setWorkspaceManifests(boolean argWorkspaceManifests) {
+		workspaceManifests = argWorkspaceManifests;
+		return this;
+	}
+
+	public int getVerifyParallelism() {
+		return verifyParallelism;
+	}
+
+	/** Sets the number of threads reading files when computing or checking manifests, one per processor by default. */
+	public VanillaConfiguration setVerifyParallelism(int argVerifyParallelism) {
+		verifyParallelism = argVerifyParallelism;
+		return this;
+	}
+}
@@ -1,12 +1,19 @@
 package cz.cuni.mff.d3s.been.util.storage.vanilla;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
@@ -14,72 +21,335 @@ import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.StatusTransition;
 import cz.cuni.mff.d3s.been.util.storage.Storage;
 import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.StorageObserver;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceUsage;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceVerification;
 
-public class VanillaStorage implements Storage {
-
-	private static final int FILE_BUFFER_SIZE = 1024;
+public class VanillaStorage implements Storage, Closeable {
 
 	private static final String PATH_TEMPSPACE = ".temp";
 	private static final String PATH_PACKSPACE = ".pack";
 	private static final String PATH_KEEPSPACE = ".keep";
-	private static final String PATH_STATUS = ".status";
+
+	private static final String PATH_PACKARCHIVE = ".pack.tar.gz";
+	private static final String PATH_PACKPARTIAL = ".pack.tar.gz.part";
+	private static final String PATH_PACKRESTORE = ".pack.restore";
+	private static final String PATH_PACKLOCK = ".pack.lock";
+	private static final String PATH_PACKACCESS = ".pack.access";
+
+	private static final int PACK_BUFFER_SIZE = 65536;
+
+	/** Polling intervals when waiting for status without file system events, grown between the bounds. */
+	private static final long WAIT_POLL_MIN_MILLIS = 1;
+	private static final long WAIT_POLL_MAX_MILLIS = 250;
+
+	/** Longest wait for file system events before reading the status anyway, in case an event was missed. */
+	private static final long WAIT_WATCH_MAX_MILLIS = 1000;
 
 	private Path storagePath;
 
+	/** Parallel copy engine, null when copying sequentially. */
+	private ParallelCopy parallelCopy;
+
+	/** Copy mode used when none is given. */
+	private CopyMode defaultCopyMode;
+
+	private StatusEngine statusEngine;
+
+	private TransferEngine transferEngine;
+
+	private PathCache pathCache;
+
+	/** Placement of hashed address directories, null with the nested layout. */
+	private HashedLayout hashedLayout;
+
+	/** Write ahead log of batch status changes. */
+	private BatchLog batchLog;
+
+	/** Journal of status transitions, null when not kept. */
+	private StatusJournal statusJournal;
+
+	/** Index of workspace disk usage, null when usage is measured on demand. */
+	private UsageIndex usageIndex;
+
+	/** Computes and checks workspace manifests. */
+	private WorkspaceVerifier workspaceVerifier;
+
+	/** Whether copying into workspaces keeps their manifests. */
+	private boolean workspaceManifests;
+
+	/** Serializes manifest updates within this process, concurrent updates from other processes may be lost. */
+	private final Object manifestLock = new Object();
+
+	/** Receiver of internal events, null when nobody observes. */
+	private volatile StorageObserver observer;
+
+	/** Watcher of status files, created when somebody first waits for status. */
+	private StatusWatcher statusWatcher;
+
+	/** Serializes packing and restoring within this process, the pack lock file does so across processes. */
+	private final Object packLock = new Object();
+
+	/** Last access times of temporary workspaces not yet recorded in the file system. */
+	private final Map<Path, Long> tempAccess = new ConcurrentHashMap<Path, Long>();
+
+	/** Last access times of compressible workspaces not yet recorded in the file system. */
+	private final Map<Path, Long> packAccess = new ConcurrentHashMap<Path, Long>();
+
+	/** Background tasks running over the storage, stopped when the storage is closed. */
+	private final Set<Closeable> backgroundTasks = Collections.newSetFromMap(new ConcurrentHashMap<Closeable, Boolean>());
+
 	public VanillaStorage(Path argStoragePath) throws StorageException {
+		this(argStoragePath, 1);
+	}
+
+	public VanillaStorage(Path argStoragePath, int argCopyParallelism) throws StorageException {
+		this(argStoragePath, argCopyParallelism, CopyMode.COPY);
+	}
+
+	/** Creates storage with given copy settings.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @param argCopyParallelism number of threads used to copy directory trees, one for sequential copying
+	 * @param argDefaultCopyMode copy mode used when none is given
+	 * @throws StorageException
+	 */
+	public VanillaStorage(Path argStoragePath, int argCopyParallelism, CopyMode argDefaultCopyMode) throws StorageException {
+		this(argStoragePath, new VanillaConfiguration().setCopyParallelism(argCopyParallelism).setDefaultCopyMode(argDefaultCopyMode));
+	}
+
+	/** Creates storage with given settings.
+	 *
+	 * @param argStoragePath storage root directory
+	 * @param argConfiguration storage settings
+	 * @throws StorageException
+	 */
+	public VanillaStorage(Path argStoragePath, VanillaConfiguration argConfiguration) throws StorageException {
 		storagePath = argStoragePath;
+		defaultCopyMode = argConfiguration.getDefaultCopyMode();
 
 		if (!Files.isDirectory(storagePath)) {
 			throw new StorageException("Vanilla storage path does not exist.");
 		}
+		if (argConfiguration.getCopyParallelism() < 1) {
+			throw new StorageException("Vanilla storage copy parallelism must be positive.");
+		}
+		if (argConfiguration.getPathCacheCapacity() < 0) {
+			throw new StorageException("Vanilla storage path cache capacity must not be negative.");
+		}
+		if (argConfiguration.getVerifyParallelism() < 1) {
+			throw new StorageException("Vanilla storage verify parallelism must be positive.");
+		}
+
+		if (argConfiguration.getCopyParallelism() > 1) parallelCopy = new ParallelCopy(argConfiguration.getCopyParallelism());
+
+		transferEngine = new TransferEngine(argConfiguration.getTransferThreshold());
+		checkLayout(argConfiguration.getLayout());
+		pathCache = new PathCache(storagePath, argConfiguration.getPathCacheCapacity(), argConfiguration.getLayout());
+		if (argConfiguration.getLayout() == VanillaConfiguration.Layout.HASHED) hashedLayout = new HashedLayout(pathCache);
+
+		FileStatusEngine fileStatusEngine = new FileStatusEngine(transferEngine.getBufferPool(), pathCache);
+		switch (argConfiguration.getStatusMode()) {
+			case FILES: statusEngine = fileStatusEngine; break;
+			case TABLE: statusEngine = new TableStatusEngine(storagePath, argConfiguration.getStatusTableCapacity(), fileStatusEngine); break;
+			default: throw new StorageException("Unknown status mode.");
+		}
+
+		if (argConfiguration.isStatusJournal()) statusJournal = new StatusJournal(storagePath, argConfiguration.getJournalSegmentSize());
+		if (argConfiguration.isUsageIndex()) usageIndex = new UsageIndex(storagePath);
+
+		workspaceVerifier = new WorkspaceVerifier(argConfiguration.getVerifyParallelism(), transferEngine.getBufferPool());
+		workspaceManifests = argConfiguration.isWorkspaceManifests();
+
+		batchLog = new BatchLog(storagePath);
+		try (BatchLog.LockedLog log = batchLog.lock()) {
+			recoverBatch(log);
+		}
+	}
+
+	/** Sets the receiver of internal events such as status lock waits and copied bytes.
+	 *
+	 * @param argObserver observer, null to stop observing
+	 */
+	public void setObserver(StorageObserver argObserver) {
+		observer = argObserver;
+	}
+
+	/** Stops background tasks and the threads of the storage.
+	 * <p>
+	 * Pending workspace accesses are recorded first. Waiting for status polls
+	 * after closing, otherwise the storage must not be used after closing.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		for (Closeable task : new ArrayList<Closeable>(backgroundTasks)) task.close();
+
+		try {
+			flushTempAccess();
+			flushPackAccess();
+		} catch (StorageException e) {
+			throw new IOException("Failed to record workspace accesses.", e);
+		} finally {
+			synchronized (this) {
+				if (statusWatcher != null) statusWatcher.close();
+			}
+			if (parallelCopy != null) parallelCopy.close();
+			workspaceVerifier.close();
+		}
+	}
+
+	/** Registers a background task to stop when the storage is closed. */
+	void addBackgroundTask(Closeable task) {
+		backgroundTasks.add(task);
+	}
+
+	void removeBackgroundTask(Closeable task) {
+		backgroundTasks.remove(task);
+	}
+
+	/** Makes sure the storage root was not populated using another layout. */
+	private void checkLayout(VanillaConfiguration.Layout layout) throws StorageException {
+		if (layout == VanillaConfiguration.Layout.HASHED) {
+			try (DirectoryStream<Path> entries = Files.newDirectoryStream(storagePath)) {
+				for (Path entry : entries) {
+					if (!isInternal(entry)) throw new StorageException("Vanilla storage path holds addresses in the nested layout.");
+				}
+			} catch (IOException | DirectoryIteratorException e) {
+				throw new StorageException("Failed to check storage layout.", e);
+			}
+		} else {
+			if (Files.exists(HashedLayout.getHashedPath(storagePath))) throw new StorageException("Vanilla storage path holds addresses in the hashed layout.");
+		}
 	}
 
 	/*****************************************************************************/
 
 	private Path getBasePath(Iterable<String> address) {
-		// Build the base path by concatenating address elements
-		Path basePath = storagePath;
-		for (String element : address) {
-			basePath = basePath.resolve(element);
-		}
-		return basePath;
+		return pathCache.getBasePath(address);
 	}
 
-	private Path getInternalPath(Iterable<String> address, String directory) throws StorageException {
-		Path basePath = getBasePath(address);
-		Path internalPath = basePath.resolve(directory);
+	/** Returns the directory of an address about to be created.
+	 * <p>
+	 * With the hashed layout, the address is entered into the index of its parent first
+	 * and the directory created, with the nested layout the directory is left to the caller.
+	 */
+	private Path createBasePath(Iterable<String> address) throws StorageException {
+		if (hashedLayout == null) return getBasePath(address);
 
-		// Make sure the path exists
-		try {
-			Files.createDirectories(internalPath);
-		} catch (IOException e) {
-			throw new StorageException("Failed to create internal path.", e);
+		List<String> key = new ArrayList<String>();
+		for (String element : address) key.add(element);
+		return hashedLayout.register(key);
+	}
+
+	private static String getWorkspaceDirectory(Workspace workspace) throws StorageException {
+		switch (workspace) {
+			case TEMP: return PATH_TEMPSPACE;
+			case PACK: return PATH_PACKSPACE;
+			case KEEP: return PATH_KEEPSPACE;
+			default: throw new StorageException ("Unknown workspace type.");
 		}
+	}
 
-		return internalPath;
+	/** Returns the workspace path without creating or restoring the workspace.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @return workspace path, which need not exist
+	 * @throws StorageException
+	 */
+	public Path peekWorkspacePath(Iterable<String> address, Workspace workspace) throws StorageException {
+		return getBasePath(address).resolve(getWorkspaceDirectory(workspace));
 	}
 
 	@Override
 	public Path getWorkspacePath(Iterable<String> address, Workspace workspace) throws StorageException {
-		String directory;
-		switch (workspace) {
-			case TEMP: directory = PATH_TEMPSPACE; break;
-			case PACK: directory = PATH_PACKSPACE; break;
-			case KEEP: directory = PATH_KEEPSPACE; break;
-			default: throw new StorageException ("Unknown workspace type.");
+		String directory = getWorkspaceDirectory(workspace);
+
+		Path workspacePath = createBasePath(address).resolve(directory);
+		// The path is handed out rather than used here, so every call checks it once,
+		// a workspace removed externally is recreated rather than returned missing.
+		if (!pathCache.checkKnown(workspacePath)) {
+			// Only a compressible workspace not known to exist can be packed.
+			if (workspace == Workspace.PACK) restoreWorkspace(address);
+			try {
+				pathCache.createDirectories(workspacePath);
+			} catch (IOException e) {
+				throw new StorageException("Failed to create workspace path.", e);
+			}
 		}
-		
-		return getInternalPath(address, directory);
+
+		long time = System.currentTimeMillis();
+		if (workspace == Workspace.TEMP) tempAccess.put(workspacePath, time);
+		if (workspace == Workspace.PACK) packAccess.put(workspacePath, time);
+		if (usageIndex != null) usageIndex.touch(address, workspace, time);
+		return workspacePath;
+	}
+
+	/** Returns the time the compressible workspace of an address was last requested.
+	 * <p>
+	 * Accesses by this process are taken from memory, accesses by other processes
+	 * are seen once flushed by them. Workspaces requested before access times were
+	 * recorded fall back to the modification time of the workspace directory.
+	 *
+	 * @param address storage address
+	 * @return time of last access in milliseconds, or -1 when there is no unpacked workspace
+	 * @throws StorageException
+	 */
+	long getPackAccessTime(Iterable<String> address) throws StorageException {
+		Path packPath = peekWorkspacePath(address, Workspace.PACK);
+		try {
+			if (!Files.isDirectory(packPath)) return -1;
+			long recorded;
+			try {
+				recorded = Files.getLastModifiedTime(packPath.resolveSibling(PATH_PACKACCESS)).toMillis();
+			} catch (NoSuchFileException e) {
+				recorded = Files.getLastModifiedTime(packPath).toMillis();
+			}
+			Long pending = packAccess.get(packPath);
+			return (pending != null) ? Math.max(pending, recorded) : recorded;
+		} catch (IOException e) {
+			throw new StorageException("Failed to check workspace idle time.", e);
+		}
+	}
+
+	/** Creates the copier used for copying files into workspaces.
+	 *
+	 * @param mode copy mode
+	 * @param syncOptions synchronization options, null to always transfer files
+	 * @return file copier
+	 */
+	protected FileCopier createWorkspaceCopier(CopyMode mode, Set<SyncOption> syncOptions) {
+		return new FileCopier(mode, syncOptions);
 	}
 
-	private void copyPathToPath(final Path source, final Path destination) throws StorageException {
+	private void copyPathToPath(final Path source, final Path destination, final FileCopier copier) throws StorageException {
 
 		// We do not use Commons IO because it does not preserve attributes.
+
+		copier.setTransferEngine(transferEngine);
 		
 		// TODO What about links ?
 
@@ -88,14 +358,14 @@ public class VanillaStorage implements Storage {
 	        @Override
 	        public FileVisitResult preVisitDirectory(Path sourceDirectory, BasicFileAttributes attributes) throws IOException {
 	        	Path destinationDirectory = destination.resolve(source.relativize(sourceDirectory)); 
-                Files.copy(sourceDirectory, destinationDirectory, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                copier.copyDirectory(sourceDirectory, destinationDirectory);
 	            return FileVisitResult.CONTINUE;
 	        }
 	 
 	        @Override
 	        public FileVisitResult visitFile(Path sourceFile, BasicFileAttributes attributes) throws IOException {
 	        	Path destinationFile = destination.resolve(source.relativize(sourceFile)); 
-	            Files.copy(sourceFile, destinationFile, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+	            copier.copyFile(sourceFile, destinationFile);
 	            return FileVisitResult.CONTINUE;
 	        }
 	 
@@ -103,8 +373,7 @@ public class VanillaStorage implements Storage {
 	        public FileVisitResult postVisitDirectory(Path sourceDirectory, IOException e) throws IOException {
 	            if (e == null) {
 		        	Path destinationDirectory = destination.resolve(source.relativize(sourceDirectory)); 
-                    FileTime time = Files.getLastModifiedTime(sourceDirectory);
-	                Files.setLastModifiedTime(destinationDirectory, time);
+                    copier.finishDirectory(sourceDirectory, destinationDirectory);
 		            return FileVisitResult.CONTINUE;
 	            }
 	            throw e;
@@ -112,134 +381,464 @@ public class VanillaStorage implements Storage {
 	    }
 
 	    try {
-		    if (Files.isDirectory(source)) Files.walkFileTree(source, new CopyVisitor ());
-		    else Files.copy(source, destination.resolve(source.getFileName()), StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+		    if (Files.isDirectory(source) && parallelCopy != null) parallelCopy.copy(source, destination, copier);
+		    else if (Files.isDirectory(source)) Files.walkFileTree(source, new CopyVisitor ());
+		    else copier.copyFile(source, destination.resolve(source.getFileName()));
 		} catch (IOException e)	{
 			throw new StorageException("Failed to copy.", e); 
 		}
 	}
 	
-	@Override
-	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+	private void notifyCopied(FileCopier copier) {
+		StorageObserver currentObserver = observer;
+		if (currentObserver == null) return;
+		CopyStatistics statistics = copier.getStatistics();
+		currentObserver.copied(statistics.getFilesTransferred(), statistics.getBytesTransferred());
+	}
+
+	private FileCopier copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, FileCopier copier) throws StorageException {
 		Path workspacePath = getWorkspacePath(address, workspace);
 		
 		if (source == null) source = Paths.get("");
 		if (destination == null) destination = Paths.get("");
 		Path workspaceDestination = workspacePath.resolve(destination);
-		copyPathToPath(source,workspaceDestination);
+		copyPathToPath(source, workspaceDestination, copier);
+		notifyCopied(copier);
+		if (usageIndex != null) usageIndex.add(address, workspace, copier.getBytesAdded(), copier.getFilesAdded(), System.currentTimeMillis());
+		// A file lands in the destination directory, only that file changed there.
+		updateManifest(workspacePath, Files.isDirectory(source) ? workspaceDestination : workspaceDestination.resolve(source.getFileName()));
+		return copier;
 	}
-	
-	@Override
-	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+
+	private FileCopier copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, FileCopier copier) throws StorageException {
 		Path workspacePath = getWorkspacePath(address, workspace);
 		
 		if (source == null) source = Paths.get("");
 		if (destination == null) destination = Paths.get("");
 		Path workspaceSource = workspacePath.resolve(source);
-		copyPathToPath(workspaceSource,destination);
+		copyPathToPath(workspaceSource, destination, copier);
+		notifyCopied(copier);
+		return copier;
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		copyToWorkspace(address, workspace, source, destination, defaultCopyMode);
+	}
+
+	@Override
+	public void copyToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		copyToWorkspace(address, workspace, source, destination, createWorkspaceCopier(mode, null));
 	}
 	
-	/*****************************************************************************/
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination) throws StorageException {
+		copyFromWorkspace(address, workspace, source, destination, defaultCopyMode);
+	}
 
-	private FileChannel getLockedStatusChannel(Iterable<String> address) throws StorageException {
-		Path basePath = getBasePath(address);
-		Path statusPath = basePath.resolve(PATH_STATUS);
-		
-		FileChannel statusChannel;
-		
+	@Override
+	public void copyFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, CopyMode mode) throws StorageException {
+		copyFromWorkspace(address, workspace, source, destination, new FileCopier(mode));
+	}
+
+	@Override
+	public CopyStatistics syncToWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		return copyToWorkspace(address, workspace, source, destination, createWorkspaceCopier(defaultCopyMode, options)).getStatistics();
+	}
+
+	@Override
+	public CopyStatistics syncFromWorkspace(Iterable<String> address, Workspace workspace, Path source, Path destination, Set<SyncOption> options) throws StorageException {
+		return copyFromWorkspace(address, workspace, source, destination, new FileCopier(defaultCopyMode, options)).getStatistics();
+	}
+
+	@Override
+	public void exportWorkspace(Iterable<String> address, Workspace workspace, Path source, OutputStream stream) throws StorageException {
+		Path workspacePath = getWorkspacePath(address, workspace);
+
+		if (source == null) source = Paths.get("");
 		try {
-			Files.createDirectories(basePath);
-			
-			// We want to return the channel which is why we cannot try with resources here.
-			statusChannel = FileChannel.open(
-					statusPath,
-					StandardOpenOption.READ,
-					StandardOpenOption.WRITE,
-					StandardOpenOption.CREATE);
-			
-			try {
-				statusChannel.lock();
-			} catch (IOException e) {
-				statusChannel.close();
-				throw new StorageException("Failed to lock status file.", e);
-			}
+			TarArchiver.write(workspacePath.resolve(source), stream);
 		} catch (IOException e) {
-			throw new StorageException("Failed to access status file.", e);
+			throw new StorageException("Failed to export workspace.", e);
 		}
-		
-		return statusChannel;
 	}
-	
-	private Status readStatusFromChannel(FileChannel statusChannel) throws StorageException {
 
-		ByteBuffer statusBuffer = ByteBuffer.allocate(FILE_BUFFER_SIZE);
+	@Override
+	public void importWorkspace(Iterable<String> address, Workspace workspace, InputStream stream, Path destination) throws StorageException {
+		Path workspacePath = getWorkspacePath(address, workspace);
+
+		if (destination == null) destination = Paths.get("");
 		try {
-			statusChannel.read(statusBuffer);
+			TarArchiver.read(stream, workspacePath.resolve(destination));
 		} catch (IOException e) {
-			throw new StorageException("Failed to read status file.", e);
+			throw new StorageException("Failed to import workspace.", e);
 		}
-		
-		byte [] statusArray = new byte [statusBuffer.position()];
-		statusBuffer.position(0);
-		statusBuffer.get (statusArray);
-		String statusText = new String(statusArray, StandardCharsets.UTF_8);
+		// Unpacking does not tell what it replaced, the workspace is measured instead.
+		if (usageIndex != null) usageIndex.put(address, workspace, measureUsage(address, workspace));
+		updateManifest(workspacePath, workspacePath.resolve(destination));
+	}
 
-		if (statusText.isEmpty()) return (Status.NONE);
-		
+	@Override
+	public void cloneWorkspace(Iterable<String> sourceAddress, Workspace sourceWorkspace, Iterable<String> destinationAddress, Workspace destinationWorkspace) throws StorageException {
+		// Linking replaces the destination file first, which would delete every file of the workspace.
+		if (peekWorkspacePath(sourceAddress, sourceWorkspace).equals(peekWorkspacePath(destinationAddress, destinationWorkspace))) {
+			throw new StorageException("Cannot clone a workspace onto itself.");
+		}
+
+		Path sourcePath = getWorkspacePath(sourceAddress, sourceWorkspace);
+		Path destinationPath = getWorkspacePath(destinationAddress, destinationWorkspace);
+
+		// Both workspaces are in the same root, so linking fails only where the file system has no hard links.
+		FileCopier copier = createWorkspaceCopier(CopyMode.LINK, null);
+		copyPathToPath(sourcePath, destinationPath, copier);
+		notifyCopied(copier);
+		if (usageIndex != null) usageIndex.add(destinationAddress, destinationWorkspace, copier.getBytesAdded(), copier.getFilesAdded(), System.currentTimeMillis());
+		updateManifest(destinationPath, destinationPath);
+	}
+
+	/** Updates the manifest of a workspace after files below a path changed.
+	 * <p>
+	 * The files below the path are read to compute their checksums, the manifest
+	 * entries of other files are kept. A workspace without a manifest yet is read whole.
+	 *
+	 * @param workspacePath workspace directory
+	 * @param path changed file or directory in the workspace
+	 * @throws StorageException
+	 */
+	private void updateManifest(Path workspacePath, Path path) throws StorageException {
+		if (!workspaceManifests) return;
+
+		Path manifestPath = WorkspaceManifest.getManifestPath(workspacePath);
+		if (!Files.exists(manifestPath)) path = workspacePath;
+
+		// Files are read outside the lock, so that copies into other workspaces do not wait for them.
+		Map<String, WorkspaceManifest.Entry> scanned;
 		try {
-			return Status.valueOf(statusText);
-		} catch (IllegalArgumentException e) {
-			throw new StorageException("Invalid status file.", e);
+			scanned = workspaceVerifier.scan(workspacePath, path);
+		} catch (IOException e) {
+			throw new StorageException("Failed to compute workspace manifest.", e);
+		}
+
+		synchronized (manifestLock) {
+			WorkspaceManifest manifest = WorkspaceManifest.load(manifestPath);
+			if (manifest == null) manifest = new WorkspaceManifest();
+			manifest.replace(WorkspaceManifest.getKey(workspacePath, path), scanned);
+			manifest.save(manifestPath);
 		}
 	}
 
 	@Override
-	public Status getStatus(Iterable<String> address) throws StorageException {
-		try (FileChannel statusChannel = getLockedStatusChannel(address)) {
-			Status status = readStatusFromChannel(statusChannel);
-			
-			return status;
-			
+	public WorkspaceVerification verifyWorkspace(Iterable<String> address, Workspace workspace) throws StorageException {
+		Path workspacePath = getWorkspacePath(address, workspace);
+		WorkspaceManifest manifest = WorkspaceManifest.load(WorkspaceManifest.getManifestPath(workspacePath));
+		if (manifest == null) throw new StorageException("Workspace has no manifest.");
+
+		try {
+			return workspaceVerifier.verify(workspacePath, manifest);
 		} catch (IOException e) {
-			throw new StorageException("Failed to close status file.", e);
+			throw new StorageException("Failed to verify workspace.", e);
 		}
 	}
+	
+	/*****************************************************************************/
+
+	@Override
+	public Status getStatus(Iterable<String> address) throws StorageException {
+		return statusEngine.getStatus(address, createBasePath(address));
+	}
+
+	/** Locks the status of an address, reporting the time taken to the observer. */
+	private StatusEngine.LockedStatus lockStatus(Iterable<String> address) throws StorageException {
+		StorageObserver currentObserver = observer;
+		if (currentObserver == null) return statusEngine.lock(address, createBasePath(address));
+
+		long start = System.nanoTime();
+		StatusEngine.LockedStatus status = statusEngine.lock(address, createBasePath(address));
+		currentObserver.statusLocked(System.nanoTime() - start);
+		return status;
+	}
 
 	@Override
 	public boolean compareAndSetStatus(Iterable<String> address, Status oldStatus, Status newStatus) throws StorageException {
-		try (FileChannel statusChannel = getLockedStatusChannel(address)) {
-			Status currentStatus = readStatusFromChannel(statusChannel);
-				
-			if (currentStatus != oldStatus) return (false);
-	
-			byte [] statusArray = newStatus.name().getBytes(StandardCharsets.UTF_8);
-			ByteBuffer statusBuffer = ByteBuffer.wrap(statusArray);
-	
+		try (StatusEngine.LockedStatus status = lockStatus(address)) {
+			if (status.get() != oldStatus) return (false);
+			// Recorded while the status is locked, so the journal orders transitions of an address correctly,
+			// and before it changes, so a failed append leaves the status unchanged rather than unrecorded.
+			if (statusJournal != null) statusJournal.append(address, oldStatus, newStatus, System.currentTimeMillis());
+			status.set(newStatus);
+			return true;
+		}
+	}
+
+	/** Completes a batch interrupted by a crash.
+	 * <p>
+	 * Statuses of all addresses in the batch were verified before the batch was logged,
+	 * addresses still having their old status are therefore changed to their new status.
+	 * The changes are forced before the log is cleared, as when the batch first ran.
+	 */
+	private void recoverBatch(BatchLog.LockedLog log) throws StorageException {
+		List<StatusTransition> transitions = log.read();
+		if (transitions.isEmpty()) return;
+
+		for (StatusTransition transition : transitions) {
+			try (StatusEngine.LockedStatus status = lockStatus(transition.getAddress())) {
+				if (status.get() != transition.getOldStatus()) continue;
+				if (statusJournal != null) statusJournal.append(transition.getAddress(), transition.getOldStatus(), transition.getNewStatus(), System.currentTimeMillis());
+				status.set(transition.getNewStatus());
+				status.force();
+			}
+		}
+		log.clear();
+	}
+
+	/** Changes statuses of many addresses atomically.
+	 * <p>
+	 * The batch is forced to the log before any status changes, and all changed statuses
+	 * are forced before the log is cleared. After a crash of the system at any point, the
+	 * statuses therefore either all keep their old values, or the log still holds the batch
+	 * and the batch is completed when the storage is next opened or runs another batch.
+	 * Single status changes are not forced and carry no such guarantee.
+	 */
+	@Override
+	public boolean compareAndSetStatuses(List<StatusTransition> transitions) throws StorageException {
+		Set<List<String>> addresses = new HashSet<List<String>>();
+		for (StatusTransition transition : transitions) {
+			List<String> address = new ArrayList<String>();
+			for (String element : transition.getAddress()) address.add(element);
+			if (!addresses.add(address)) throw new StorageException("Batch changes status of an address more than once.");
+		}
+
+		// Batches run one at a time, so a batch waits only for single address operations, which never
+		// wait for another status while holding one. This makes the order of locking addresses irrelevant.
+		try (BatchLog.LockedLog log = batchLog.lock()) {
+			recoverBatch(log);
+
+			List<StatusEngine.LockedStatus> statuses = new ArrayList<StatusEngine.LockedStatus>();
 			try {
-				statusChannel.truncate(0);
-				statusChannel.write(statusBuffer);
+				for (StatusTransition transition : transitions) {
+					statuses.add(lockStatus(transition.getAddress()));
+				}
+				for (int index = 0; index < transitions.size(); index ++) {
+					if (statuses.get(index).get() != transitions.get(index).getOldStatus()) return false;
+				}
+
+				log.write(transitions);
+				long time = System.currentTimeMillis();
+				for (int index = 0; index < transitions.size(); index ++) {
+					StatusTransition transition = transitions.get(index);
+					if (statusJournal != null) statusJournal.append(transition.getAddress(), transition.getOldStatus(), transition.getNewStatus(), time);
+					statuses.get(index).set(transition.getNewStatus());
+				}
+				// Cleared only once the statuses are durable, otherwise a crash could lose both the batch and some changes.
+				for (StatusEngine.LockedStatus status : statuses) status.force();
+				log.clear();
+				return true;
+
+			} finally {
+				StorageException failure = null;
+				for (StatusEngine.LockedStatus status : statuses) {
+					try {
+						status.close();
+					} catch (StorageException e) {
+						if (failure == null) failure = e;
+					}
+				}
+				if (failure != null) throw failure;
+			}
+		}
+	}
+
+	/** Returns the journal of status transitions.
+	 *
+	 * @return status journal, null when the storage does not keep one
+	 * @see VanillaConfiguration#setStatusJournal(boolean)
+	 */
+	public StatusJournal getStatusJournal() {
+		return statusJournal;
+	}
+
+	private synchronized StatusWatcher getStatusWatcher() {
+		if (statusWatcher == null) statusWatcher = new StatusWatcher(storagePath.getFileSystem());
+		return statusWatcher;
+	}
+
+	@Override
+	public Status waitForStatus(Iterable<String> address, Predicate<Status> predicate, long timeoutMillis) throws StorageException {
+		Path basePath = createBasePath(address);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+
+		// The watch is registered before reading the status so that no change goes unnoticed.
+		StatusWatcher.Watch watch = null;
+		Path watchableFile = statusEngine.getWatchableFile(basePath);
+		if (watchableFile != null) {
+			try {
+				pathCache.createDirectories(basePath);
 			} catch (IOException e) {
-				throw new StorageException("Failed to update status file.", e);
+				throw new StorageException("Failed to create address directory.", e);
 			}
+			watch = getStatusWatcher().watch(watchableFile);
+		}
 
-			return true;
-	
+		try {
+			long pollMillis = WAIT_POLL_MIN_MILLIS;
+			while (true) {
+				long version = (watch != null) ? watch.getVersion() : 0;
+
+				Status status = getStatus(address);
+				if (predicate.test(status)) return status;
+
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return null;
+
+				if (watch != null) {
+					watch.await(version, Math.min(remaining, WAIT_WATCH_MAX_MILLIS));
+				} else {
+					// Changes soon after the wait starts are caught quickly, long waits poll rarely.
+					Thread.sleep(Math.min(remaining, pollMillis));
+					pollMillis = Math.min(pollMillis * 2, WAIT_POLL_MAX_MILLIS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new StorageException("Interrupted while waiting for status.", e);
+		} finally {
+			if (watch != null) watch.release();
+		}
+	}
+
+	@Override
+	public List<Status> getStatuses(Iterable<? extends Iterable<String>> addresses) throws StorageException {
+		StatusEngine.StatusReader reader = statusEngine.newReader();
+		List<Status> statuses = new ArrayList<Status>();
+		for (Iterable<String> address : addresses) {
+			statuses.add(reader.read(address, getBasePath(address)));
+		}
+		return statuses;
+	}
+
+	@Override
+	public Iterable<List<String>> findByStatus(Iterable<String> address, final Set<Status> statuses) throws StorageException {
+		final StatusEngine.StatusReader reader = statusEngine.newReader();
+		final List<List<String>> found = new ArrayList<List<String>>();
+
+		// One walk over the address tree, reading each status once with the shared reader.
+		walkAddresses(address, new AddressVisitor() {
+			@Override
+			public void visit(List<String> visitedAddress) throws StorageException {
+				if (statuses.contains(reader.read(visitedAddress, getBasePath(visitedAddress)))) found.add(visitedAddress);
+			}
+		});
+
+		return found;
+	}
+
+	/** Measures the disk usage of a workspace.
+	 *
+	 * @param address storage address
+	 * @param workspace storage workspace
+	 * @return workspace usage, null when the workspace does not exist
+	 * @throws StorageException
+	 */
+	private WorkspaceUsage measureUsage(Iterable<String> address, Workspace workspace) throws StorageException {
+		Path workspacePath = peekWorkspacePath(address, workspace);
+		Path archivePath = getBasePath(address).resolve(PATH_PACKARCHIVE);
+		// A packed workspace takes the space of its archive.
+		final Path measuredPath = (workspace == Workspace.PACK && Files.exists(archivePath)) ? archivePath : workspacePath;
+
+		final long [] totals = { 0, 0 };
+		try {
+			Files.walkFileTree(measuredPath, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					totals [0] += attributes.size();
+					totals [1] ++;
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+					// Files removed while measuring are left out.
+					if (e instanceof NoSuchFileException && !file.equals(measuredPath)) return FileVisitResult.CONTINUE;
+					throw e;
+				}
+			});
+			long access = Files.getLastModifiedTime(measuredPath).toMillis();
+
+			List<String> measuredAddress = new ArrayList<String>();
+			for (String element : address) measuredAddress.add(element);
+			return new WorkspaceUsage(measuredAddress, workspace, totals [0], totals [1], access);
+
+		} catch (NoSuchFileException e) {
+			return null;
 		} catch (IOException e) {
-			throw new StorageException("Failed to close status file.", e);
+			throw new StorageException("Failed to measure workspace.", e);
 		}
 	}
 
+	private List<WorkspaceUsage> measureUsageTree(Iterable<String> address) throws StorageException {
+		final List<WorkspaceUsage> usages = new ArrayList<WorkspaceUsage>();
+		walkAddresses(address, new AddressVisitor() {
+			@Override
+			public void visit(List<String> visitedAddress) throws StorageException {
+				for (Workspace workspace : Workspace.values()) {
+					WorkspaceUsage usage = measureUsage(visitedAddress, workspace);
+					if (usage != null) usages.add(usage);
+				}
+			}
+		});
+		return usages;
+	}
+
+	/** Returns disk usage of workspaces.
+	 * <p>
+	 * With the usage index kept, usage comes from the index and takes time proportional
+	 * to the result. Workspaces changed other than through the storage are reflected
+	 * once reconciled by {@link UsageReconciler}. Without the index, the workspaces are measured.
+	 */
+	@Override
+	public List<WorkspaceUsage> getUsage(Iterable<String> address) throws StorageException {
+		if (usageIndex != null) return usageIndex.query(address);
+		return measureUsageTree(address);
+	}
+
+	/** Measures all workspaces and replaces the usage index content, then saves the index.
+	 *
+	 * @throws StorageException
+	 */
+	void reconcileUsage() throws StorageException {
+		if (usageIndex == null) return;
+
+		long since = System.currentTimeMillis();
+		List<String> root = new ArrayList<String>();
+		usageIndex.replace(root, measureUsageTree(root), since);
+		usageIndex.save();
+	}
+
 	/*****************************************************************************/
 
+	/** Tells whether a directory entry is internal to the storage.
+	 * <p>
+	 * Internal entries are recognized by name so that listing needs no extra file system calls.
+	 */
+	private static boolean isInternal(Path entry) {
+		return isInternal(entry.getFileName().toString());
+	}
+
+	private static boolean isInternal(String name) {
+		return name.startsWith(".");
+	}
+
 	@Override
 	public Iterable<String> list(Iterable<String> address) throws StorageException {
 		Path basePath = getBasePath(address);
-		List<String> list = new LinkedList<String> ();
+		if (hashedLayout != null) return hashedLayout.list(basePath);
+
+		List<String> list = new ArrayList<String> ();
 		
 		class ListFilter implements DirectoryStream.Filter<Path> {
 			@Override
-			public boolean accept(Path entry) throws IOException {
-				return !Files.isHidden(entry);
+			public boolean accept(Path entry) {
+				return !isInternal(entry);
 			}
 		}
 		
@@ -247,10 +846,376 @@ public class VanillaStorage implements Storage {
 			for (Path item : directory) {
 				list.add(item.getFileName().toString());
 			}
-		} catch (IOException e) {
+		} catch (IOException | DirectoryIteratorException e) {
 			throw new StorageException ("Failed to list storage.", e);
 		}
 		
 		return list;
 	}
+
+	@Override
+	public Stream<String> listStream(Iterable<String> address) throws StorageException {
+		Path basePath = getBasePath(address);
+		if (hashedLayout != null) {
+			final HashedLayout.ChildIterator children = hashedLayout.iterate(basePath, 0);
+			return StreamSupport.stream(Spliterators.spliteratorUnknownSize(children, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false).onClose(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						children.close();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+			});
+		}
+
+		try {
+			return Files.list(basePath).filter(entry -> !isInternal(entry)).map(entry -> entry.getFileName().toString());
+		} catch (IOException e) {
+			throw new StorageException ("Failed to list storage.", e);
+		}
+	}
+
+	@Override
+	public ListPage listPage(Iterable<String> address, String continuation, int limit) throws StorageException {
+		if (limit <= 0) throw new IllegalArgumentException("Listing page limit must be positive.");
+		Path basePath = getBasePath(address);
+
+		// The continuation holds the number of directory entries consumed so far and the name of the last one,
+		// which detects when the directory order changed since the previous page.
+		// With the hashed layout, the number is the children index offset instead.
+		long consumed = 0;
+		String consumedName = null;
+		if (continuation != null) {
+			int separator = continuation.indexOf(':');
+			try {
+				consumed = Long.parseLong(continuation.substring(0, separator));
+				consumedName = continuation.substring(separator + 1);
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				throw new StorageException ("Invalid listing continuation.", e);
+			}
+		}
+
+		// The children index only grows at its end, so offsets in it stay valid between pages.
+		if (hashedLayout != null) return getIndexPage(basePath, consumed, limit);
+
+		try (DirectoryStream<Path> directory = Files.newDirectoryStream(basePath)) {
+			final Iterator<Path> entries = directory.iterator();
+			return getPage(new Iterator<String>() {
+				@Override
+				public boolean hasNext() {
+					return entries.hasNext();
+				}
+
+				@Override
+				public String next() {
+					return entries.next().getFileName().toString();
+				}
+			}, consumed, consumedName, limit);
+
+		} catch (IOException | DirectoryIteratorException e) {
+			throw new StorageException ("Failed to list storage.", e);
+		}
+	}
+
+	/** Returns a page of entry names, skipping internal entries.
+	 *
+	 * @param entries names of all entries in a stable order
+	 * @param consumed number of entries consumed by previous pages
+	 * @param consumedName name of the last consumed entry, null on the first page
+	 * @param limit maximum number of names on the page
+	 * @return listing page
+	 * @throws StorageException
+	 */
+	private static ListPage getPage(Iterator<String> entries, long consumed, String consumedName, int limit) throws StorageException {
+		long position = 0;
+		String positionName = null;
+		while (position < consumed && entries.hasNext()) {
+			positionName = entries.next();
+			position ++;
+		}
+		if (position < consumed || (consumedName != null && !consumedName.equals(positionName))) {
+			throw new StorageException ("Listing continuation no longer matches the storage.");
+		}
+
+		List<String> items = new ArrayList<String> ();
+		while (items.size() < limit && entries.hasNext()) {
+			positionName = entries.next();
+			position ++;
+			if (!isInternal(positionName)) items.add(positionName);
+		}
+
+		String next = entries.hasNext() ? position + ":" + positionName : null;
+		return new ListPage(items, next);
+	}
+
+	/** Returns a page of children from the index of the hashed layout.
+	 *
+	 * @param basePath address directory
+	 * @param offset children index offset where the page starts
+	 * @param limit maximum number of names on the page
+	 * @return listing page
+	 * @throws StorageException
+	 */
+	private ListPage getIndexPage(Path basePath, long offset, int limit) throws StorageException {
+		List<String> items = new ArrayList<String> ();
+		try (HashedLayout.ChildIterator children = hashedLayout.iterate(basePath, offset)) {
+			while (items.size() < limit && children.hasNext()) items.add(children.next());
+			String next = children.hasNext() ? children.getOffset() + ":" + items.get(items.size() - 1) : null;
+			return new ListPage(items, next);
+		} catch (IOException | UncheckedIOException e) {
+			throw new StorageException ("Failed to list storage.", e);
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Deletes a directory tree.
+	 *
+	 * @param path directory or file to delete
+	 * @throws IOException
+	 */
+	static void deleteTree(Path path) throws IOException {
+		Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+				if (e != null) throw e;
+				Files.delete(directory);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private FileChannel getLockedPackChannel(Path basePath) throws IOException {
+		FileChannel lockChannel = FileChannel.open(
+				basePath.resolve(PATH_PACKLOCK),
+				StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE);
+		try {
+			lockChannel.lock();
+		} catch (IOException e) {
+			lockChannel.close();
+			throw e;
+		}
+		return lockChannel;
+	}
+
+	/** Compresses the compressible workspace of an address into an archive.
+	 * <p>
+	 * Only workspaces of addresses with status {@link Status#DONE} are packed,
+	 * the address status changes to {@link Status#PACK} afterwards.
+	 * The archive is streamed directly from the workspace directory,
+	 * which is removed once the archive is complete.
+	 * <p>
+	 * Paths to the workspace handed out earlier become invalid, packing only
+	 * excludes concurrent packing and restoring, not readers holding a path.
+	 * The workspace must therefore not be in use, which the packer approximates
+	 * by requiring that the workspace was not requested for some time.
+	 *
+	 * @param address storage address
+	 * @return true when the workspace was packed
+	 * @throws StorageException
+	 */
+	boolean packWorkspace(Iterable<String> address) throws StorageException {
+		Path basePath = getBasePath(address);
+		Path packPath = basePath.resolve(PATH_PACKSPACE);
+		Path archivePath = basePath.resolve(PATH_PACKARCHIVE);
+		Path partialPath = basePath.resolve(PATH_PACKPARTIAL);
+
+		synchronized (packLock) {
+			try {
+				FileChannel lockChannel = getLockedPackChannel(basePath);
+				try {
+					if (!Files.isDirectory(packPath) || Files.exists(archivePath)) return false;
+					if (getStatus(address) != Status.DONE) return false;
+
+					// The archive is renamed into place only when complete so that a crash never leaves a partial archive behind.
+					try (OutputStream stream = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(partialPath), PACK_BUFFER_SIZE), PACK_BUFFER_SIZE)) {
+						TarArchiver.write(packPath, stream);
+					} catch (IOException e) {
+						Files.deleteIfExists(partialPath);
+						throw e;
+					}
+					Files.move(partialPath, archivePath, StandardCopyOption.ATOMIC_MOVE);
+
+					if (!compareAndSetStatus(address, Status.DONE, Status.PACK)) {
+						Files.delete(archivePath);
+						return false;
+					}
+
+					deleteTree(packPath);
+					pathCache.invalidate(packPath);
+					packAccess.remove(packPath);
+					if (usageIndex != null) usageIndex.put(address, Workspace.PACK, measureUsage(address, Workspace.PACK));
+					return true;
+				} finally {
+					lockChannel.close();
+				}
+
+			} catch (IOException e) {
+				throw new StorageException("Failed to pack workspace.", e);
+			}
+		}
+	}
+
+	/** Restores a packed compressible workspace of an address.
+	 * <p>
+	 * Does nothing when the workspace is not packed. The address status
+	 * changes back to {@link Status#DONE} so that the workspace can be packed again.
+	 *
+	 * @param address storage address
+	 * @throws StorageException
+	 */
+	private void restoreWorkspace(Iterable<String> address) throws StorageException {
+		Path basePath = getBasePath(address);
+		Path archivePath = basePath.resolve(PATH_PACKARCHIVE);
+
+		if (!Files.exists(archivePath)) return;
+
+		Path packPath = basePath.resolve(PATH_PACKSPACE);
+		Path restorePath = basePath.resolve(PATH_PACKRESTORE);
+
+		synchronized (packLock) {
+			try {
+				FileChannel lockChannel = getLockedPackChannel(basePath);
+				try {
+					// Somebody else might have restored the workspace while we waited for the lock.
+					if (!Files.exists(archivePath)) return;
+
+					// Leftovers of interrupted packing or restoring are superseded by the archive.
+					if (Files.exists(restorePath)) deleteTree(restorePath);
+					if (Files.exists(packPath)) deleteTree(packPath);
+					pathCache.invalidate(packPath);
+
+					try (InputStream stream = new GZIPInputStream(new BufferedInputStream(Files.newInputStream(archivePath), PACK_BUFFER_SIZE), PACK_BUFFER_SIZE)) {
+						TarArchiver.read(stream, restorePath);
+					}
+					Files.move(restorePath, packPath, StandardCopyOption.ATOMIC_MOVE);
+
+					compareAndSetStatus(address, Status.PACK, Status.DONE);
+					Files.delete(archivePath);
+					if (usageIndex != null) usageIndex.put(address, Workspace.PACK, measureUsage(address, Workspace.PACK));
+				} finally {
+					lockChannel.close();
+				}
+
+			} catch (IOException e) {
+				throw new StorageException("Failed to restore packed workspace.", e);
+			}
+		}
+	}
+
+	/*****************************************************************************/
+
+	/** Visitor of storage addresses. */
+	interface AddressVisitor {
+		void visit(List<String> address) throws StorageException;
+	}
+
+	/** Visits an address and all addresses below it, parents before children.
+	 *
+	 * @param address storage address to start with
+	 * @param visitor address visitor
+	 * @throws StorageException
+	 */
+	void walkAddresses(Iterable<String> address, AddressVisitor visitor) throws StorageException {
+		List<String> current = new ArrayList<String>();
+		for (String element : address) current.add(element);
+		visitor.visit(current);
+
+		for (String child : list(current)) {
+			List<String> childAddress = new ArrayList<String>(current);
+			childAddress.add(child);
+			walkAddresses(childAddress, visitor);
+		}
+	}
+
+	/** Records pending temporary workspace accesses as directory modification times.
+	 * <p>
+	 * Accesses are only remembered in memory when they happen so that
+	 * getting a workspace path stays cheap, this makes them persistent.
+	 *
+	 * @throws StorageException
+	 */
+	void flushTempAccess() throws StorageException {
+		for (Map.Entry<Path, Long> access : tempAccess.entrySet()) {
+			try {
+				Files.setLastModifiedTime(access.getKey(), FileTime.fromMillis(access.getValue()));
+			} catch (NoSuchFileException e) {
+				// Workspace removed meanwhile, nothing to record.
+			} catch (IOException e) {
+				throw new StorageException("Failed to record workspace access.", e);
+			}
+			tempAccess.remove(access.getKey(), access.getValue());
+		}
+	}
+
+	/** Records pending compressible workspace accesses in the access files.
+	 * <p>
+	 * Reading does not change the workspace directory, and synchronizing sets its
+	 * modification time to that of the source, so the time is kept in a separate file.
+	 * Accesses are only remembered in memory when they happen, as with temporary
+	 * workspaces, this makes them visible to packers of other processes.
+	 *
+	 * @throws StorageException
+	 */
+	void flushPackAccess() throws StorageException {
+		for (Map.Entry<Path, Long> access : packAccess.entrySet()) {
+			Path accessPath = access.getKey().resolveSibling(PATH_PACKACCESS);
+			FileTime time = FileTime.fromMillis(access.getValue());
+			try {
+				try {
+					Files.setLastModifiedTime(accessPath, time);
+				} catch (NoSuchFileException e) {
+					try {
+						Files.createFile(accessPath);
+						Files.setLastModifiedTime(accessPath, time);
+					} catch (FileAlreadyExistsException f) {
+						// Created by a concurrent flush, which is recent enough.
+					}
+				}
+			} catch (NoSuchFileException e) {
+				// Address removed meanwhile, nothing to record.
+			} catch (IOException e) {
+				throw new StorageException("Failed to record workspace access.", e);
+			}
+			packAccess.remove(access.getKey(), access.getValue());
+		}
+	}
+
+	/** Removes the temporary workspace of an address unless the address is busy.
+	 * <p>
+	 * The status file stays locked during removal so that the address
+	 * cannot become busy meanwhile.
+	 *
+	 * @param address storage address
+	 * @return true when the workspace was removed
+	 * @throws StorageException
+	 */
+	boolean pruneTempWorkspace(Iterable<String> address) throws StorageException {
+		Path tempPath = peekWorkspacePath(address, Workspace.TEMP);
+
+		try (StatusEngine.LockedStatus status = lockStatus(address)) {
+			if (status.get() == Status.BUSY) return false;
+			if (!Files.exists(tempPath)) return false;
+
+			deleteTree(tempPath);
+			Files.deleteIfExists(WorkspaceManifest.getManifestPath(tempPath));
+			pathCache.invalidate(tempPath);
+			tempAccess.remove(tempPath);
+			if (usageIndex != null) usageIndex.put(address, Workspace.TEMP, null);
+			return true;
+
+		} catch (IOException e) {
+			throw new StorageException("Failed to prune temporary workspace.", e);
+		}
+	}
 }
@@ -0,0 +1,141 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** List of the files of a workspace with their size, modification time and checksum.
+ * <p>
+ * The manifest is kept beside the workspace directory, so that it is never part
+ * of the workspace content. Files are keyed by their workspace relative path
+ * with slash separators, sorted so that the files below a directory form a range.
+ */
+class WorkspaceManifest {
+
+	static final String PATH_SUFFIX = ".manifest";
+	private static final String PATH_PARTIALSUFFIX = ".part";
+
+	private static final int FORMAT_VERSION = 1;
+
+	static class Entry {
+		long size;
+		long modified;
+		long checksum;
+	}
+
+	private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+	/*****************************************************************************/
+
+	/** Returns the manifest path of a workspace.
+	 *
+	 * @param workspacePath workspace directory
+	 * @return manifest file, which need not exist
+	 */
+	static Path getManifestPath(Path workspacePath) {
+		return workspacePath.resolveSibling(workspacePath.getFileName() + PATH_SUFFIX);
+	}
+
+	/** Returns the key of a file, which is its workspace relative path with slash separators.
+	 *
+	 * @param workspacePath workspace directory
+	 * @param file file in the workspace
+	 * @return file key, empty for the workspace directory
+	 */
+	static String getKey(Path workspacePath, Path file) {
+		StringBuilder key = new StringBuilder();
+		for (Path element : workspacePath.relativize(file)) {
+			if (element.toString().isEmpty()) continue;
+			if (key.length() > 0) key.append('/');
+			key.append(element);
+		}
+		return key.toString();
+	}
+
+	Map<String, Entry> getEntries() {
+		return entries;
+	}
+
+	/** Replaces the entries of a file or directory with newly scanned ones.
+	 *
+	 * @param key key of the scanned file or directory, empty for the whole workspace
+	 * @param scanned entries of all files found when scanning
+	 */
+	void replace(String key, Map<String, Entry> scanned) {
+		if (key.isEmpty()) {
+			entries.clear();
+		} else {
+			entries.remove(key);
+			// Keys below the directory all sort before the directory with the trailing slash incremented.
+			SortedMap<String, Entry> below = entries.subMap(key + '/', key + (char) ('/' + 1));
+			below.clear();
+		}
+		entries.putAll(scanned);
+	}
+
+	/*****************************************************************************/
+
+	/** Loads the manifest of a workspace.
+	 *
+	 * @param manifestPath manifest file
+	 * @return manifest, null when the workspace has none
+	 * @throws StorageException
+	 */
+	static WorkspaceManifest load(Path manifestPath) throws StorageException {
+		WorkspaceManifest manifest = new WorkspaceManifest();
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifestPath)))) {
+			if (input.readInt() != FORMAT_VERSION) throw new StorageException("Unknown workspace manifest format.");
+			int count = input.readInt();
+			for (int index = 0; index < count; index ++) {
+				String key = input.readUTF();
+				Entry entry = new Entry();
+				entry.size = input.readLong();
+				entry.modified = input.readLong();
+				entry.checksum = input.readLong();
+				manifest.entries.put(key, entry);
+			}
+			return manifest;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new StorageException("Failed to load workspace manifest.", e);
+		}
+	}
+
+	/** Saves the manifest of a workspace.
+	 *
+	 * @param manifestPath manifest file
+	 * @throws StorageException
+	 */
+	void save(Path manifestPath) throws StorageException {
+		Path partialPath = manifestPath.resolveSibling(manifestPath.getFileName() + PATH_PARTIALSUFFIX);
+
+		// Written aside and moved so that a crash never leaves a partial manifest behind.
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partialPath)))) {
+				output.writeInt(FORMAT_VERSION);
+				output.writeInt(entries.size());
+				for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+					output.writeUTF(entry.getKey());
+					output.writeLong(entry.getValue().size);
+					output.writeLong(entry.getValue().modified);
+					output.writeLong(entry.getValue().checksum);
+				}
+			}
+			Files.move(partialPath, manifestPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new StorageException("Failed to save workspace manifest.", e);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+
+/** Compresses compressible workspaces that were not used for some time.
+ * <p>
+ * Packed workspaces are restored transparently by the storage
+ * the next time their path is requested. A workspace counts as used
+ * whenever its path is requested, a path kept longer than the idle
+ * time can be invalidated by packing.
+ */
+public class WorkspacePacker {
+
+	private static final Logger log = LoggerFactory.getLogger(WorkspacePacker.class);
+
+	private VanillaStorage storage;
+	private long idleMillis;
+
+	/** Creates a packer.
+	 *
+	 * @param argStorage storage whose workspaces to pack
+	 * @param argIdleMillis time since the workspace path was last requested after which a workspace is packed
+	 */
+	public WorkspacePacker(VanillaStorage argStorage, long argIdleMillis) {
+		storage = argStorage;
+		idleMillis = argIdleMillis;
+	}
+
+	/** Packs the compressible workspace of a single address regardless of idle time.
+	 * <p>
+	 * The caller makes sure the workspace is not in use.
+	 *
+	 * @param address storage address
+	 * @return true when the workspace was packed
+	 * @throws StorageException
+	 */
+	public boolean pack(Iterable<String> address) throws StorageException {
+		return storage.packWorkspace(address);
+	}
+
+	/** Packs idle compressible workspaces of an address and all addresses below it.
+	 *
+	 * @param address storage address to start with
+	 * @return number of workspaces packed
+	 * @throws StorageException
+	 */
+	public int packIdle(Iterable<String> address) throws StorageException {
+		// Lets packers of other processes see the accesses of this one.
+		storage.flushPackAccess();
+
+		class PackVisitor implements VanillaStorage.AddressVisitor {
+			int count;
+
+			@Override
+			public void visit(List<String> visitedAddress) throws StorageException {
+				if (isIdle(visitedAddress) && storage.packWorkspace(visitedAddress)) {
+					log.debug("Packed workspace of {}.", visitedAddress);
+					count ++;
+				}
+			}
+		}
+
+		PackVisitor visitor = new PackVisitor();
+		storage.walkAddresses(address, visitor);
+		return visitor.count;
+	}
+
+	private boolean isIdle(Iterable<String> address) throws StorageException {
+		long accessed = storage.getPackAccessTime(address);
+		return accessed >= 0 && System.currentTimeMillis() - accessed >= idleMillis;
+	}
+}
@@ -0,0 +1,209 @@
+package cz.cuni.mff.d3s.been.util.storage.vanilla;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceVerification;
+
+/** Computes workspace manifests and checks workspaces against them.
+ * <p>
+ * Walking the workspace only reads directories, which is cheap next to reading
+ * file content. Checksums of the files found are then computed by a fork join
+ * pool, so that reading proceeds on several files at once. Each file is read
+ * by one task, a single large file is therefore read at the speed of one thread.
+ */
+class WorkspaceVerifier {
+
+	/** Number of files below which a task checksums its files rather than splitting. */
+	private static final int FILE_BATCH_SIZE = 8;
+
+	private final ForkJoinPool pool;
+
+	/** Pool of buffers to read files into. */
+	private final BufferPool buffers;
+
+	/** Creates the verifier.
+	 *
+	 * @param argParallelism number of threads reading files
+	 * @param argBuffers pool of buffers to read files into
+	 */
+	WorkspaceVerifier(int argParallelism, BufferPool argBuffers) {
+		pool = new ForkJoinPool(argParallelism);
+		buffers = argBuffers;
+	}
+
+	/** Stops the reading threads once their tasks complete. */
+	void close() {
+		pool.shutdown();
+	}
+
+	/*****************************************************************************/
+
+	/** Lists files below a path in a workspace with their size and modification time, without checksums. */
+	private static TreeMap<String, WorkspaceManifest.Entry> listFiles(final Path workspacePath, final Path path) throws IOException {
+		final TreeMap<String, WorkspaceManifest.Entry> files = new TreeMap<String, WorkspaceManifest.Entry>();
+		try {
+			Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					WorkspaceManifest.Entry entry = new WorkspaceManifest.Entry();
+					entry.size = attributes.size();
+					entry.modified = attributes.lastModifiedTime().toMillis();
+					files.put(WorkspaceManifest.getKey(workspacePath, file), entry);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (NoSuchFileException e) {
+			// Nothing there, nothing listed.
+		}
+		return files;
+	}
+
+	private long checksum(Path file) throws IOException {
+		CRC32 checksum = new CRC32();
+		ByteBuffer buffer = buffers.acquire();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				checksum.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			buffers.release(buffer);
+		}
+		return checksum.getValue();
+	}
+
+	private class ChecksumTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path workspacePath;
+		private final List<String> keys;
+		private final long [] checksums;
+		private final int from;
+		private final int to;
+
+		ChecksumTask(Path argWorkspacePath, List<String> argKeys, long [] argChecksums, int argFrom, int argTo) {
+			workspacePath = argWorkspacePath;
+			keys = argKeys;
+			checksums = argChecksums;
+			from = argFrom;
+			to = argTo;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > FILE_BATCH_SIZE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new ChecksumTask(workspacePath, keys, checksums, from, middle), new ChecksumTask(workspacePath, keys, checksums, middle, to));
+				return;
+			}
+			try {
+				for (int index = from; index < to; index ++) {
+					checksums [index] = checksum(workspacePath.resolve(keys.get(index)));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/** Computes checksums of workspace files in parallel.
+	 *
+	 * @param workspacePath workspace directory
+	 * @param keys keys of the files
+	 * @return checksums in the order of the keys
+	 * @throws IOException
+	 */
+	private long [] checksum(Path workspacePath, List<String> keys) throws IOException {
+		long [] checksums = new long [keys.size()];
+		try {
+			pool.invoke(new ChecksumTask(workspacePath, keys, checksums, 0, keys.size()));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return checksums;
+	}
+
+	/*****************************************************************************/
+
+	/** Computes manifest entries of the files below a path in a workspace.
+	 *
+	 * @param workspacePath workspace directory
+	 * @param path file or directory in the workspace
+	 * @return entries by file key
+	 * @throws IOException
+	 */
+	Map<String, WorkspaceManifest.Entry> scan(Path workspacePath, Path path) throws IOException {
+		TreeMap<String, WorkspaceManifest.Entry> files = listFiles(workspacePath, path);
+		List<String> keys = new ArrayList<String>(files.keySet());
+		long [] checksums = checksum(workspacePath, keys);
+		for (int index = 0; index < keys.size(); index ++) files.get(keys.get(index)).checksum = checksums [index];
+		return files;
+	}
+
+	/** Checks a workspace against its manifest.
+	 * <p>
+	 * Files whose size differs are known to differ without reading them.
+	 *
+	 * @param workspacePath workspace directory
+	 * @param manifest workspace manifest
+	 * @return differences between the workspace and the manifest
+	 * @throws IOException
+	 */
+	WorkspaceVerification verify(Path workspacePath, WorkspaceManifest manifest) throws IOException {
+		Map<String, WorkspaceManifest.Entry> expected = manifest.getEntries();
+		Map<String, WorkspaceManifest.Entry> found = listFiles(workspacePath, workspacePath);
+
+		List<String> missing = new ArrayList<String>();
+		List<String> unexpected = new ArrayList<String>();
+		List<String> modified = new ArrayList<String>();
+		List<String> corrupted = new ArrayList<String>();
+
+		List<String> keys = new ArrayList<String>();
+		long bytes = 0;
+		for (Map.Entry<String, WorkspaceManifest.Entry> entry : expected.entrySet()) {
+			WorkspaceManifest.Entry file = found.get(entry.getKey());
+			if (file == null) {
+				missing.add(entry.getKey());
+			} else if (file.size != entry.getValue().size) {
+				(file.modified != entry.getValue().modified ? modified : corrupted).add(entry.getKey());
+			} else {
+				keys.add(entry.getKey());
+				bytes += file.size;
+			}
+		}
+		for (String key : found.keySet()) {
+			if (!expected.containsKey(key)) unexpected.add(key);
+		}
+
+		long [] checksums = checksum(workspacePath, keys);
+		for (int index = 0; index < keys.size(); index ++) {
+			String key = keys.get(index);
+			if (checksums [index] == expected.get(key).checksum) continue;
+			(found.get(key).modified != expected.get(key).modified ? modified : corrupted).add(key);
+		}
+
+		Collections.sort(modified);
+		Collections.sort(corrupted);
+		return new WorkspaceVerification(missing, unexpected, modified, corrupted, keys.size(), bytes);
+	}
+}
@@ -0,0 +1,100 @@
+package cz.cuni.mff.d3s.been.util.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaConfiguration;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+public class AsyncStorageTest {
+
+	@Test
+	public void testConcurrentCopies() throws Exception {
+		Storage storage = new VanillaStorage(Files.createTempDirectory(""));
+		Path source = Files.createTempFile("", "");
+
+		try (AsyncStorage asyncStorage = new AsyncStorage(storage, 4, 4)) {
+			List<CompletableFuture<Void>> copies = new ArrayList<CompletableFuture<Void>>();
+			for (int index = 0; index < 16; index ++) {
+				copies.add(asyncStorage.copyToWorkspace(Arrays.asList("async", "copy" + index), Storage.Workspace.KEEP, source, null));
+			}
+			CompletableFuture.allOf(copies.toArray(new CompletableFuture<?> [0])).get();
+
+			for (int index = 0; index < 16; index ++) {
+				Path workspace = asyncStorage.getWorkspacePath(Arrays.asList("async", "copy" + index), Storage.Workspace.KEEP).get();
+				assertTrue(Files.isRegularFile(workspace.resolve(source.getFileName())));
+			}
+
+			assertTrue(asyncStorage.compareAndSetStatus(Arrays.asList("async"), Storage.Status.NONE, Storage.Status.BUSY).get());
+			assertEquals(Storage.Status.BUSY, asyncStorage.getStatus(Arrays.asList("async")).get());
+		}
+	}
+
+	@Test
+	public void testChainedOperationsWhenSaturated() throws Exception {
+		Storage storage = new VanillaStorage(Files.createTempDirectory(""));
+		storage.getWorkspacePath(Arrays.asList("async", "chained"), Storage.Workspace.KEEP);
+
+		try (final AsyncStorage asyncStorage = new AsyncStorage(storage, 1, 0)) {
+			// A callback running on the only I/O thread submits another operation.
+			CompletableFuture<Stream<String>> chained = asyncStorage.getStatus(Arrays.asList("async")).thenCompose(status -> asyncStorage.listStream(Arrays.asList("async")));
+			try (Stream<String> children = chained.get(10, TimeUnit.SECONDS)) {
+				assertEquals(Arrays.asList("chained"), children.collect(Collectors.toList()));
+			}
+		}
+	}
+
+	@Test
+	public void testWorkspaceOperations() throws Exception {
+		Storage storage = new VanillaStorage(Files.createTempDirectory(""), new VanillaConfiguration().setWorkspaceManifests(true));
+		Iterable<String> address = Arrays.asList("async", "workspace");
+		Path source = Files.createTempDirectory("");
+		Files.write(source.resolve("file"), Arrays.asList("content"));
+
+		try (AsyncStorage asyncStorage = new AsyncStorage(storage, 2, 2)) {
+			assertEquals(1, asyncStorage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.noneOf(Storage.SyncOption.class)).get().getFilesTransferred());
+			assertEquals(1, asyncStorage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.noneOf(Storage.SyncOption.class)).get().getFilesSkipped());
+
+			ByteArrayOutputStream archive = new ByteArrayOutputStream();
+			asyncStorage.exportWorkspace(address, Storage.Workspace.KEEP, null, archive).get();
+			Iterable<String> importedAddress = Arrays.asList("async", "imported");
+			asyncStorage.importWorkspace(importedAddress, Storage.Workspace.KEEP, new ByteArrayInputStream(archive.toByteArray()), null).get();
+			assertEquals(Arrays.asList("content"), Files.readAllLines(storage.getWorkspacePath(importedAddress, Storage.Workspace.KEEP).resolve("file")));
+
+			Iterable<String> clonedAddress = Arrays.asList("async", "cloned");
+			asyncStorage.cloneWorkspace(address, Storage.Workspace.KEEP, clonedAddress, Storage.Workspace.TEMP).get();
+			assertEquals(Arrays.asList("content"), Files.readAllLines(storage.getWorkspacePath(clonedAddress, Storage.Workspace.TEMP).resolve("file")));
+
+			assertTrue(asyncStorage.verifyWorkspace(address, Storage.Workspace.KEEP).get().isIntact());
+		}
+	}
+
+	@Test
+	public void testFailureCompletesExceptionally() throws Exception {
+		Storage storage = new VanillaStorage(Files.createTempDirectory(""));
+
+		try (AsyncStorage asyncStorage = AsyncStorage.withVirtualThreads(storage, 4)) {
+			try {
+				asyncStorage.list(Arrays.asList("missing")).get();
+				fail();
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof StorageException);
+			}
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package cz.cuni.mff.d3s.been.util.storage.content;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+
+public class ContentStorageTest {
+
+	private ContentStorage storage;
+
+	@Before
+	public void prepareStorage() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		storage = new ContentStorage(temporary);
+	}
+
+	@Test
+	public void testIdenticalContentShared() throws Exception {
+		Iterable<String> firstAddress = Arrays.asList("content", "first");
+		Iterable<String> secondAddress = Arrays.asList("content", "second");
+		Path firstSource = Files.createTempDirectory("");
+		Path secondSource = Files.createTempDirectory("");
+		Files.write(firstSource.resolve("file"), Arrays.asList("content"));
+		Files.write(secondSource.resolve("file"), Arrays.asList("content"));
+		Files.setLastModifiedTime(secondSource.resolve("file"), Files.getLastModifiedTime(firstSource.resolve("file")));
+		storage.copyToWorkspace(firstAddress, Storage.Workspace.KEEP, firstSource, null);
+		storage.copyToWorkspace(secondAddress, Storage.Workspace.TEMP, secondSource, null);
+		Path firstFile = storage.getWorkspacePath(firstAddress, Storage.Workspace.KEEP).resolve("file");
+		Path secondFile = storage.getWorkspacePath(secondAddress, Storage.Workspace.TEMP).resolve("file");
+		assertTrue(Files.isSameFile(firstFile, secondFile));
+		assertEquals(Arrays.asList("content"), Files.readAllLines(secondFile));
+	}
+
+	@Test
+	public void testDifferingAttributesCopied() throws Exception {
+		Iterable<String> firstAddress = Arrays.asList("content", "early");
+		Iterable<String> secondAddress = Arrays.asList("content", "late");
+		Path firstSource = Files.createTempDirectory("");
+		Path secondSource = Files.createTempDirectory("");
+		Files.write(firstSource.resolve("file"), Arrays.asList("content"));
+		Files.write(secondSource.resolve("file"), Arrays.asList("content"));
+		Files.setLastModifiedTime(firstSource.resolve("file"), FileTime.fromMillis(1000000000000L));
+		Files.setLastModifiedTime(secondSource.resolve("file"), FileTime.fromMillis(1100000000000L));
+		storage.copyToWorkspace(firstAddress, Storage.Workspace.KEEP, firstSource, null);
+		storage.syncToWorkspace(secondAddress, Storage.Workspace.KEEP, secondSource, null, EnumSet.noneOf(Storage.SyncOption.class));
+		Path firstFile = storage.getWorkspacePath(firstAddress, Storage.Workspace.KEEP).resolve("file");
+		Path secondFile = storage.getWorkspacePath(secondAddress, Storage.Workspace.KEEP).resolve("file");
+		assertFalse(Files.isSameFile(firstFile, secondFile));
+		assertEquals(1100000000000L, Files.getLastModifiedTime(secondFile).toMillis());
+		CopyStatistics statistics = storage.syncToWorkspace(secondAddress, Storage.Workspace.KEEP, secondSource, null, EnumSet.noneOf(Storage.SyncOption.class));
+		assertEquals(0, statistics.getFilesTransferred());
+		assertEquals(1, statistics.getFilesSkipped());
+	}
+
+	@Test
+	public void testCopyFromWorkspace() throws Exception {
+		Iterable<String> address = Arrays.asList("content", "copy");
+		Path source = Files.createTempFile("", "");
+		Files.write(source, Arrays.asList("content"));
+		storage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+		Path destination = Files.createTempDirectory("");
+		storage.copyFromWorkspace(address, Storage.Workspace.KEEP, source.getFileName(), destination);
+		Path destinationFile = destination.resolve(source.getFileName());
+		assertFalse(Files.isSameFile(destinationFile, storage.getWorkspacePath(address, Storage.Workspace.KEEP).resolve(source.getFileName())));
+		assertEquals(Arrays.asList("content"), Files.readAllLines(destinationFile));
+	}
+
+	@Test
+	public void testPruneObjects() throws Exception {
+		Iterable<String> address = Arrays.asList("content", "prune");
+		Path source = Files.createTempDirectory("");
+		Files.write(source.resolve("kept"), Arrays.asList("kept"));
+		Files.write(source.resolve("removed"), Arrays.asList("removed"));
+		storage.copyToWorkspace(address, Storage.Workspace.TEMP, source, null);
+		assertEquals(0, storage.pruneObjects());
+		Files.delete(storage.getWorkspacePath(address, Storage.Workspace.TEMP).resolve("removed"));
+		assertEquals(1, storage.pruneObjects());
+		assertEquals(Arrays.asList("kept"), Files.readAllLines(storage.getWorkspacePath(address, Storage.Workspace.TEMP).resolve("kept")));
+	}
+}
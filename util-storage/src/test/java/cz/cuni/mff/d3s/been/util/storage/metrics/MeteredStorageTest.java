@@ -0,0 +1,83 @@
+package cz.cuni.mff.d3s.been.util.storage.metrics;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Test;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+public class MeteredStorageTest {
+
+	private static final int ADDRESSES = 10;
+
+	private static List<String> getAddress(int index) {
+		return Arrays.asList("metered", "address" + index);
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		VanillaStorage vanilla = new VanillaStorage(Files.createTempDirectory(""));
+		MeteredStorage storage = new MeteredStorage(vanilla);
+		vanilla.setObserver(storage.getObserver());
+
+		Path source = Files.createTempFile("", "");
+		Files.write(source, new byte [100]);
+
+		for (int index = 0; index < ADDRESSES; index ++) {
+			assertTrue (storage.compareAndSetStatus(getAddress(index), Storage.Status.NONE, Storage.Status.DONE));
+			storage.copyToWorkspace(getAddress(index), Storage.Workspace.KEEP, source, null);
+			assertEquals(Storage.Status.DONE, storage.getStatus(getAddress(index)));
+		}
+		try {
+			storage.listPage(Arrays.asList("metered"), "invalid", 5);
+			fail();
+		} catch (StorageException e) {
+			// Expected, counted as an error.
+		}
+
+		MetricsSnapshot snapshot = storage.getSnapshot(false);
+		OperationStatistics statuses = snapshot.getOperations().get(StorageOperation.COMPARE_AND_SET_STATUS);
+		assertEquals(ADDRESSES, statuses.getCount());
+		assertEquals(0, statuses.getErrors());
+		assertTrue (statuses.getP50() <= statuses.getP99());
+		assertTrue (statuses.getP99() <= statuses.getMax());
+		assertEquals(ADDRESSES, snapshot.getOperations().get(StorageOperation.GET_STATUS).getCount());
+		assertEquals(1, snapshot.getOperations().get(StorageOperation.LIST_PAGE).getErrors());
+		assertEquals(0, snapshot.getOperations().get(StorageOperation.LIST).getCount());
+		assertEquals(ADDRESSES, snapshot.getStatusLockWait().getCount());
+		assertEquals(ADDRESSES, snapshot.getFilesCopied());
+		assertEquals(ADDRESSES * 100, snapshot.getBytesCopied());
+
+		// Published attributes read the same metrics.
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		MetricsRegistry registry = new JmxMetricsRegistry(server);
+		ObjectName name = JmxMetricsRegistry.getObjectName("test");
+		registry.register("test", storage);
+		try {
+			assertEquals((long) ADDRESSES * 100, server.getAttribute(name, "BytesCopied"));
+			CompositeData lockWait = (CompositeData) server.getAttribute(name, "StatusLockWait");
+			assertEquals((long) ADDRESSES, lockWait.get("count"));
+			server.invoke(name, "reset", null, null);
+		} finally {
+			registry.unregister("test");
+		}
+		assertFalse (server.isRegistered(name));
+
+		snapshot = storage.getSnapshot(false);
+		assertEquals(0, snapshot.getOperations().get(StorageOperation.COMPARE_AND_SET_STATUS).getCount());
+		assertEquals(0, snapshot.getStatusLockWait().getCount());
+		assertEquals(0, snapshot.getBytesCopied());
+	}
+}
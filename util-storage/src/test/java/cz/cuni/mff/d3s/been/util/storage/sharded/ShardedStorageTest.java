@@ -0,0 +1,105 @@
+package cz.cuni.mff.d3s.been.util.storage.sharded;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.Test;
+
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+
+public class ShardedStorageTest {
+
+	private static final int ADDRESSES = 200;
+
+	private static List<String> getAddress(int index) {
+		return Arrays.asList("sharded", "address" + index);
+	}
+
+	private static void populate(Storage storage) throws Exception {
+		Path source = Files.createTempFile("", "");
+		Files.write(source, Arrays.asList("content"));
+		for (int index = 0; index < ADDRESSES; index ++) {
+			assertTrue (storage.compareAndSetStatus(getAddress(index), Storage.Status.NONE, Storage.Status.DONE));
+			storage.copyToWorkspace(getAddress(index), Storage.Workspace.KEEP, source, null);
+		}
+	}
+
+	private static void check(Storage storage) throws Exception {
+		for (int index = 0; index < ADDRESSES; index ++) {
+			assertEquals(Storage.Status.DONE, storage.getStatus(getAddress(index)));
+			Path workspace = storage.getWorkspacePath(getAddress(index), Storage.Workspace.KEEP);
+			try (Stream<Path> files = Files.list(workspace)) {
+				assertEquals(1, files.count());
+			}
+		}
+
+		Set<String> listed = new HashSet<String>();
+		for (String item : storage.list(Arrays.asList("sharded"))) assertTrue (listed.add(item));
+		assertEquals(ADDRESSES, listed.size());
+	}
+
+	@Test
+	public void testShardedAddresses() throws Exception {
+		List<Path> roots = Arrays.asList(Files.createTempDirectory(""), Files.createTempDirectory(""), Files.createTempDirectory(""));
+		Storage storage = new ShardedStorage(roots);
+		populate(storage);
+		check(storage);
+
+		// Every root holds some addresses, each address is held by one root.
+		for (Path root : roots) {
+			int held = 0;
+			for (int index = 0; index < ADDRESSES; index ++) {
+				if (Files.isDirectory(root.resolve("sharded").resolve("address" + index).resolve(".keep"))) held ++;
+			}
+			assertTrue (held > ADDRESSES / 10);
+		}
+
+		// Reopening with the roots in another order finds the same addresses.
+		check(new ShardedStorage(Arrays.asList(roots.get(2), roots.get(0), roots.get(1))));
+
+		List<String> paged = new ArrayList<String>();
+		String continuation = null;
+		do {
+			ListPage page = storage.listPage(Arrays.asList("sharded"), continuation, 7);
+			paged.addAll(page.getItems());
+			continuation = page.getContinuation();
+		} while (continuation != null);
+		assertEquals(ADDRESSES, paged.size());
+		assertEquals(ADDRESSES, new HashSet<String>(paged).size());
+
+		int found = 0;
+		for (List<String> address : storage.findByStatus(Arrays.asList("sharded"), EnumSet.of(Storage.Status.DONE))) found ++;
+		assertEquals(ADDRESSES, found);
+
+		List<Storage.Status> statuses = storage.getStatuses(Arrays.asList(getAddress(0), getAddress(1), getAddress(2), Arrays.asList("sharded", "missing")));
+		assertEquals(Arrays.asList(Storage.Status.DONE, Storage.Status.DONE, Storage.Status.DONE, Storage.Status.NONE), statuses);
+	}
+
+	@Test
+	public void testAddRoot() throws Exception {
+		List<Path> roots = Arrays.asList(Files.createTempDirectory(""), Files.createTempDirectory(""), Files.createTempDirectory(""));
+		ShardedStorage storage = new ShardedStorage(roots);
+		populate(storage);
+
+		Path added = Files.createTempDirectory("");
+		int moved = storage.addRoot(added);
+		assertTrue (moved > 0);
+		// Only the addresses taken over by the new root move, about a quarter of them plus their parents.
+		assertTrue (moved < ADDRESSES / 2);
+		check(storage);
+
+		List<Path> allRoots = new ArrayList<Path>(roots);
+		allRoots.add(added);
+		check(new ShardedStorage(allRoots));
+	}
+}
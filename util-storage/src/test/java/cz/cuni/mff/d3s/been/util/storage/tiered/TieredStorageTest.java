@@ -0,0 +1,107 @@
+package cz.cuni.mff.d3s.been.util.storage.tiered;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.vanilla.VanillaStorage;
+
+public class TieredStorageTest {
+
+	private static final int ADDRESSES = 20;
+
+	private static List<String> getAddress(int index) {
+		return Arrays.asList("tiered", "address" + index);
+	}
+
+	@Test
+	public void testPromoteAndDemote() throws Exception {
+		Path hotRoot = Files.createTempDirectory("");
+		Path coldRoot = Files.createTempDirectory("");
+		VanillaStorage hot = new VanillaStorage(hotRoot);
+		VanillaStorage cold = new VanillaStorage(coldRoot);
+
+		Path source = Files.createTempFile("", "");
+		Files.write(source, Arrays.asList("content"));
+		String name = source.getFileName().toString();
+
+		try (TieredStorage storage = new TieredStorage(hot, cold, 0, 0)) {
+			for (int index = 0; index < ADDRESSES; index ++) {
+				assertTrue (storage.compareAndSetStatus(getAddress(index), Storage.Status.NONE, Storage.Status.DONE));
+				storage.copyToWorkspace(getAddress(index), Storage.Workspace.KEEP, source, null);
+				assertTrue (Files.exists(hot.peekWorkspacePath(getAddress(index), Storage.Workspace.KEEP).resolve(name)));
+			}
+
+			// Busy addresses stay on the hot tier.
+			assertTrue (storage.compareAndSetStatus(getAddress(0), Storage.Status.DONE, Storage.Status.BUSY));
+			assertTrue (storage.demote() > 0);
+			for (int index = 0; index < ADDRESSES; index ++) {
+				boolean demoted = index != 0;
+				assertEquals(!demoted, Files.exists(hot.peekWorkspacePath(getAddress(index), Storage.Workspace.KEEP).resolve(name)));
+				assertEquals(demoted, Files.exists(cold.peekWorkspacePath(getAddress(index), Storage.Workspace.KEEP).resolve(name)));
+			}
+
+			// Statuses stay with the cold tier, the hot tier never has any.
+			assertEquals(Storage.Status.BUSY, storage.getStatus(getAddress(0)));
+			assertEquals(Storage.Status.DONE, storage.getStatus(getAddress(1)));
+			assertEquals(Storage.Status.NONE, hot.getStatus(getAddress(1)));
+
+			// Use promotes the workspace back.
+			Path workspace = storage.getWorkspacePath(getAddress(1), Storage.Workspace.KEEP);
+			assertTrue (workspace.startsWith(hotRoot));
+			assertTrue (Files.exists(workspace.resolve(name)));
+			assertFalse (Files.exists(cold.peekWorkspacePath(getAddress(1), Storage.Workspace.KEEP).resolve(name)));
+
+			Path target = Files.createTempDirectory("");
+			storage.copyFromWorkspace(getAddress(2), Storage.Workspace.KEEP, null, target);
+			assertTrue (Files.exists(target.resolve(name)));
+			assertTrue (Files.exists(hot.peekWorkspacePath(getAddress(2), Storage.Workspace.KEEP).resolve(name)));
+
+			Set<String> listed = new HashSet<String>();
+			for (String item : storage.list(Arrays.asList("tiered"))) listed.add(item);
+			assertEquals(ADDRESSES, listed.size());
+		}
+
+		// Recently used workspaces are not demoted.
+		try (TieredStorage storage = new TieredStorage(hot, cold, 0, 60000)) {
+			storage.getWorkspacePath(getAddress(3), Storage.Workspace.KEEP);
+			storage.demote();
+			assertTrue (Files.exists(hot.peekWorkspacePath(getAddress(3), Storage.Workspace.KEEP).resolve(name)));
+		}
+	}
+
+	@Test
+	public void testInterruptedMoveDiscarded() throws Exception {
+		Path hotRoot = Files.createTempDirectory("");
+		VanillaStorage hot = new VanillaStorage(hotRoot);
+		VanillaStorage cold = new VanillaStorage(Files.createTempDirectory(""));
+		List<String> address = getAddress(0);
+
+		Path source = Files.createTempDirectory("");
+		Files.write(source.resolve("first"), Arrays.asList("first"));
+		Files.write(source.resolve("second"), Arrays.asList("second"));
+		cold.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+
+		// A promotion that copied only one file before the process died.
+		Path hotPath = hot.getWorkspacePath(address, Storage.Workspace.KEEP);
+		Files.write(hotPath.resolve("first"), Arrays.asList("first"));
+		Files.createFile(hotPath.resolveSibling(hotPath.getFileName() + TieredStorage.PATH_STALESUFFIX));
+
+		try (TieredStorage storage = new TieredStorage(hot, cold, 0, 0)) {
+			Path workspace = storage.getWorkspacePath(address, Storage.Workspace.KEEP);
+			assertTrue (workspace.startsWith(hotRoot));
+			assertTrue (Files.exists(workspace.resolve("first")));
+			assertTrue (Files.exists(workspace.resolve("second")));
+			assertFalse (Files.exists(hotPath.resolveSibling(hotPath.getFileName() + TieredStorage.PATH_STALESUFFIX)));
+			assertFalse (Files.exists(cold.peekWorkspacePath(address, Storage.Workspace.KEEP).resolve("first")));
+		}
+	}
+}
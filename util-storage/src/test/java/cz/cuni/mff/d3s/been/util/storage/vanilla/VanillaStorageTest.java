@@ -2,14 +2,44 @@ package cz.cuni.mff.d3s.been.util.storage.vanilla;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import cz.cuni.mff.d3s.been.util.storage.CopyStatistics;
+import cz.cuni.mff.d3s.been.util.storage.ListPage;
+import cz.cuni.mff.d3s.been.util.storage.StatusTransition;
 import cz.cuni.mff.d3s.been.util.storage.Storage;
+import cz.cuni.mff.d3s.been.util.storage.StorageException;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceUsage;
+import cz.cuni.mff.d3s.been.util.storage.WorkspaceVerification;
 
 public class VanillaStorageTest {
 
@@ -80,4 +110,859 @@ public class VanillaStorageTest {
 		assertTrue(Files.isRegularFile(destinationFile));
 		assertTrue(Files.isDirectory(destinationDirectory));
 	}
+
+	@Test
+	public void testParallelCopyToWorkspace() throws Exception {
+		Storage parallelStorage = new VanillaStorage(Files.createTempDirectory(""), 4);
+		Iterable<String> address = Arrays.asList("copy", "parallel");
+		Path source = Files.createTempDirectory("");
+		for (int outer = 0; outer < 4; outer ++) {
+			Path directory = Files.createDirectory(source.resolve("directory" + outer));
+			for (int inner = 0; inner < 100; inner ++) {
+				Files.write(directory.resolve("file" + inner), Arrays.asList("content" + inner));
+			}
+			Files.setLastModifiedTime(directory, FileTime.fromMillis(1000000000000L));
+		}
+		parallelStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+		Path destination = parallelStorage.getWorkspacePath(address, Storage.Workspace.KEEP);
+		for (int outer = 0; outer < 4; outer ++) {
+			Path directory = destination.resolve("directory" + outer);
+			assertEquals(FileTime.fromMillis(1000000000000L), Files.getLastModifiedTime(directory));
+			for (int inner = 0; inner < 100; inner ++) {
+				assertEquals(Arrays.asList("content" + inner), Files.readAllLines(directory.resolve("file" + inner)));
+			}
+		}
+	}
+
+	@Test
+	public void testLinkCopyToWorkspace() throws Exception {
+		Iterable<String> address = Arrays.asList("copy", "link");
+		Path source = Files.createTempDirectory("");
+		Path innerFile = Files.createTempFile(source,  "",  "");
+		storage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null, Storage.CopyMode.LINK);
+		Path destination = storage.getWorkspacePath(address, Storage.Workspace.KEEP);
+		Path destinationFile = destination.resolve(innerFile.getFileName());
+		assertTrue(Files.isSameFile(innerFile, destinationFile));
+		storage.copyFromWorkspace(address, Storage.Workspace.KEEP, innerFile.getFileName(), destination, Storage.CopyMode.LINK);
+		assertTrue(Files.isRegularFile(destinationFile));
+	}
+
+	@Test
+	public void testPackAndRestoreWorkspace() throws Exception {
+		Iterable<String> address = Arrays.asList("pack", "restore");
+		Path source = Files.createTempDirectory("");
+		Path innerDirectory = Files.createDirectory(source.resolve("directory"));
+		Files.write(innerDirectory.resolve("file"), Arrays.asList("content"));
+		Files.setLastModifiedTime(innerDirectory, FileTime.fromMillis(1000000000000L));
+		storage.copyToWorkspace(address, Storage.Workspace.PACK, source, null);
+		assertTrue(storage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.DONE));
+
+		WorkspacePacker packer = new WorkspacePacker((VanillaStorage) storage, 0);
+		assertTrue(packer.pack(address));
+		assertTrue(storage.getStatus(address) == Storage.Status.PACK);
+		assertFalse(Files.exists(((VanillaStorage) storage).peekWorkspacePath(address, Storage.Workspace.PACK)));
+
+		Path destination = Files.createTempDirectory("");
+		storage.copyFromWorkspace(address, Storage.Workspace.PACK, null, destination);
+		assertTrue(storage.getStatus(address) == Storage.Status.DONE);
+		assertEquals(Arrays.asList("content"), Files.readAllLines(destination.resolve("directory").resolve("file")));
+		assertEquals(FileTime.fromMillis(1000000000000L), Files.getLastModifiedTime(destination.resolve("directory")));
+	}
+
+	@Test
+	public void testPackIdleWorkspaces() throws Exception {
+		Storage packStorage = new VanillaStorage(Files.createTempDirectory(""));
+		Iterable<String> doneAddress = Arrays.asList("idle", "done");
+		Iterable<String> busyAddress = Arrays.asList("idle", "busy");
+		Path source = Files.createTempFile("", "");
+		packStorage.copyToWorkspace(doneAddress, Storage.Workspace.PACK, source, null);
+		packStorage.copyToWorkspace(busyAddress, Storage.Workspace.PACK, source, null);
+		assertTrue(packStorage.compareAndSetStatus(doneAddress, Storage.Status.NONE, Storage.Status.DONE));
+		assertTrue(packStorage.compareAndSetStatus(busyAddress, Storage.Status.NONE, Storage.Status.BUSY));
+
+		WorkspacePacker packer = new WorkspacePacker((VanillaStorage) packStorage, 0);
+		assertEquals(1, packer.packIdle(Arrays.<String>asList()));
+		assertTrue(packStorage.getStatus(doneAddress) == Storage.Status.PACK);
+		assertTrue(packStorage.getStatus(busyAddress) == Storage.Status.BUSY);
+	}
+
+	@Test
+	public void testPackSkipsRecentlyRead() throws Exception {
+		Path root = Files.createTempDirectory("");
+		VanillaStorage packStorage = new VanillaStorage(root);
+		Iterable<String> address = Arrays.asList("idle", "read");
+		Path source = Files.createTempDirectory("");
+		Files.setLastModifiedTime(source, FileTime.fromMillis(1000000000000L));
+		packStorage.copyToWorkspace(address, Storage.Workspace.PACK, source, null);
+		assertTrue(packStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.DONE));
+		Path packPath = packStorage.getWorkspacePath(address, Storage.Workspace.PACK);
+		Files.setLastModifiedTime(packPath, FileTime.fromMillis(1000000000000L));
+
+		WorkspacePacker packer = new WorkspacePacker(packStorage, 60000);
+		assertEquals(0, packer.packIdle(Arrays.<String>asList()));
+		assertTrue(Files.isDirectory(packPath));
+
+		// Packing flushed the access for packers of other storages.
+		WorkspacePacker otherPacker = new WorkspacePacker(new VanillaStorage(root), 60000);
+		assertEquals(0, otherPacker.packIdle(Arrays.<String>asList()));
+		assertTrue(Files.isDirectory(packPath));
+	}
+
+	@Test
+	public void testPruneTempWorkspaces() throws Exception {
+		VanillaStorage pruneStorage = new VanillaStorage(Files.createTempDirectory(""));
+		Iterable<String> recentAddress = Arrays.asList("prune", "recent");
+		Iterable<String> busyAddress = Arrays.asList("prune", "busy");
+		Iterable<String> staleAddress = Arrays.asList("prune", "stale");
+		Path source = Files.createTempFile("", "");
+		Files.write(source, new byte [1000]);
+
+		pruneStorage.copyToWorkspace(busyAddress, Storage.Workspace.TEMP, source, null);
+		Thread.sleep(10);
+		pruneStorage.copyToWorkspace(staleAddress, Storage.Workspace.TEMP, source, null);
+		Thread.sleep(10);
+		pruneStorage.copyToWorkspace(recentAddress, Storage.Workspace.TEMP, source, null);
+		assertTrue(pruneStorage.compareAndSetStatus(busyAddress, Storage.Status.NONE, Storage.Status.BUSY));
+
+		try (TempPruner pruner = new TempPruner(pruneStorage, 2500, 1.0, 0.9)) {
+			assertEquals(1000, pruner.prune());
+			assertEquals(0, pruner.prune());
+		}
+		assertTrue(Files.exists(pruneStorage.peekWorkspacePath(busyAddress, Storage.Workspace.TEMP)));
+		assertFalse(Files.exists(pruneStorage.peekWorkspacePath(staleAddress, Storage.Workspace.TEMP)));
+		assertTrue(Files.exists(pruneStorage.peekWorkspacePath(recentAddress, Storage.Workspace.TEMP)));
+	}
+
+	@Test
+	public void testTableStatus() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		VanillaConfiguration configuration = new VanillaConfiguration().setStatusMode(VanillaConfiguration.StatusMode.TABLE).setStatusTableCapacity(16);
+		Storage tableStorage = new VanillaStorage(temporary, configuration);
+		// More addresses than slots, the rest falls back to status files.
+		for (int index = 0; index < 40; index ++) {
+			Iterable<String> address = Arrays.asList("table", "address" + index);
+			assertTrue (tableStorage.getStatus(address) == Storage.Status.NONE);
+			assertTrue (tableStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.BUSY));
+			assertFalse (tableStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.FAIL));
+		}
+		final Storage reopenedStorage = new VanillaStorage(temporary, configuration);
+		for (int index = 0; index < 40; index ++) {
+			Iterable<String> address = Arrays.asList("table", "address" + index);
+			assertTrue (reopenedStorage.getStatus(address) == Storage.Status.BUSY);
+		}
+		assertTrue (Files.isDirectory(temporary.resolve("table").resolve("address0")));
+
+		// Addresses too long for a slot keep their status in their status file.
+		char [] name = new char [100];
+		Arrays.fill(name, 'x');
+		Iterable<String> longAddress = Arrays.asList("table", new String(name), new String(name), new String(name));
+		assertTrue (tableStorage.compareAndSetStatus(longAddress, Storage.Status.NONE, Storage.Status.DONE));
+		assertTrue (reopenedStorage.getStatus(longAddress) == Storage.Status.DONE);
+
+		// Two storages of one table in one process share the locks.
+		final AtomicInteger changes = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (final Storage user : Arrays.asList(tableStorage, reopenedStorage)) {
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int round = 0; round < 100; round ++) {
+						Iterable<String> address = Arrays.asList("table", "address" + (round % 40));
+						if (user.compareAndSetStatus(address, Storage.Status.BUSY, Storage.Status.DONE)) changes.incrementAndGet();
+						if (user.compareAndSetStatus(address, Storage.Status.DONE, Storage.Status.BUSY)) changes.incrementAndGet();
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) result.get();
+		executor.shutdown();
+		assertTrue (changes.get() > 0);
+	}
+
+	@Test
+	public void testTableStatusMigration() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		Iterable<String> address = Arrays.asList("migrate");
+		Storage fileStorage = new VanillaStorage(temporary);
+		assertTrue (fileStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.DONE));
+		Storage tableStorage = new VanillaStorage(temporary, new VanillaConfiguration().setStatusMode(VanillaConfiguration.StatusMode.TABLE));
+		assertTrue (tableStorage.getStatus(address) == Storage.Status.DONE);
+		assertTrue (tableStorage.compareAndSetStatus(address, Storage.Status.DONE, Storage.Status.PACK));
+		assertTrue (tableStorage.getStatus(address) == Storage.Status.PACK);
+	}
+
+	@Test
+	public void testBulkStatus() throws Exception {
+		Storage bulkStorage = new VanillaStorage(Files.createTempDirectory(""));
+		List<String> busyAddress = Arrays.asList("bulk", "busy");
+		List<String> failAddress = Arrays.asList("bulk", "deep", "fail");
+		List<String> doneAddress = Arrays.asList("bulk", "done");
+		List<String> missingAddress = Arrays.asList("bulk", "missing");
+		assertTrue (bulkStorage.compareAndSetStatus(busyAddress, Storage.Status.NONE, Storage.Status.BUSY));
+		assertTrue (bulkStorage.compareAndSetStatus(failAddress, Storage.Status.NONE, Storage.Status.FAIL));
+		assertTrue (bulkStorage.compareAndSetStatus(doneAddress, Storage.Status.NONE, Storage.Status.DONE));
+
+		List<Storage.Status> statuses = bulkStorage.getStatuses(Arrays.asList(busyAddress, failAddress, doneAddress, missingAddress));
+		assertEquals(Arrays.asList(Storage.Status.BUSY, Storage.Status.FAIL, Storage.Status.DONE, Storage.Status.NONE), statuses);
+		assertFalse (Files.exists(((VanillaStorage) bulkStorage).peekWorkspacePath(missingAddress, Storage.Workspace.KEEP).getParent()));
+
+		Set<List<String>> found = new HashSet<List<String>>();
+		for (List<String> address : bulkStorage.findByStatus(Arrays.asList("bulk"), EnumSet.of(Storage.Status.BUSY, Storage.Status.FAIL))) found.add(address);
+		assertEquals(new HashSet<List<String>>(Arrays.asList(busyAddress, failAddress)), found);
+	}
+
+	@Test
+	public void testListPages() throws Exception {
+		Storage listStorage = new VanillaStorage(Files.createTempDirectory(""));
+		Set<String> expected = new HashSet<String>();
+		for (int index = 0; index < 25; index ++) {
+			listStorage.compareAndSetStatus(Arrays.asList("list", "child" + index), Storage.Status.NONE, Storage.Status.DONE);
+			expected.add("child" + index);
+		}
+		listStorage.getWorkspacePath(Arrays.asList("list"), Storage.Workspace.KEEP);
+
+		Set<String> streamed = new HashSet<String>();
+		try (Stream<String> stream = listStorage.listStream(Arrays.asList("list"))) {
+			stream.forEach(streamed::add);
+		}
+		assertEquals(expected, streamed);
+
+		Set<String> paged = new HashSet<String>();
+		String continuation = null;
+		do {
+			ListPage page = listStorage.listPage(Arrays.asList("list"), continuation, 10);
+			assertTrue(page.getItems().size() <= 10);
+			paged.addAll(page.getItems());
+			continuation = page.getContinuation();
+		} while (continuation != null);
+		assertEquals(expected, paged);
+
+		try {
+			listStorage.listPage(Arrays.asList("list"), null, 0);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testSyncToWorkspace() throws Exception {
+		Iterable<String> address = Arrays.asList("sync", "workspace");
+		Path source = Files.createTempDirectory("");
+		Path innerDirectory = Files.createDirectory(source.resolve("directory"));
+		Files.write(source.resolve("unchanged"), Arrays.asList("unchanged"));
+		Files.write(innerDirectory.resolve("changed"), Arrays.asList("before"));
+		Files.write(innerDirectory.resolve("removed"), Arrays.asList("removed"));
+
+		CopyStatistics first = storage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.noneOf(Storage.SyncOption.class));
+		assertEquals(3, first.getFilesTransferred());
+		assertEquals(0, first.getFilesSkipped());
+
+		Files.write(innerDirectory.resolve("changed"), Arrays.asList("after!"));
+		Files.delete(innerDirectory.resolve("removed"));
+		CopyStatistics second = storage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.of(Storage.SyncOption.DELETE));
+		assertEquals(1, second.getFilesTransferred());
+		assertEquals(7, second.getBytesTransferred());
+		assertEquals(1, second.getFilesSkipped());
+		assertEquals(1, second.getFilesDeleted());
+
+		Path workspace = storage.getWorkspacePath(address, Storage.Workspace.KEEP);
+		assertEquals(Arrays.asList("after!"), Files.readAllLines(workspace.resolve("directory").resolve("changed")));
+		assertFalse(Files.exists(workspace.resolve("directory").resolve("removed")));
+
+		CopyStatistics third = storage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.of(Storage.SyncOption.CONTENT));
+		assertEquals(0, third.getFilesTransferred());
+		assertEquals(2, third.getFilesSkipped());
+	}
+
+	@Test
+	public void testChannelTransferCopy() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		Storage transferStorage = new VanillaStorage(temporary, new VanillaConfiguration().setTransferThreshold(1024));
+		Iterable<String> address = Arrays.asList("transfer");
+
+		Path source = Files.createTempFile("", "");
+		byte [] content = new byte [200000];
+		for (int index = 0; index < content.length; index ++) content [index] = (byte) index;
+		Files.write(source, content);
+		Files.setLastModifiedTime(source, FileTime.fromMillis(1000000000000L));
+
+		transferStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+		Path copy = transferStorage.getWorkspacePath(address, Storage.Workspace.KEEP).resolve(source.getFileName());
+		assertArrayEquals(content, Files.readAllBytes(copy));
+		assertEquals(1000000000000L, Files.getLastModifiedTime(copy).toMillis());
+
+		CopyStatistics statistics = transferStorage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.of(Storage.SyncOption.CONTENT));
+		assertEquals(1, statistics.getFilesSkipped());
+	}
+
+	@Test
+	public void testExternallyRemovedAddress() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		Storage cachedStorage = new VanillaStorage(temporary);
+		Iterable<String> address = Arrays.asList("removed", "address");
+		Path source = Files.createTempFile("", "");
+
+		assertTrue (cachedStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.DONE));
+		cachedStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+
+		VanillaStorage.deleteTree(temporary.resolve("removed"));
+
+		assertTrue (cachedStorage.getStatus(address) == Storage.Status.NONE);
+		assertTrue (cachedStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.DONE));
+		cachedStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+		assertTrue (Files.isRegularFile(cachedStorage.getWorkspacePath(address, Storage.Workspace.KEEP).resolve(source.getFileName())));
+	}
+
+	@Test
+	public void testExternallyRemovedWorkspace() throws Exception {
+		Iterable<String> address = Arrays.asList("removed", "workspace");
+		Path workspacePath = storage.getWorkspacePath(address, Storage.Workspace.KEEP);
+		VanillaStorage.deleteTree(workspacePath);
+		assertTrue(Files.isDirectory(storage.getWorkspacePath(address, Storage.Workspace.KEEP)));
+	}
+
+	@Test
+	public void testPathCacheInvalidatesTree() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		PathCache cache = new PathCache(temporary, 16, VanillaConfiguration.Layout.NESTED);
+		cache.createDirectories(temporary.resolve("a").resolve("b"));
+		cache.createDirectories(temporary.resolve("a-b"));
+		cache.createDirectories(temporary.resolve("a"));
+		cache.invalidate(temporary.resolve("a"));
+		assertFalse(cache.isKnown(temporary.resolve("a")));
+		assertFalse(cache.isKnown(temporary.resolve("a").resolve("b")));
+		assertTrue(cache.isKnown(temporary.resolve("a-b")));
+	}
+
+	@Test
+	public void testConcurrentStatusAccess() throws Exception {
+		final Storage concurrentStorage = new VanillaStorage(Files.createTempDirectory(""));
+		final int addressCount = 4;
+		final int threadCount = 16;
+		final int iterations = 200;
+		final Storage.Status [] cycle = { Storage.Status.NONE, Storage.Status.BUSY, Storage.Status.DONE };
+
+		final List<List<String>> addresses = new ArrayList<List<String>>();
+		for (int index = 0; index < addressCount; index ++) addresses.add(Arrays.asList("concurrent", "address" + index));
+		final AtomicInteger [] transitions = new AtomicInteger [addressCount];
+		for (int index = 0; index < addressCount; index ++) transitions [index] = new AtomicInteger();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int thread = 0; thread < threadCount; thread ++) {
+			final int seed = thread;
+			results.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int iteration = 0; iteration < iterations; iteration ++) {
+						int index = (seed + iteration) % addressCount;
+						Storage.Status status = concurrentStorage.getStatus(addresses.get(index));
+						int position = Arrays.asList(cycle).indexOf(status);
+						if (concurrentStorage.compareAndSetStatus(addresses.get(index), status, cycle [(position + 1) % cycle.length])) {
+							transitions [index].incrementAndGet();
+						}
+						if (iteration % 10 == 0) concurrentStorage.getStatuses(addresses);
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) result.get();
+		executor.shutdown();
+
+		for (int index = 0; index < addressCount; index ++) {
+			assertTrue (transitions [index].get() > 0);
+			assertEquals(cycle [transitions [index].get() % cycle.length], concurrentStorage.getStatus(addresses.get(index)));
+		}
+	}
+
+	private static void checkWaitForStatus(final Storage waitStorage) throws Exception {
+		final Iterable<String> address = Arrays.asList("wait", "address");
+		assertTrue (waitStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.BUSY));
+
+		Predicate<Storage.Status> notBusy = new Predicate<Storage.Status>() {
+			@Override
+			public boolean test(Storage.Status status) {
+				return status != Storage.Status.BUSY;
+			}
+		};
+		assertNull (waitStorage.waitForStatus(address, notBusy, 50));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Boolean> finish = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				Thread.sleep(200);
+				return waitStorage.compareAndSetStatus(address, Storage.Status.BUSY, Storage.Status.DONE);
+			}
+		});
+		assertEquals(Storage.Status.DONE, waitStorage.waitForStatus(address, notBusy, 10000));
+		assertTrue (finish.get());
+		executor.shutdown();
+
+		assertEquals(Storage.Status.DONE, waitStorage.waitForStatus(address, notBusy, 0));
+	}
+
+	@Test
+	public void testWaitForStatus() throws Exception {
+		checkWaitForStatus(new VanillaStorage(Files.createTempDirectory("")));
+		checkWaitForStatus(new VanillaStorage(Files.createTempDirectory(""), new VanillaConfiguration().setStatusMode(VanillaConfiguration.StatusMode.TABLE)));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		VanillaStorage closedStorage = new VanillaStorage(Files.createTempDirectory(""), new VanillaConfiguration().setCopyParallelism(2));
+		new TempPruner(closedStorage, Long.MAX_VALUE, 1, 1).start(60000);
+		checkWaitForStatus(closedStorage);
+
+		Iterable<String> address = Arrays.asList("close");
+		Path tempPath = closedStorage.getWorkspacePath(address, Storage.Workspace.TEMP);
+		Files.setLastModifiedTime(tempPath, FileTime.fromMillis(1000000000000L));
+		closedStorage.getWorkspacePath(address, Storage.Workspace.TEMP);
+		closedStorage.close();
+
+		// Pending accesses are recorded on closing, waiting polls afterwards.
+		assertTrue (Files.getLastModifiedTime(tempPath).toMillis() > 1000000000000L);
+		assertTrue (closedStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.BUSY));
+		assertNull (closedStorage.waitForStatus(address, status -> status != Storage.Status.BUSY, 50));
+	}
+
+	@Test
+	public void testStatusJournal() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		VanillaConfiguration configuration = new VanillaConfiguration().setStatusJournal(true).setJournalSegmentSize(100);
+		VanillaStorage journalStorage = new VanillaStorage(temporary, configuration);
+		for (int index = 0; index < 10; index ++) {
+			assertTrue (journalStorage.compareAndSetStatus(Arrays.asList("journal", "address" + index), Storage.Status.NONE, Storage.Status.BUSY));
+		}
+		assertFalse (journalStorage.compareAndSetStatus(Arrays.asList("journal", "address0"), Storage.Status.NONE, Storage.Status.BUSY));
+
+		// Another instance over the same root continues the same journal.
+		VanillaStorage otherStorage = new VanillaStorage(temporary, configuration);
+		assertTrue (otherStorage.compareAndSetStatus(Arrays.asList("journal", "address0"), Storage.Status.BUSY, Storage.Status.DONE));
+
+		List<StatusChange> changes = new ArrayList<StatusChange>();
+		long offset = 0;
+		List<Long> offsets = new ArrayList<Long>();
+		while (true) {
+			JournalPage page = journalStorage.getStatusJournal().tail(offset, 3);
+			if (page.getChanges().isEmpty()) break;
+			changes.addAll(page.getChanges());
+			offset = page.getNextOffset();
+			offsets.add(offset);
+		}
+
+		assertEquals(11, changes.size());
+		for (int index = 0; index < 10; index ++) {
+			assertEquals(Arrays.asList("journal", "address" + index), changes.get(index).getAddress());
+			assertEquals(Storage.Status.NONE, changes.get(index).getOldStatus());
+			assertEquals(Storage.Status.BUSY, changes.get(index).getNewStatus());
+		}
+		assertEquals(Storage.Status.DONE, changes.get(10).getNewStatus());
+
+		assertTrue (journalStorage.getStatusJournal().truncate(offsets.get(1)) > 0);
+		assertEquals(11 - 6, journalStorage.getStatusJournal().tail(offsets.get(1), 100).getChanges().size());
+		try {
+			journalStorage.getStatusJournal().tail(0, 100);
+			fail("Truncated offset read.");
+		} catch (StorageException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testBatchStatus() throws Exception {
+		List<StatusTransition> claims = new ArrayList<StatusTransition>();
+		for (int index = 0; index < 100; index ++) {
+			claims.add(new StatusTransition(Arrays.asList("batch", "address" + index), Storage.Status.NONE, Storage.Status.BUSY));
+		}
+		assertTrue (storage.compareAndSetStatuses(claims));
+		assertFalse (storage.compareAndSetStatuses(claims));
+
+		List<StatusTransition> partial = new ArrayList<StatusTransition>();
+		partial.add(new StatusTransition(Arrays.asList("batch", "address0"), Storage.Status.BUSY, Storage.Status.DONE));
+		partial.add(new StatusTransition(Arrays.asList("batch", "address1"), Storage.Status.NONE, Storage.Status.DONE));
+		assertFalse (storage.compareAndSetStatuses(partial));
+		assertEquals(Storage.Status.BUSY, storage.getStatus(Arrays.asList("batch", "address0")));
+
+		try {
+			storage.compareAndSetStatuses(Arrays.asList(claims.get(0), claims.get(0)));
+			fail("Address changed twice in a batch.");
+		} catch (StorageException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testBatchStatusRecovery() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		Storage batchStorage = new VanillaStorage(temporary);
+		Iterable<String> applied = Arrays.asList("recover", "applied");
+		Iterable<String> pending = Arrays.asList("recover", "pending");
+		assertTrue (batchStorage.compareAndSetStatus(applied, Storage.Status.NONE, Storage.Status.BUSY));
+
+		// Simulates a crash after the batch was logged and the first status changed.
+		BatchLog log = new BatchLog(temporary);
+		try (BatchLog.LockedLog locked = log.lock()) {
+			locked.write(Arrays.asList(
+					new StatusTransition(applied, Storage.Status.NONE, Storage.Status.BUSY),
+					new StatusTransition(pending, Storage.Status.NONE, Storage.Status.BUSY)));
+		}
+
+		Storage recoveredStorage = new VanillaStorage(temporary);
+		assertEquals(Storage.Status.BUSY, recoveredStorage.getStatus(applied));
+		assertEquals(Storage.Status.BUSY, recoveredStorage.getStatus(pending));
+		assertEquals(0, Files.size(temporary.resolve(BatchLog.PATH_BATCH)));
+	}
+
+	@Test
+	public void testStreamWorkspace() throws Exception {
+		final Storage sourceStorage = new VanillaStorage(Files.createTempDirectory(""));
+		Storage targetStorage = new VanillaStorage(Files.createTempDirectory(""));
+		final Iterable<String> address = Arrays.asList("stream");
+
+		Path source = Files.createTempDirectory("");
+		Files.createDirectories(source.resolve("inner"));
+		Files.write(source.resolve("inner").resolve("file"), Arrays.asList("content"));
+		Files.write(source.resolve("other"), Arrays.asList("other"));
+		sourceStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+
+		// The archive goes through a pipe, export and import run concurrently without intermediate files.
+		final PipedOutputStream output = new PipedOutputStream();
+		PipedInputStream input = new PipedInputStream(output, 4096);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<Void> export = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try (PipedOutputStream stream = output) {
+					sourceStorage.exportWorkspace(address, Storage.Workspace.KEEP, null, stream);
+				}
+				return null;
+			}
+		});
+		targetStorage.importWorkspace(address, Storage.Workspace.KEEP, input, null);
+		export.get();
+		executor.shutdown();
+
+		Path target = targetStorage.getWorkspacePath(address, Storage.Workspace.KEEP);
+		assertEquals(Arrays.asList("content"), Files.readAllLines(target.resolve("inner").resolve("file")));
+		assertEquals(Arrays.asList("other"), Files.readAllLines(target.resolve("other")));
+
+		// A sub path is exported on its own and imported below a destination.
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		sourceStorage.exportWorkspace(address, Storage.Workspace.KEEP, Paths.get("inner"), buffer);
+		targetStorage.importWorkspace(address, Storage.Workspace.TEMP, new ByteArrayInputStream(buffer.toByteArray()), Paths.get("copy"));
+		Path copy = targetStorage.getWorkspacePath(address, Storage.Workspace.TEMP).resolve("copy");
+		assertEquals(Arrays.asList("content"), Files.readAllLines(copy.resolve("file")));
+		assertFalse (Files.exists(copy.resolve("other")));
+	}
+
+	private static byte [] createLinkArchive(String linkTarget, String fileName) throws Exception {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		TarArchiveOutputStream archive = new TarArchiveOutputStream(buffer);
+		TarArchiveEntry link = new TarArchiveEntry("link", TarConstants.LF_SYMLINK);
+		link.setLinkName(linkTarget);
+		archive.putArchiveEntry(link);
+		archive.closeArchiveEntry();
+		if (fileName != null) {
+			TarArchiveEntry file = new TarArchiveEntry(fileName);
+			file.setSize(7);
+			archive.putArchiveEntry(file);
+			archive.write("escaped".getBytes());
+			archive.closeArchiveEntry();
+		}
+		archive.finish();
+		return buffer.toByteArray();
+	}
+
+	@Test
+	public void testImportRejectsEscapingLinks() throws Exception {
+		Storage targetStorage = new VanillaStorage(Files.createTempDirectory(""));
+		Iterable<String> address = Arrays.asList("escape");
+		Path outside = Files.createTempDirectory("");
+
+		// Links with an absolute or escaping target are rejected, so are files below any link.
+		byte [][] archives = {
+			createLinkArchive(outside.toString(), null),
+			createLinkArchive("../../../..", null),
+			createLinkArchive("inner", "link/file"),
+		};
+		for (byte [] archive : archives) {
+			try {
+				targetStorage.importWorkspace(address, Storage.Workspace.TEMP, new ByteArrayInputStream(archive), null);
+				fail();
+			} catch (StorageException e) {
+				// Expected.
+			}
+		}
+
+		// Even a link unpacked inside the workspace is not written through.
+		Path workspace = targetStorage.getWorkspacePath(address, Storage.Workspace.TEMP);
+		assertFalse (Files.exists(outside.resolve("file")));
+		assertFalse (Files.exists(workspace.resolve("inner").resolve("file")));
+	}
+
+	@Test
+	public void testImportHardLinks() throws Exception {
+		Iterable<String> address = Arrays.asList("import", "hard");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		TarArchiveOutputStream archive = new TarArchiveOutputStream(buffer);
+		TarArchiveEntry file = new TarArchiveEntry("file");
+		file.setSize(7);
+		archive.putArchiveEntry(file);
+		archive.write("content".getBytes());
+		archive.closeArchiveEntry();
+		TarArchiveEntry link = new TarArchiveEntry("inner/link", TarConstants.LF_LINK);
+		link.setLinkName("file");
+		archive.putArchiveEntry(link);
+		archive.closeArchiveEntry();
+		archive.finish();
+
+		storage.importWorkspace(address, Storage.Workspace.TEMP, new ByteArrayInputStream(buffer.toByteArray()), null);
+		Path workspace = storage.getWorkspacePath(address, Storage.Workspace.TEMP);
+		assertTrue(Files.isSameFile(workspace.resolve("file"), workspace.resolve("inner").resolve("link")));
+		assertEquals(Arrays.asList("content"), Files.readAllLines(workspace.resolve("inner").resolve("link")));
+
+		// Links to files not unpacked and entries of other types are rejected.
+		byte [] types = { TarConstants.LF_LINK, TarConstants.LF_FIFO, TarConstants.LF_CHR };
+		for (byte type : types) {
+			buffer = new ByteArrayOutputStream();
+			archive = new TarArchiveOutputStream(buffer);
+			TarArchiveEntry entry = new TarArchiveEntry("special", type);
+			if (type == TarConstants.LF_LINK) entry.setLinkName("missing");
+			archive.putArchiveEntry(entry);
+			archive.closeArchiveEntry();
+			archive.finish();
+			try {
+				storage.importWorkspace(address, Storage.Workspace.TEMP, new ByteArrayInputStream(buffer.toByteArray()), null);
+				fail();
+			} catch (StorageException e) {
+				// Expected.
+			}
+		}
+		assertFalse(Files.exists(workspace.resolve("special"), LinkOption.NOFOLLOW_LINKS));
+	}
+
+	@Test
+	public void testCloneWorkspace() throws Exception {
+		Iterable<String> parent = Arrays.asList("clone", "parent");
+		Iterable<String> child = Arrays.asList("clone", "child");
+
+		Path source = Files.createTempDirectory("");
+		Files.createDirectories(source.resolve("inner"));
+		Files.write(source.resolve("inner").resolve("file"), Arrays.asList("content"));
+		storage.copyToWorkspace(parent, Storage.Workspace.KEEP, source, null);
+
+		storage.cloneWorkspace(parent, Storage.Workspace.KEEP, child, Storage.Workspace.TEMP);
+		Path original = storage.getWorkspacePath(parent, Storage.Workspace.KEEP).resolve("inner").resolve("file");
+		Path clone = storage.getWorkspacePath(child, Storage.Workspace.TEMP).resolve("inner").resolve("file");
+		assertEquals(Arrays.asList("content"), Files.readAllLines(clone));
+		assertTrue (Files.isSameFile(original, clone));
+
+		try {
+			storage.cloneWorkspace(parent, Storage.Workspace.KEEP, parent, Storage.Workspace.KEEP);
+			fail();
+		} catch (StorageException e) {
+			// Expected.
+		}
+		assertEquals(Arrays.asList("content"), Files.readAllLines(original));
+	}
+
+	private static WorkspaceUsage findUsage(List<WorkspaceUsage> usages, List<String> address, Storage.Workspace workspace) {
+		for (WorkspaceUsage usage : usages) {
+			if (usage.getAddress().equals(address) && usage.getWorkspace() == workspace) return usage;
+		}
+		return null;
+	}
+
+	@Test
+	public void testUsageIndex() throws Exception {
+		Path temporary = Files.createTempDirectory("");
+		VanillaStorage usageStorage = new VanillaStorage(temporary, new VanillaConfiguration().setUsageIndex(true));
+		List<String> parent = Arrays.asList("usage");
+		List<String> child = Arrays.asList("usage", "child");
+
+		Path source = Files.createTempDirectory("");
+		Files.write(source.resolve("first"), new byte [1000]);
+		Files.write(source.resolve("second"), new byte [500]);
+		usageStorage.copyToWorkspace(parent, Storage.Workspace.KEEP, source, null);
+		usageStorage.copyToWorkspace(child, Storage.Workspace.TEMP, source.resolve("first"), null);
+
+		List<WorkspaceUsage> usages = usageStorage.getUsage(parent);
+		assertEquals(1500, findUsage(usages, parent, Storage.Workspace.KEEP).getBytes());
+		assertEquals(2, findUsage(usages, parent, Storage.Workspace.KEEP).getFiles());
+		assertEquals(1000, findUsage(usages, child, Storage.Workspace.TEMP).getBytes());
+		assertNull (findUsage(usageStorage.getUsage(child), parent, Storage.Workspace.KEEP));
+
+		// Copies update the index by what they change.
+		Files.delete(source.resolve("second"));
+		Files.write(source.resolve("first"), new byte [2000]);
+		usageStorage.syncToWorkspace(parent, Storage.Workspace.KEEP, source, null, EnumSet.of(Storage.SyncOption.DELETE));
+		WorkspaceUsage synced = findUsage(usageStorage.getUsage(parent), parent, Storage.Workspace.KEEP);
+		assertEquals(2000, synced.getBytes());
+		assertEquals(1, synced.getFiles());
+
+		// Changes made outside the storage show once reconciled, the index then survives reopening.
+		Files.write(usageStorage.getWorkspacePath(child, Storage.Workspace.TEMP).resolve("outside"), new byte [300]);
+		assertEquals(1000, findUsage(usageStorage.getUsage(child), child, Storage.Workspace.TEMP).getBytes());
+		new UsageReconciler(usageStorage).reconcile();
+		assertEquals(1300, findUsage(usageStorage.getUsage(child), child, Storage.Workspace.TEMP).getBytes());
+
+		Storage reopenedStorage = new VanillaStorage(temporary, new VanillaConfiguration().setUsageIndex(true));
+		assertEquals(1300, findUsage(reopenedStorage.getUsage(child), child, Storage.Workspace.TEMP).getBytes());
+
+		// Without the index usage is measured, with the same result.
+		Storage measuringStorage = new VanillaStorage(temporary);
+		List<WorkspaceUsage> measured = measuringStorage.getUsage(parent);
+		assertEquals(2000, findUsage(measured, parent, Storage.Workspace.KEEP).getBytes());
+		assertEquals(2, findUsage(measured, child, Storage.Workspace.TEMP).getFiles());
+	}
+
+	@Test
+	public void testHashedPagingByOffset() throws Exception {
+		VanillaConfiguration configuration = new VanillaConfiguration().setLayout(VanillaConfiguration.Layout.HASHED);
+		Path root = Files.createTempDirectory("");
+		VanillaStorage hashedStorage = new VanillaStorage(root, configuration);
+		List<String> names = Arrays.asList("plain", "\u00e9t\u00e9", "\u4e2d\u6587", "last");
+		for (String name : names) hashedStorage.getWorkspacePath(Arrays.asList("offset", name), Storage.Workspace.TEMP);
+		// Another storage knows none of the addresses, registering them again enters no duplicates.
+		VanillaStorage otherStorage = new VanillaStorage(root, configuration);
+		for (String name : names) otherStorage.getWorkspacePath(Arrays.asList("offset", name), Storage.Workspace.KEEP);
+
+		List<String> paged = new ArrayList<String>();
+		String continuation = null;
+		do {
+			ListPage page = hashedStorage.listPage(Arrays.asList("offset"), continuation, 1);
+			paged.addAll(page.getItems());
+			continuation = page.getContinuation();
+		} while (continuation != null);
+		assertEquals(names, paged);
+
+		try (Stream<String> children = hashedStorage.listStream(Arrays.asList("offset"))) {
+			assertEquals(names, children.collect(Collectors.toList()));
+		}
+
+		// A record cut off by a crash is skipped by readers and truncated by the next append.
+		Path index = HashedLayout.resolve(HashedLayout.getHashedPath(root), Arrays.asList("offset")).resolve(HashedLayout.PATH_CHILDREN);
+		Files.write(index, new byte [] { 0, 0, 0, 5, 1, 2 }, StandardOpenOption.APPEND);
+		assertEquals(names, hashedStorage.list(Arrays.asList("offset")));
+		new VanillaStorage(root, configuration).getWorkspacePath(Arrays.asList("offset", "more"), Storage.Workspace.TEMP);
+		List<String> more = new ArrayList<String>(names);
+		more.add("more");
+		assertEquals(more, hashedStorage.list(Arrays.asList("offset")));
+	}
+
+	@Test
+	public void testHashedLayout() throws Exception {
+		Path root = Files.createTempDirectory("");
+		VanillaConfiguration configuration = new VanillaConfiguration().setLayout(VanillaConfiguration.Layout.HASHED);
+		VanillaStorage hashedStorage = new VanillaStorage(root, configuration);
+
+		Path source = Files.createTempFile("", "");
+		Files.write(source, new byte [100]);
+		String name = source.getFileName().toString();
+
+		for (int index = 0; index < 10; index ++) {
+			List<String> address = Arrays.asList("hashed", "parent" + (index % 2), "child" + index);
+			assertTrue (hashedStorage.compareAndSetStatus(address, Storage.Status.NONE, Storage.Status.DONE));
+			hashedStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+		}
+
+		// Address directories are hashed, the tree is only seen through listing.
+		assertFalse (Files.exists(root.resolve("hashed")));
+		assertEquals(Arrays.asList("hashed"), hashedStorage.list(new ArrayList<String>()));
+		assertEquals(Arrays.asList("parent0", "parent1"), hashedStorage.list(Arrays.asList("hashed")));
+		assertEquals(5, hashedStorage.listStream(Arrays.asList("hashed", "parent1")).count());
+		Path workspace = hashedStorage.getWorkspacePath(Arrays.asList("hashed", "parent0", "child4"), Storage.Workspace.KEEP);
+		assertTrue (workspace.startsWith(root.resolve(HashedLayout.PATH_HASHED)));
+		assertTrue (Files.exists(workspace.resolve(name)));
+
+		List<String> paged = new ArrayList<String>();
+		String continuation = null;
+		do {
+			ListPage page = hashedStorage.listPage(Arrays.asList("hashed", "parent0"), continuation, 2);
+			paged.addAll(page.getItems());
+			continuation = page.getContinuation();
+		} while (continuation != null);
+		assertEquals(Arrays.asList("child0", "child2", "child4", "child6", "child8"), paged);
+
+		int found = 0;
+		for (List<String> address : hashedStorage.findByStatus(Arrays.asList("hashed"), EnumSet.of(Storage.Status.DONE))) found ++;
+		assertEquals(10, found);
+
+		// Reopening keeps the children, opening with the other layout fails.
+		VanillaStorage reopenedStorage = new VanillaStorage(root, configuration);
+		assertEquals(Storage.Status.DONE, reopenedStorage.getStatus(Arrays.asList("hashed", "parent1", "child9")));
+		assertEquals(5, reopenedStorage.listStream(Arrays.asList("hashed", "parent1")).count());
+		try {
+			new VanillaStorage(root);
+			fail();
+		} catch (StorageException e) {
+			// Expected.
+		}
+		Path nestedRoot = Files.createTempDirectory("");
+		new VanillaStorage(nestedRoot).getStatus(Arrays.asList("nested"));
+		try {
+			new VanillaStorage(nestedRoot, configuration);
+			fail();
+		} catch (StorageException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testVerifyWorkspace() throws Exception {
+		Path root = Files.createTempDirectory("");
+		VanillaStorage manifestStorage = new VanillaStorage(root, new VanillaConfiguration().setWorkspaceManifests(true).setVerifyParallelism(4));
+		List<String> address = Arrays.asList("verified");
+
+		Path source = Files.createTempDirectory("");
+		Files.createDirectory(source.resolve("directory"));
+		for (int index = 0; index < 40; index ++) {
+			Files.write(source.resolve("directory").resolve("file" + index), ("content" + index).getBytes());
+		}
+		Path single = Files.createTempFile("", "");
+		Files.write(single, new byte [1000]);
+		manifestStorage.copyToWorkspace(address, Storage.Workspace.KEEP, source, null);
+		manifestStorage.copyToWorkspace(address, Storage.Workspace.KEEP, single, Paths.get("directory"));
+
+		WorkspaceVerification verification = manifestStorage.verifyWorkspace(address, Storage.Workspace.KEEP);
+		assertTrue (verification.isIntact());
+		assertEquals(41, verification.getFilesVerified());
+
+		// Damage of each kind is told apart, a file rewritten with its old time looks corrupted.
+		Path workspace = manifestStorage.getWorkspacePath(address, Storage.Workspace.KEEP);
+		Path corrupted = workspace.resolve("directory").resolve("file1");
+		FileTime time = Files.getLastModifiedTime(corrupted);
+		Files.write(corrupted, "CONTENT1".getBytes());
+		Files.setLastModifiedTime(corrupted, time);
+		Path modified = workspace.resolve("directory").resolve("file2");
+		Files.write(modified, "changed".getBytes());
+		Files.setLastModifiedTime(modified, FileTime.fromMillis(time.toMillis() + 5000));
+		Files.delete(workspace.resolve("directory").resolve("file3"));
+		Files.write(workspace.resolve("extra"), new byte [10]);
+
+		verification = manifestStorage.verifyWorkspace(address, Storage.Workspace.KEEP);
+		assertFalse (verification.isIntact());
+		assertEquals(Arrays.asList("directory/file1"), verification.getCorrupted());
+		assertEquals(Arrays.asList("directory/file2"), verification.getModified());
+		assertEquals(Arrays.asList("directory/file3"), verification.getMissing());
+		assertEquals(Arrays.asList("extra"), verification.getUnexpected());
+
+		// Copying again refreshes the manifest of what was copied, synchronizing also removes the extra files.
+		manifestStorage.syncToWorkspace(address, Storage.Workspace.KEEP, source, null, EnumSet.of(Storage.SyncOption.DELETE));
+		assertFalse (Files.exists(workspace.resolve("extra")));
+		manifestStorage.copyToWorkspace(address, Storage.Workspace.KEEP, single, Paths.get("directory"));
+		assertTrue (manifestStorage.verifyWorkspace(address, Storage.Workspace.KEEP).isIntact());
+
+		try {
+			manifestStorage.verifyWorkspace(address, Storage.Workspace.TEMP);
+			fail();
+		} catch (StorageException e) {
+			// Expected, nothing was copied there.
+		}
+	}
 }